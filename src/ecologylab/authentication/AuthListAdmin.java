@@ -8,7 +8,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
-import ecologylab.authentication.translationScope.AuthServerTranslations;
 import ecologylab.oodss.exceptions.SaveFailedException;
 import ecologylab.serialization.SIMPLTranslationException;
 import ecologylab.serialization.SimplTypesScope;
@@ -51,9 +50,8 @@ public class AuthListAdmin {
 
 		if (xmlFile.exists()) {
 			try {
-				authList = (AuthenticationListXMLImpl) AuthServerTranslations
-						.get().deserialize(xmlFile, Format.XML);
-			} catch (SIMPLTranslationException e) {
+				authList = AuthenticationListStreamLoader.load(xmlFile, null);
+			} catch (SaveFailedException e) {
 				System.err
 						.println("There was an error translating the authentication list: "
 								+ filename);
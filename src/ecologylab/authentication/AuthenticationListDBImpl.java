@@ -4,14 +4,26 @@
 package ecologylab.authentication;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.NamingException;
 
+import ecologylab.authentication.commit.BatchWriter;
+import ecologylab.authentication.commit.UserWrite;
 import ecologylab.authentication.db.AuthenticationDBStrings;
+import ecologylab.authentication.db.ConnectionProvider;
+import ecologylab.authentication.db.DriverManagerConnectionProvider;
+import ecologylab.authentication.db.PooledConnectionProvider;
+import ecologylab.authentication.db.UserKeyLocks;
+import ecologylab.authentication.logging.AuthDiagnostics;
+import ecologylab.authentication.password.PasswordHasher;
+import ecologylab.authentication.password.PasswordHashes;
 import ecologylab.generic.Debug;
 import ecologylab.oodss.exceptions.SaveFailedException;
 import ecologylab.sql.ConnectionWithAutoClose;
@@ -24,8 +36,10 @@ import ecologylab.sql.PreparedStatementWithAutoClose;
  * 
  * Instances of this should be used by a server to determine valid usernames and passwords.
  * 
- * Most methods in this class are synchronized, so that they cannot be interleaved on multiple
- * threads. This should prevent consistency errors.
+ * Instances of this are safe to use from many threads at once. Lookups are not synchronized; the
+ * number of queries in flight at one time is bounded only by the ConnectionProvider (normally a
+ * connection pool). Operations that check, then modify, a single user's record (addUser,
+ * removeUser) hold a lock striped on the user key, so they cannot interleave for the same user.
  * 
  * This authentication list assumes that authentication list entry's username field refers to an
  * email address.
@@ -33,36 +47,55 @@ import ecologylab.sql.PreparedStatementWithAutoClose;
  * @author Zachary O. Toups (zach@ecologylab.net)
  */
 public class AuthenticationListDBImpl<U extends User> extends Debug implements
-		AuthenticationList<U>, AuthenticationDBStrings
+		AuthenticationList<U>, BatchWriter<U>, AuthenticationDBStrings
 {
-	/** Database connection string; combines URL, username, and password. */
-	private String	dBConnectString	= null;
+	/** Source of connections to the database; normally a pool. */
+	private ConnectionProvider	connectionProvider	= null;
 
 	/**
-	 * Creates a new AuthenticationList based on a connection to a MySQL database. Lazily instantiates
-	 * the database connection as needed.
+	 * Hashes passwords before they are written to the database; if null, passwords are stored as sent
+	 * by the client.
+	 */
+	private PasswordHasher				passwordHasher			= null;
+
+	/** Serializes read-modify-write operations on the same user key. */
+	protected final UserKeyLocks	userKeyLocks				= new UserKeyLocks();
+
+	/**
+	 * Creates a new AuthenticationList based on a connection to a PostgreSQL database. Lazily
+	 * instantiates database connections as needed, keeping them in a PooledConnectionProvider with
+	 * default settings.
 	 * 
 	 * @param dbLocation
-	 *          URL for database in the form "mysql://...".
+	 *          URL for database in the form "postgresql://...".
 	 * @param username
 	 *          username to connect to database.
 	 * @param password
 	 *          password for database.
 	 */
 	public AuthenticationListDBImpl(String dbLocation, String username, String password, String db)
+	{
+		this(new PooledConnectionProvider(new DriverManagerConnectionProvider(
+				DriverManagerConnectionProvider.POSTGRESQL_DRIVER, "jdbc:" + dbLocation + "/" + db,
+				username, password)));
+	}
+
+	/**
+	 * Creates a new AuthenticationList that draws its database connections from connectionProvider.
+	 * 
+	 * @param connectionProvider
+	 */
+	public AuthenticationListDBImpl(ConnectionProvider connectionProvider)
 	{
 		super();
 
-		dBConnectString = "jdbc:"
-				+ dbLocation
-				+ "/"
-				+ db
-				+ "?user="
-				+ username
-				+ "&password="
-				+ password;
+		this.connectionProvider = connectionProvider;
 	}
 
+	/**
+	 * Creates a new AuthenticationList with no ConnectionProvider; either setConnectionProvider() must
+	 * be called before use, or a subclass must override getConnection().
+	 */
 	public AuthenticationListDBImpl()
 	{
 		super();
@@ -87,27 +120,38 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 		return null;
 	}
 
+	/**
+	 * Acquires a connection from the ConnectionProvider. The caller must close it when finished, so
+	 * that pooled connections are returned to the pool.
+	 * 
+	 * @throws SQLException
+	 *           if no ConnectionProvider has been set, or if it cannot supply a connection.
+	 * @throws NamingException
+	 *           may be thrown by subclasses that look up their DataSource through JNDI.
+	 */
 	protected Connection getConnection() throws SQLException, NamingException
 	{
-		try
-		{
-			Class.forName("org.postgresql.Driver").newInstance();
-		}
-		catch (InstantiationException e)
-		{
-			e.printStackTrace();
-		}
-		catch (IllegalAccessException e)
-		{
-			e.printStackTrace();
-		}
-		catch (ClassNotFoundException e)
-		{
-			e.printStackTrace();
-		}
+		if (connectionProvider == null)
+			throw new SQLException("No ConnectionProvider has been set for " + this.toString());
+
+		return connectionProvider.getConnection();
+	}
 
-		System.out.println("connect string: " + dBConnectString);
-		return DriverManager.getConnection(dBConnectString);
+	/**
+	 * @return the ConnectionProvider that supplies database connections to this.
+	 */
+	public ConnectionProvider getConnectionProvider()
+	{
+		return connectionProvider;
+	}
+
+	/**
+	 * @param connectionProvider
+	 *          the ConnectionProvider that will supply database connections to this.
+	 */
+	public void setConnectionProvider(ConnectionProvider connectionProvider)
+	{
+		this.connectionProvider = connectionProvider;
 	}
 
 	/**
@@ -116,18 +160,29 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @throws SaveFailedException
 	 */
 	@Override
-	public synchronized boolean addUser(U user) throws SaveFailedException
+	public boolean addUser(U user) throws SaveFailedException
 	{
-		if (!this.contains(user))
+		ReentrantLock lock = userKeyLocks.lockFor(user.getUserKey());
+		lock.lock();
+
+		try
 		{
-			// TODO this is pretty kludgy; we could probably split out a new subclass to handle this
-			user.setUid(this.performInsertUser(user.getUserKey(), user.getPassword(),
-					(user instanceof UserWithAuxData ? ((UserWithAuxData) user).getAuxUserData() : null)));
+			if (!PasswordHashes.isVersioned(user.getPassword()) && !this.contains(user))
+			{
+				// TODO this is pretty kludgy; we could probably split out a new subclass to handle this
+				user.setUid(this.performInsertUser(user.getUserKey(), this.hashForStorage(user
+						.getPassword()), (user instanceof UserWithAuxData ? ((UserWithAuxData) user)
+						.getAuxUserData() : null)));
 
-			return true;
-		}
+				return true;
+			}
 
-		return false;
+			return false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -138,7 +193,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @param newPasswordPlainText
 	 * @throws SaveFailedException
 	 */
-	public synchronized void performUpdatePassword(String userKey, String newPasswordPlainText)
+	public void performUpdatePassword(String userKey, String newPasswordPlainText)
 			throws SaveFailedException
 	{
 		User tempUser = new User(userKey, newPasswordPlainText);
@@ -151,7 +206,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 			connection = this.getAutoClosingConnection();
 
 			stmt = connection.prepareStatement(PREPARED_UPDATE_USER_PASSWORD);
-			stmt.setString(1, tempUser.getPassword());
+			stmt.setString(1, this.hashForStorage(tempUser.getPassword()));
 			stmt.setString(2, userKey);
 
 			stmt.executeUpdate();
@@ -169,6 +224,291 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 		}
 	}
 
+	/**
+	 * @param clientHash
+	 *          a password as hashed by the client.
+	 * @return the form of the password to write to the database.
+	 * @throws IllegalArgumentException
+	 *           if clientHash is already a versioned hash, which a client may not choose.
+	 */
+	protected String hashForStorage(String clientHash)
+	{
+		if (PasswordHashes.isVersioned(clientHash))
+			throw new IllegalArgumentException("a versioned hash is not a client password");
+
+		if (passwordHasher == null || clientHash == null)
+			return clientHash;
+
+		return passwordHasher.hash(clientHash);
+	}
+
+	/**
+	 * Rewrites every stored password that is not in canonical form. Legacy hashes are trimmed of the
+	 * whitespace that some older rows carry, so that they decode cleanly to a digest; if a
+	 * PasswordHasher has been set, they are also upgraded to its versioned form. Versioned hashes are
+	 * left as they are.
+	 * 
+	 * Each row is only rewritten if its password is still the one that was read, so this may run while
+	 * the server is live: a password changed in the meantime is left as it is.
+	 * 
+	 * @return the number of rows rewritten.
+	 * @throws SaveFailedException
+	 *           if the database could not be read or updated.
+	 */
+	public int migratePasswordHashes() throws SaveFailedException
+	{
+		int migrated = 0;
+
+		ConnectionWithAutoClose connection = null;
+
+		try
+		{
+			connection = this.getAutoClosingConnection();
+
+			PreparedStatementWithAutoClose select = connection
+					.prepareStatement(SELECT_ALL_USER_PASSWORDS);
+			PreparedStatementWithAutoClose update = connection
+					.prepareStatement(PREPARED_UPDATE_USER_PASSWORD_IF_UNCHANGED);
+
+			ResultSet rs = select.executeQuery();
+
+			while (rs.next())
+			{
+				String userKey = rs.getString(COL_USER_KEY);
+				String storedPassword = rs.getString(COL_PASSWORD);
+
+				if (storedPassword == null || PasswordHashes.isVersioned(storedPassword))
+					continue;
+
+				String migratedPassword = this.hashForStorage(storedPassword.trim());
+
+				if (migratedPassword.equals(storedPassword))
+					continue;
+
+				update.setString(1, migratedPassword);
+				update.setString(2, userKey);
+				update.setString(3, storedPassword);
+
+				migrated += update.executeUpdate();
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+
+			throw new SaveFailedException(e);
+		}
+		finally
+		{
+			if (connection != null)
+				connection.close();
+		}
+
+		return migrated;
+	}
+
+	/**
+	 * @return the PasswordHasher applied to passwords before they are stored; null if passwords are
+	 *         stored as sent by the client.
+	 */
+	public PasswordHasher getPasswordHasher()
+	{
+		return passwordHasher;
+	}
+
+	/**
+	 * Sets the PasswordHasher used to store passwords written from now on. Existing rows keep their
+	 * current hashes, which continue to work.
+	 * 
+	 * @param passwordHasher
+	 */
+	public void setPasswordHasher(PasswordHasher passwordHasher)
+	{
+		this.passwordHasher = passwordHasher;
+	}
+
+	/**
+	 * Applies every write in batch in a single transaction, so the database commits (and forces its
+	 * log to disk) once for the whole batch. The locks for all of the batch's user keys are held for
+	 * the duration, acquired in a fixed order. Writes run in order, so a batch may add and later
+	 * remove the same user. If any statement fails, or a write throws, the whole transaction is
+	 * rolled back.
+	 * 
+	 * @see ecologylab.authentication.commit.BatchWriter#writeBatch(java.util.List)
+	 */
+	@Override
+	public boolean[] writeBatch(List<UserWrite<U>> batch) throws SaveFailedException
+	{
+		boolean[] results = new boolean[batch.size()];
+		long[] newUids = new long[batch.size()];
+
+		List<String> userKeys = new ArrayList<String>(batch.size());
+		for (UserWrite<U> write : batch)
+			userKeys.add(write.getUserKey());
+
+		List<ReentrantLock> locks = userKeyLocks.locksFor(userKeys);
+		for (ReentrantLock lock : locks)
+			lock.lock();
+
+		Connection conn = null;
+		List<PreparedStatement> statements = new ArrayList<PreparedStatement>(4);
+		boolean committed = false;
+
+		try
+		{
+			conn = this.getConnection();
+			conn.setAutoCommit(false);
+
+			PreparedStatement select = conn.prepareStatement(PREPARED_SELECT_CREDENTIALS_BY_USER_KEY);
+			statements.add(select);
+			PreparedStatement insert = conn.prepareStatement(PREPARED_INSERT_USER,
+					Statement.RETURN_GENERATED_KEYS);
+			statements.add(insert);
+			PreparedStatement delete = conn.prepareStatement(PREPARED_DELETE_USER_BY_USER_KEY);
+			statements.add(delete);
+			PreparedStatement update = conn.prepareStatement(PREPARED_UPDATE_USER_PASSWORD);
+			statements.add(update);
+
+			for (int i = 0; i < results.length; i++)
+			{
+				UserWrite<U> write = batch.get(i);
+				U user = write.getUser();
+
+				switch (write.getKind())
+				{
+				case ADD:
+					if (!PasswordHashes.isVersioned(user.getPassword())
+							&& this.lookupStoredPassword(select, write.getUserKey()) == null)
+					{
+						insert.setString(1, write.getUserKey());
+						insert.setString(2, this.hashForStorage(user.getPassword()));
+						insert.setString(3, (user instanceof UserWithAuxData ? ((UserWithAuxData) user)
+								.getAuxUserData() : null));
+						insert.executeUpdate();
+
+						ResultSet autoGenKeys = insert.getGeneratedKeys();
+						newUids[i] = autoGenKeys.next() ? autoGenKeys.getLong(1) : -1;
+						autoGenKeys.close();
+
+						results[i] = true;
+					}
+					break;
+				case REMOVE:
+					String storedPassword = this.lookupStoredPassword(select, write.getUserKey());
+
+					if (PasswordHashes.matches(storedPassword, user.getPassword()))
+					{
+						delete.setString(1, write.getUserKey());
+						results[i] = delete.executeUpdate() > 0;
+					}
+					break;
+				case UPDATE_PASSWORD:
+					User tempUser = new User(write.getUserKey(), write.getNewPasswordPlainText());
+
+					update.setString(1, this.hashForStorage(tempUser.getPassword()));
+					update.setString(2, write.getUserKey());
+					results[i] = update.executeUpdate() > 0;
+					break;
+				}
+			}
+
+			conn.commit();
+			committed = true;
+		}
+		catch (SQLException e)
+		{
+			throw new SaveFailedException("batch of " + batch.size() + " writes failed.", e);
+		}
+		catch (NamingException e)
+		{
+			throw new SaveFailedException(e);
+		}
+		finally
+		{
+			// whatever was thrown, including a RuntimeException from a write, nothing of the batch may
+			// be committed when autocommit is turned back on
+			if (!committed)
+				this.rollback(conn);
+
+			for (PreparedStatement stmt : statements)
+			{
+				try
+				{
+					stmt.close();
+				}
+				catch (SQLException e)
+				{
+					// closing the connection releases it anyway
+				}
+			}
+
+			if (conn != null)
+			{
+				try
+				{
+					conn.setAutoCommit(true);
+					conn.close();
+				}
+				catch (SQLException e)
+				{
+					e.printStackTrace();
+				}
+			}
+
+			for (int i = locks.size() - 1; i >= 0; i--)
+				locks.get(i).unlock();
+		}
+
+		// only now that they are committed do the added users get their uids
+		for (int i = 0; i < results.length; i++)
+		{
+			if (results[i] && batch.get(i).getKind() == UserWrite.Kind.ADD)
+				batch.get(i).getUser().setUid(newUids[i]);
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return the password stored for userKey; "" if the user exists without one; null if the user
+	 *         does not exist.
+	 */
+	private String lookupStoredPassword(PreparedStatement select, String userKey)
+			throws SQLException
+	{
+		select.setString(1, userKey);
+		ResultSet rs = select.executeQuery();
+
+		try
+		{
+			if (!rs.next())
+				return null;
+
+			String storedPassword = rs.getString(COL_PASSWORD);
+
+			return storedPassword == null ? "" : storedPassword;
+		}
+		finally
+		{
+			rs.close();
+		}
+	}
+
+	private void rollback(Connection conn)
+	{
+		if (conn != null)
+		{
+			try
+			{
+				conn.rollback();
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Inserts the information for a new user into the database. Does not check to see if the user
 	 * exists; this should be done prior to calling this method.
@@ -183,7 +523,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @return the auto-increment UID for the user. -1 if there was an error.
 	 * @throws SaveFailedException
 	 */
-	protected synchronized long performInsertUser(String userKey, String password, String auxUserData)
+	protected long performInsertUser(String userKey, String password, String auxUserData)
 			throws SaveFailedException
 	{
 		long userId = -1;
@@ -207,7 +547,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 			if (autoGenKeys.next())
 				userId = autoGenKeys.getLong(1);
 
-			debug("new user_id generated: " + userId);
+			AuthDiagnostics.debug(AuthenticationListDBImpl.class, "new user_id generated", "uid", userId);
 		}
 		catch (SQLException e)
 		{
@@ -231,7 +571,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @param userKey
 	 * @return
 	 */
-	protected synchronized UserWithAuxData retrieveUserFromDB(String userKey)
+	protected UserWithAuxData retrieveUserFromDB(String userKey)
 	{
 		UserWithAuxData foundUser = null;
 
@@ -288,7 +628,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @return
 	 */
 	@Override
-	public synchronized boolean contains(U entry)
+	public boolean contains(U entry)
 	{
 		return this.retrieveUserFromDB(entry.getUserKey()) != null;
 	}
@@ -300,7 +640,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @return
 	 */
 	@Override
-	public synchronized int getAccessLevel(U entry)
+	public int getAccessLevel(U entry)
 	{
 		return this.getAccessLevel(entry.getUserKey());
 	}
@@ -312,7 +652,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @return
 	 */
 	@Override
-	public synchronized int getAccessLevel(String userKey)
+	public int getAccessLevel(String userKey)
 	{
 		UserWithAuxData foundUser = this.retrieveUserFromDB(userKey);
 
@@ -330,46 +670,58 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @return
 	 */
 	@Override
-	public synchronized boolean isValid(U entry)
+	public boolean isValid(U entry)
 	{
-		UserWithAuxData foundUser = this.retrieveUserFromDB(entry.getUserKey());
-
-		return ((foundUser != null) && (entry.getPassword() != null) && entry
-				.compareHashedPassword(this.retrievePassword(entry.getUserKey())));
+		return this.retrieveVerifiedUser(entry) != null;
 	}
 
 	/**
-	 * Looks up the hashed password in the database and returns it.
+	 * Looks up the stored credentials for entry's user key and checks entry's password against them,
+	 * using a single query. Callers that need the user's uid or level after a successful check (such
+	 * as logging in) should use the returned object, rather than looking the user up again.
 	 * 
-	 * @param email
-	 * @return
+	 * @param entry
+	 *          the user key and hashed password to verify.
+	 * @return a UserWithAuxData whose uid, level, and aux data are filled in from the database, if the
+	 *         user key exists and the password matches; null otherwise. The password of the returned
+	 *         object is not populated.
 	 */
-	private String retrievePassword(String userKey)
+	protected UserWithAuxData retrieveVerifiedUser(U entry)
 	{
-		String password = null;
+		if (entry.getPassword() == null)
+			return null;
+
+		UserWithAuxData verifiedUser = null;
 
 		ConnectionWithAutoClose connection = null;
-		PreparedStatementWithAutoClose selectUserStmt = null;
+		PreparedStatementWithAutoClose stmt = null;
 		ResultSet rs = null;
 
 		try
 		{
 			connection = this.getAutoClosingConnection();
 
-			selectUserStmt = connection.prepareStatement(PREPARED_SELECT_USER_BY_USER_KEY);
-			selectUserStmt.setString(1, userKey);
+			stmt = connection.prepareStatement(PREPARED_SELECT_CREDENTIALS_BY_USER_KEY);
+			stmt.setString(1, entry.getUserKey());
+
+			rs = stmt.executeQuery();
 
-			rs = selectUserStmt.executeQuery();
 			if (rs.next())
-				password = rs.getString(COL_PASSWORD);
-			else
-				password = null;
+			{
+				String storedPassword = rs.getString(COL_PASSWORD);
+
+				if (PasswordHashes.matches(storedPassword, entry.getPassword()))
+				{
+					verifiedUser = new UserWithAuxData(entry.getUserKey(), null, rs
+							.getString(COL_AUX_USER_DATA));
+					verifiedUser.setLevel(rs.getInt(COL_LEVEL));
+					verifiedUser.setUid(rs.getLong(DB_COL_USER_ID));
+				}
+			}
 		}
-		catch (SQLException e1)
+		catch (SQLException e)
 		{
-			e1.printStackTrace();
-
-			return null;
+			e.printStackTrace();
 		}
 		finally
 		{
@@ -377,7 +729,7 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 				connection.close();
 		}
 
-		return password;
+		return verifiedUser;
 	}
 
 	/**
@@ -392,7 +744,30 @@ public class AuthenticationListDBImpl<U extends User> extends Debug implements
 	 * @throws SaveFailedException
 	 */
 	@Override
-	public synchronized boolean removeUser(U user) throws SaveFailedException
+	public boolean removeUser(U user) throws SaveFailedException
+	{
+		ReentrantLock lock = userKeyLocks.lockFor(user.getUserKey());
+		lock.lock();
+
+		try
+		{
+			return this.performRemoveUser(user);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes user from the database if its password matches; the caller must hold the lock for its
+	 * user key.
+	 * 
+	 * @param user
+	 * @return true if the user was removed.
+	 * @throws SaveFailedException
+	 */
+	private boolean performRemoveUser(U user) throws SaveFailedException
 	{
 		if (this.isValid(user))
 		{
@@ -0,0 +1,313 @@
+package ecologylab.authentication;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ecologylab.authentication.translationScope.UserTranslationScope;
+import ecologylab.generic.Debug;
+import ecologylab.serialization.SIMPLTranslationException;
+import ecologylab.serialization.SimplTypesScope;
+import ecologylab.serialization.formatenums.StringFormat;
+
+/**
+ * An append-only log of the changes made to an AuthenticationListXMLImpl since its XML snapshot was
+ * last written. Each change is one small record, so adding or removing a user costs a single
+ * append, rather than re-serializing every user.
+ * 
+ * Each record is framed as its length, a type byte, its payload, and a CRC32 of the type and
+ * payload. An added user's payload is the user serialized with the UserTranslationScope, so
+ * subclasses of User are recorded in full; a removal's payload is the user key. If the server stops
+ * part-way through writing a record, replay() discards the incomplete tail.
+ * 
+ * Replaying a record is idempotent, so a journal may safely be replayed over a snapshot that
+ * already contains some of its changes (as happens if the server stops between writing a snapshot
+ * and truncating the journal).
+ * 
+ * Instances of this are not thread safe; AuthenticationListXMLImpl calls them while holding its own
+ * monitor.
+ */
+public class AuthenticationListJournal extends Debug
+{
+	static final byte										RECORD_ADD		= 1;
+
+	static final byte										RECORD_REMOVE	= 2;
+
+	/** Upper bound on a record's length, used to detect a corrupt length field. */
+	static final int										MAX_RECORD		= 1 << 20;
+
+	private final File									file;
+
+	private final boolean								syncEachRecord;
+
+	private FileOutputStream						out;
+
+	private int													recordCount;
+
+	/** Reused to assemble each record, so it can be written with one call. */
+	private final ByteArrayOutputStream	buffer				= new ByteArrayOutputStream(256);
+
+	private final CRC32									crc						= new CRC32();
+
+	/**
+	 * @param file
+	 *          the journal file; created if it does not exist.
+	 * @param syncEachRecord
+	 *          if true, each record is forced to the storage device before append returns; if false,
+	 *          records are handed to the operating system, so they survive the server stopping, but
+	 *          not necessarily the machine.
+	 */
+	public AuthenticationListJournal(File file, boolean syncEachRecord)
+	{
+		this.file = file;
+		this.syncEachRecord = syncEachRecord;
+	}
+
+	/**
+	 * Applies every complete record in the journal to users, then opens the journal for appending.
+	 * An incomplete or corrupt record ends the replay, and it and anything after it are truncated.
+	 * A complete record whose user cannot be translated stops the replay with an IOException, leaving
+	 * the journal as it is.
+	 * 
+	 * @param users
+	 *          the users loaded from the snapshot, keyed on user key; modified in place.
+	 * @return the highest uid among the users added by the journal; -1 if none were.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public <U extends User> long replay(Map<String, U> users) throws IOException
+	{
+		long highestUid = -1;
+		long validLength = 0;
+		recordCount = 0;
+
+		if (file.exists())
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			SimplTypesScope userScope = UserTranslationScope.get();
+
+			try
+			{
+				while (true)
+				{
+					int length;
+					try
+					{
+						length = in.readInt();
+					}
+					catch (EOFException e)
+					{
+						break;
+					}
+
+					if (length < 1 || length > MAX_RECORD)
+						break;
+
+					byte[] record = new byte[length];
+					in.readFully(record);
+					int storedCrc = in.readInt();
+
+					crc.reset();
+					crc.update(record, 0, length);
+
+					if ((int) crc.getValue() != storedCrc)
+						break;
+
+					DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+					byte type = recordIn.readByte();
+					String payload = recordIn.readUTF();
+
+					if (type == RECORD_ADD)
+					{
+						U user = (U) userScope.deserialize(payload, StringFormat.XML);
+						users.put(user.getUserKey(), user);
+
+						highestUid = Math.max(highestUid, user.getUid());
+					}
+					else if (type == RECORD_REMOVE)
+					{
+						users.remove(payload);
+					}
+
+					validLength += 4 + length + 4;
+					recordCount++;
+				}
+			}
+			catch (EOFException e)
+			{
+				// incomplete final record
+			}
+			catch (SIMPLTranslationException e)
+			{
+				// the record is intact, so this is not a torn write; do not discard anything
+				throw new IOException("could not translate a user recorded in " + file + ": " + e);
+			}
+			finally
+			{
+				in.close();
+			}
+
+			if (validLength < file.length())
+			{
+				warning("discarding " + (file.length() - validLength)
+						+ " bytes after the last complete record in " + file);
+				this.truncateTo(validLength);
+			}
+		}
+
+		out = new FileOutputStream(file, true);
+
+		return highestUid;
+	}
+
+	/**
+	 * Records that user was added.
+	 * 
+	 * @throws IOException
+	 *           if the record could not be written; in that case, the change must not be applied.
+	 */
+	public void appendAdd(User user) throws IOException
+	{
+		String xml;
+
+		try
+		{
+			xml = SimplTypesScope.serialize(user, StringFormat.XML).toString();
+		}
+		catch (SIMPLTranslationException e)
+		{
+			throw new IOException("could not serialize user " + user.getUserKey() + ": " + e);
+		}
+
+		this.append(RECORD_ADD, xml);
+	}
+
+	/**
+	 * Records that the user with userKey was removed.
+	 * 
+	 * @throws IOException
+	 *           if the record could not be written; in that case, the change must not be applied.
+	 */
+	public void appendRemove(String userKey) throws IOException
+	{
+		this.append(RECORD_REMOVE, userKey);
+	}
+
+	private void append(byte type, String payload) throws IOException
+	{
+		if (out == null)
+			throw new IOException("journal " + file + " has not been replayed, or has been closed.");
+
+		buffer.reset();
+		DataOutputStream record = new DataOutputStream(buffer);
+		record.writeByte(type);
+		record.writeUTF(payload);
+
+		byte[] body = buffer.toByteArray();
+		crc.reset();
+		crc.update(body, 0, body.length);
+
+		// assemble the whole frame first, so that it reaches the file in a single write
+		buffer.reset();
+		record.writeInt(body.length);
+		record.write(body);
+		record.writeInt((int) crc.getValue());
+
+		buffer.writeTo(out);
+
+		if (syncEachRecord)
+			out.getFD().sync();
+
+		recordCount++;
+	}
+
+	/**
+	 * Forces every record appended so far to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException
+	{
+		if (out != null)
+			out.getFD().sync();
+	}
+
+	/**
+	 * Discards every record; called once a snapshot containing them has been written.
+	 * 
+	 * @throws IOException
+	 */
+	public void truncate() throws IOException
+	{
+		out.getChannel().truncate(0);
+		recordCount = 0;
+	}
+
+	/**
+	 * @return the length of the journal, in bytes, to pass to rollBack().
+	 * @throws IOException
+	 */
+	public long length() throws IOException
+	{
+		return (out == null) ? file.length() : out.getChannel().size();
+	}
+
+	/**
+	 * Discards every record appended since the journal was length bytes long and held recordCount
+	 * records; used to undo the records of a batch that could not be committed.
+	 * 
+	 * @throws IOException
+	 */
+	public void rollBack(long length, int recordCount) throws IOException
+	{
+		out.getChannel().truncate(length);
+		this.recordCount = recordCount;
+	}
+
+	private void truncateTo(long length) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			raf.setLength(length);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the number of records in the journal.
+	 */
+	public int getRecordCount()
+	{
+		return recordCount;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public void close() throws IOException
+	{
+		if (out != null)
+		{
+			out.close();
+			out = null;
+		}
+	}
+}
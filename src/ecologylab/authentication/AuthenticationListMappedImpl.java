@@ -0,0 +1,1005 @@
+package ecologylab.authentication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ecologylab.authentication.password.PasswordDigester;
+import ecologylab.authentication.password.PasswordHasher;
+import ecologylab.authentication.password.PasswordHashes;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * An AuthenticationList kept in a memory-mapped file rather than on the heap, for user bases too
+ * large to hold as User objects. The file is an open-addressing hash table of fixed-size records,
+ * keyed on the UTF-8 bytes of the user key; each record holds the key, the stored password hash (as
+ * raw digest bytes for legacy hashes), the level and the uid. Opening a list maps the file and
+ * reads its header, and lookups touch only the records they probe, so heap usage and start-up time
+ * do not grow with the number of users.
+ * 
+ * The file is mapped in chunks of CHUNK_SIZE bytes, so it may exceed 2GB. When the table becomes
+ * too full, it is rebuilt into a new file with twice the capacity, which replaces the old one.
+ * 
+ * Lookups share a read lock, and changes take the write lock. Changes are written to the mapping,
+ * so they survive the server stopping as soon as they are made; save() (called after each change
+ * when autoSave is on; it is off by default, since forcing the mapping costs a device write per
+ * change) also forces them to the storage device. If the machine stops before a save(), the
+ * header's counts may be stale; the next open() notices and recounts them.
+ * 
+ * User keys are limited to KEY_MAX_BYTES bytes of UTF-8, and stored password hashes to
+ * PASSWORD_MAX_BYTES bytes.
+ */
+public class AuthenticationListMappedImpl<U extends User> implements AuthenticationList<U>
+{
+	/** "AUMX", the first four bytes of every index file. */
+	public static final int				MAGIC								= 0x41554D58;
+
+	public static final short			VERSION							= 1;
+
+	public static final int				RECORD_SIZE					= 256;
+
+	public static final int				KEY_MAX_BYTES				= 96;
+
+	public static final int				PASSWORD_MAX_BYTES	= 128;
+
+	public static final long			DEFAULT_CAPACITY		= 1 << 16;
+
+	public static final long			MAX_CAPACITY				= 1L << 31;
+
+	static final int							CHUNK_SHIFT					= 30;
+
+	/** Each chunk holds a whole number of records, so no record straddles two mappings. */
+	static final long							CHUNK_SIZE					= 1L << CHUNK_SHIFT;
+
+	private static final int			RECORD_SHIFT				= 8;
+
+	// header fields, in the first record-sized block of the file
+
+	private static final int			H_MAGIC							= 0;
+
+	private static final int			H_VERSION						= 4;
+
+	private static final int			H_CLEAN							= 6;
+
+	private static final int			H_CAPACITY					= 8;
+
+	private static final int			H_COUNT							= 16;
+
+	private static final int			H_TOMBSTONES				= 24;
+
+	private static final int			H_LAST_UID					= 32;
+
+	// record fields
+
+	private static final int			R_STATE							= 0;
+
+	private static final int			R_HASH_FORMAT				= 1;
+
+	private static final int			R_KEY_LENGTH				= 2;
+
+	private static final int			R_PASSWORD_LENGTH		= 3;
+
+	private static final int			R_KEY_HASH					= 4;
+
+	private static final int			R_LEVEL							= 8;
+
+	private static final int			R_UID								= 12;
+
+	private static final int			R_KEY								= 20;
+
+	private static final int			R_PASSWORD					= R_KEY + KEY_MAX_BYTES;
+
+	private static final byte			EMPTY								= 0;
+
+	private static final byte			USED								= 1;
+
+	/** A removed record; probes continue past it. */
+	private static final byte			DELETED							= 2;
+
+	private static final byte			HASH_DIGEST					= 0;
+
+	private static final byte			HASH_STRING					= 1;
+
+	private static final Charset	UTF_8								= Charset.forName("UTF-8");
+
+	private final File						file;
+
+	private final ReentrantReadWriteLock	lock	= new ReentrantReadWriteLock();
+
+	/** Replaced, under the write lock, when the table grows; null once closed. */
+	private Table									table;
+
+	private long									count;
+
+	private long									tombstones;
+
+	private long									lastUID;
+
+	private boolean								autoSave						= false;
+
+	private PasswordHasher				passwordHasher			= null;
+
+	private AuthenticationListMappedImpl(File file, Table table)
+	{
+		this.file = file;
+		this.table = table;
+	}
+
+	/**
+	 * Opens the index in file, or creates an empty one with DEFAULT_CAPACITY slots.
+	 * 
+	 * @see #open(File, long)
+	 */
+	public static <U extends User> AuthenticationListMappedImpl<U> open(File file)
+			throws SaveFailedException
+	{
+		return open(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens the index in file, or, if there is none, creates an empty one.
+	 * 
+	 * @param file
+	 * @param initialCapacity
+	 *          the number of slots to create a new index with, rounded up to a power of two; ignored
+	 *          if file exists. An index holds up to three quarters of its capacity before it grows.
+	 * @throws SaveFailedException
+	 *           if the file could not be mapped, or is not an index of a supported version.
+	 */
+	public static <U extends User> AuthenticationListMappedImpl<U> open(File file,
+			long initialCapacity) throws SaveFailedException
+	{
+		try
+		{
+			if (!file.exists() || file.length() == 0)
+			{
+				Table table = Table.create(file, roundUpCapacity(initialCapacity));
+				AuthenticationListMappedImpl<U> list = new AuthenticationListMappedImpl<U>(file, table);
+				list.writeHeader(true);
+
+				return list;
+			}
+
+			Table table = Table.map(file);
+			ByteBuffer header = table.chunks[0];
+
+			if (header.getInt(H_MAGIC) != MAGIC)
+				throw new SaveFailedException(file + " is not an authentication list index.");
+
+			if (header.getShort(H_VERSION) != VERSION)
+				throw new SaveFailedException(file + " is index version " + header.getShort(H_VERSION)
+						+ "; only version " + VERSION + " is supported.");
+
+			AuthenticationListMappedImpl<U> list = new AuthenticationListMappedImpl<U>(file, table);
+			list.count = header.getLong(H_COUNT);
+			list.tombstones = header.getLong(H_TOMBSTONES);
+			list.lastUID = header.getLong(H_LAST_UID);
+
+			if (header.getShort(H_CLEAN) == 0)
+				list.recount();
+
+			return list;
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not map " + file, e);
+		}
+	}
+
+	private static long roundUpCapacity(long capacity)
+	{
+		long rounded = 16;
+
+		while (rounded < capacity && rounded < MAX_CAPACITY)
+			rounded <<= 1;
+
+		return rounded;
+	}
+
+	/**
+	 * Adds entry, hashing its password with the PasswordHasher if one is set, and allocating its uid.
+	 * 
+	 * @throws IllegalArgumentException
+	 *           if entry's user key or stored password is too long to fit in a record.
+	 */
+	public boolean addUser(U entry) throws SaveFailedException
+	{
+		byte[] key = keyBytes(entry.getUserKey());
+
+		lock.writeLock().lock();
+
+		try
+		{
+			Table t = this.openTable();
+			int keyHash = hash(key);
+
+			// a versioned hash is a stored form, which a client may not choose
+			if (this.find(t, key, keyHash) >= 0 || PasswordHashes.isVersioned(entry.getPassword()))
+				return false;
+
+			if (passwordHasher != null)
+				entry.setHashedPassword(passwordHasher.hash(entry.getPassword()));
+
+			// check that the password fits before allocating a uid for it
+			passwordBytes(entry);
+
+			entry.setUid(lastUID++);
+			this.insert(key, keyHash, entry);
+			this.changed();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies users, such as those of an AuthenticationListXMLImpl being migrated, into this as they
+	 * are: their stored passwords are not re-hashed, and their uids are kept. Users whose keys are
+	 * already present are skipped.
+	 * 
+	 * @return the number of users added.
+	 * @throws SaveFailedException
+	 * @throws IllegalArgumentException
+	 *           if a user's key or stored password is too long to fit in a record; the users before
+	 *           it have been added.
+	 */
+	public int importUsers(Collection<? extends User> users) throws SaveFailedException
+	{
+		int added = 0;
+
+		lock.writeLock().lock();
+
+		try
+		{
+			for (User user : users)
+			{
+				byte[] key = keyBytes(user.getUserKey());
+				int keyHash = hash(key);
+
+				if (this.find(this.openTable(), key, keyHash) >= 0)
+					continue;
+
+				this.insert(key, keyHash, user);
+				lastUID = Math.max(lastUID, user.getUid() + 1);
+				added++;
+			}
+
+			this.changed();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		return added;
+	}
+
+	/**
+	 * Copies every user in list into this, as importUsers() does, and carries over its next uid.
+	 * 
+	 * @return the number of users added.
+	 * @throws SaveFailedException
+	 */
+	public int importFrom(AuthenticationListXMLImpl<?> list) throws SaveFailedException
+	{
+		int added = this.importUsers(list.users());
+
+		lock.writeLock().lock();
+
+		try
+		{
+			lastUID = Math.max(lastUID, list.getLastUID());
+			this.changed();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		return added;
+	}
+
+	public boolean contains(U entry)
+	{
+		return this.contains(entry.getUserKey());
+	}
+
+	public boolean contains(String userKey)
+	{
+		byte[] key = keyBytesOrNull(userKey);
+
+		if (key == null)
+			return false;
+
+		lock.readLock().lock();
+
+		try
+		{
+			return this.find(this.openTable(), key, hash(key)) >= 0;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getAccessLevel(U entry)
+	{
+		return this.getAccessLevel(entry.getUserKey());
+	}
+
+	/**
+	 * @return the level of the user with userKey; -1 if there is no such user.
+	 */
+	public int getAccessLevel(String userKey)
+	{
+		byte[] key = keyBytesOrNull(userKey);
+
+		if (key == null)
+			return -1;
+
+		lock.readLock().lock();
+
+		try
+		{
+			Table t = this.openTable();
+			long slot = this.find(t, key, hash(key));
+
+			if (slot < 0)
+				return -1;
+
+			return t.chunkFor(slot).getInt(t.positionOf(slot) + R_LEVEL);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean isValid(U entry)
+	{
+		byte[] key = keyBytesOrNull(entry.getUserKey());
+
+		if (key == null)
+			return false;
+
+		lock.readLock().lock();
+
+		try
+		{
+			Table t = this.openTable();
+			long slot = this.find(t, key, hash(key));
+
+			return slot >= 0 && this.passwordMatches(t, slot, entry);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the user with entry's user key, if entry's password matches. The record is wiped, so
+	 * the removed user's password hash does not linger in the file.
+	 */
+	public boolean removeUser(U entry) throws SaveFailedException
+	{
+		byte[] key = keyBytesOrNull(entry.getUserKey());
+
+		if (key == null)
+			return false;
+
+		lock.writeLock().lock();
+
+		try
+		{
+			Table t = this.openTable();
+			long slot = this.find(t, key, hash(key));
+
+			if (slot < 0 || !this.passwordMatches(t, slot, entry))
+				return false;
+
+			ByteBuffer chunk = t.chunkFor(slot);
+			int position = t.positionOf(slot);
+
+			for (int i = 1; i < RECORD_SIZE; i++)
+				chunk.put(position + i, (byte) 0);
+
+			chunk.put(position + R_STATE, DELETED);
+
+			count--;
+			tombstones++;
+			this.changed();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @see ecologylab.authentication.AuthenticationList#setUID(ecologylab.authentication.User)
+	 */
+	public void setUID(U entry)
+	{
+		byte[] key = keyBytesOrNull(entry.getUserKey());
+
+		if (key == null)
+			return;
+
+		lock.readLock().lock();
+
+		try
+		{
+			Table t = this.openTable();
+			long slot = this.find(t, key, hash(key));
+
+			if (slot >= 0)
+				entry.setUid(t.chunkFor(slot).getLong(t.positionOf(slot) + R_UID));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces every change to the storage device, and marks the header clean.
+	 */
+	public void save() throws SaveFailedException
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			this.writeHeader(true);
+			this.openTable().force();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Saves, and releases the mappings; this may not be used afterwards.
+	 * 
+	 * @throws SaveFailedException
+	 */
+	public void close() throws SaveFailedException
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			if (table == null)
+				return;
+
+			this.save();
+			table = null;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of users.
+	 */
+	public long size()
+	{
+		lock.readLock().lock();
+
+		try
+		{
+			return count;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean isAutoSave()
+	{
+		return autoSave;
+	}
+
+	/**
+	 * @param autoSave
+	 *          if true, every change is forced to the storage device before it returns; if false (the
+	 *          default), changes reach the device when the operating system writes them back, or at
+	 *          the next save().
+	 */
+	public void setAutoSave(boolean autoSave)
+	{
+		this.autoSave = autoSave;
+	}
+
+	public PasswordHasher getPasswordHasher()
+	{
+		return passwordHasher;
+	}
+
+	/**
+	 * Sets the PasswordHasher used to hash the passwords of users as they are added. Users already in
+	 * the index keep their stored hashes.
+	 * 
+	 * @param passwordHasher
+	 */
+	public void setPasswordHasher(PasswordHasher passwordHasher)
+	{
+		this.passwordHasher = passwordHasher;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AuthenticationList containing " + this.size() + " entries.";
+	}
+
+	/**
+	 * Cloning AuthenticationLists is not allowed, because it is a security violation.
+	 * 
+	 * This method just throws an UnsupportedOperationException.
+	 */
+	@Override
+	public final Object clone() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(
+				"Cannot clone an AuthenticationList, for security reasons.");
+	}
+
+	private Table openTable()
+	{
+		Table t = this.table;
+
+		if (t == null)
+			throw new IllegalStateException(file + " has been closed.");
+
+		return t;
+	}
+
+	/**
+	 * Called, under the write lock, after each change.
+	 */
+	private void changed() throws SaveFailedException
+	{
+		if (autoSave)
+		{
+			this.save();
+		}
+		else
+		{
+			// stays dirty until the next save(), so that a crash before then is noticed on open
+			this.writeHeader(false);
+		}
+	}
+
+	private void writeHeader(boolean clean)
+	{
+		this.writeHeader(this.openTable(), clean, tombstones);
+	}
+
+	private void writeHeader(Table t, boolean clean, long tombstones)
+	{
+		ByteBuffer header = t.chunks[0];
+
+		header.putInt(H_MAGIC, MAGIC);
+		header.putShort(H_VERSION, VERSION);
+		header.putShort(H_CLEAN, (short) (clean ? 1 : 0));
+		header.putLong(H_CAPACITY, t.capacity);
+		header.putLong(H_COUNT, count);
+		header.putLong(H_TOMBSTONES, tombstones);
+		header.putLong(H_LAST_UID, lastUID);
+	}
+
+	/**
+	 * Recomputes the header's counts from the records, after an unclean shutdown.
+	 */
+	private void recount()
+	{
+		Table t = this.table;
+		count = 0;
+		tombstones = 0;
+
+		for (long slot = 0; slot < t.capacity; slot++)
+		{
+			ByteBuffer chunk = t.chunkFor(slot);
+			int position = t.positionOf(slot);
+			byte state = chunk.get(position + R_STATE);
+
+			if (state == USED)
+			{
+				count++;
+				lastUID = Math.max(lastUID, chunk.getLong(position + R_UID) + 1);
+			}
+			else if (state == DELETED)
+			{
+				tombstones++;
+			}
+		}
+
+		this.writeHeader(false);
+	}
+
+	/**
+	 * @return the slot holding key; -1 if there is none.
+	 */
+	private long find(Table t, byte[] key, int keyHash)
+	{
+		for (long slot = keyHash & t.mask, probes = 0; probes < t.capacity; slot = (slot + 1)
+				& t.mask, probes++)
+		{
+			ByteBuffer chunk = t.chunkFor(slot);
+			int position = t.positionOf(slot);
+			byte state = chunk.get(position + R_STATE);
+
+			if (state == EMPTY)
+				return -1;
+
+			if (state == USED && chunk.getInt(position + R_KEY_HASH) == keyHash
+					&& keyEquals(chunk, position, key))
+				return slot;
+		}
+
+		return -1;
+	}
+
+	private static boolean keyEquals(ByteBuffer chunk, int position, byte[] key)
+	{
+		if ((chunk.get(position + R_KEY_LENGTH) & 0xFF) != key.length)
+			return false;
+
+		for (int i = 0; i < key.length; i++)
+		{
+			if (chunk.get(position + R_KEY + i) != key[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes user into the first free slot for keyHash, growing the table first if it is too full.
+	 * The caller has checked that key is not present.
+	 */
+	private void insert(byte[] key, int keyHash, User user) throws SaveFailedException
+	{
+		boolean digest = isStoredAsDigest(user);
+		byte[] password = passwordBytes(user);
+
+		if ((count + tombstones + 1) * 4 > this.openTable().capacity * 3)
+			this.rebuild();
+
+		Table t = this.table;
+		long slot = keyHash & t.mask;
+
+		while (t.chunkFor(slot).get(t.positionOf(slot) + R_STATE) == USED)
+			slot = (slot + 1) & t.mask;
+
+		ByteBuffer chunk = t.chunkFor(slot);
+		int position = t.positionOf(slot);
+
+		if (chunk.get(position + R_STATE) == DELETED)
+			tombstones--;
+
+		chunk.put(position + R_HASH_FORMAT, digest ? HASH_DIGEST : HASH_STRING);
+		chunk.put(position + R_KEY_LENGTH, (byte) key.length);
+		chunk.put(position + R_PASSWORD_LENGTH, (byte) password.length);
+		chunk.putInt(position + R_KEY_HASH, keyHash);
+		chunk.putInt(position + R_LEVEL, user.getLevel());
+		chunk.putLong(position + R_UID, user.getUid());
+
+		for (int i = 0; i < key.length; i++)
+			chunk.put(position + R_KEY + i, key[i]);
+
+		for (int i = 0; i < password.length; i++)
+			chunk.put(position + R_PASSWORD + i, password[i]);
+
+		// marked used last, so that a record is never seen half-written by a later recount
+		chunk.put(position + R_STATE, USED);
+		count++;
+	}
+
+	/**
+	 * Copies every record into a new file, twice the size if the table is more than half full of
+	 * users (or the same size, to clear out removed records, if it is not), and replaces the old file
+	 * with it.
+	 */
+	private void rebuild() throws SaveFailedException
+	{
+		Table old = this.table;
+		long capacity = (count + 1) * 2 > old.capacity ? old.capacity * 2 : old.capacity;
+
+		if (capacity > MAX_CAPACITY)
+			throw new SaveFailedException(file + " cannot grow beyond " + MAX_CAPACITY + " slots.");
+
+		File newFile = new File(file.getPath() + ".rebuild");
+
+		Table rebuilt;
+
+		try
+		{
+			rebuilt = Table.create(newFile, capacity);
+
+			for (long slot = 0; slot < old.capacity; slot++)
+			{
+				ByteBuffer from = old.chunkFor(slot);
+				int fromPosition = old.positionOf(slot);
+
+				if (from.get(fromPosition + R_STATE) != USED)
+					continue;
+
+				long newSlot = from.getInt(fromPosition + R_KEY_HASH) & rebuilt.mask;
+
+				while (rebuilt.chunkFor(newSlot).get(rebuilt.positionOf(newSlot) + R_STATE) != EMPTY)
+					newSlot = (newSlot + 1) & rebuilt.mask;
+
+				ByteBuffer record = from.duplicate();
+				record.limit(fromPosition + RECORD_SIZE).position(fromPosition);
+
+				ByteBuffer to = rebuilt.chunkFor(newSlot).duplicate();
+				to.position(rebuilt.positionOf(newSlot));
+				to.put(record);
+			}
+
+			this.writeHeader(rebuilt, true, 0);
+			rebuilt.force();
+		}
+		catch (IOException e)
+		{
+			newFile.delete();
+			throw new SaveFailedException("could not rebuild " + file + " into " + newFile, e);
+		}
+
+		// the old mappings stay valid until they are collected, even once their file is replaced; until
+		// the new file has taken its place, lookups and changes keep going to the old one
+		if (!newFile.renameTo(file))
+		{
+			file.delete();
+
+			if (!newFile.renameTo(file))
+			{
+				newFile.delete();
+				throw new SaveFailedException("could not replace " + file + " with " + newFile);
+			}
+		}
+
+		this.table = rebuilt;
+		this.tombstones = 0;
+	}
+
+	private boolean passwordMatches(Table t, long slot, User entry)
+	{
+		ByteBuffer chunk = t.chunkFor(slot);
+		int position = t.positionOf(slot);
+
+		if (chunk.get(position + R_HASH_FORMAT) == HASH_DIGEST)
+		{
+			byte[] digest = entry.getPasswordDigest();
+
+			if (digest != null)
+			{
+				int difference = 0;
+
+				for (int i = 0; i < PasswordDigester.DIGEST_LENGTH; i++)
+					difference |= chunk.get(position + R_PASSWORD + i) ^ digest[i];
+
+				return difference == 0;
+			}
+		}
+
+		return PasswordHashes.matches(storedPassword(chunk, position), entry.getPassword());
+	}
+
+	private static String storedPassword(ByteBuffer chunk, int position)
+	{
+		byte[] password = new byte[chunk.get(position + R_PASSWORD_LENGTH) & 0xFF];
+
+		for (int i = 0; i < password.length; i++)
+			password[i] = chunk.get(position + R_PASSWORD + i);
+
+		if (chunk.get(position + R_HASH_FORMAT) == HASH_DIGEST)
+			return PasswordDigester.get().encode(password);
+
+		return new String(password, UTF_8);
+	}
+
+	/**
+	 * @return true if user's password is a legacy hash that encodes back to exactly the stored
+	 *         string, so that it can be stored as its raw digest.
+	 */
+	private static boolean isStoredAsDigest(User user)
+	{
+		byte[] digest = user.getPasswordDigest();
+
+		return digest != null && PasswordDigester.get().encode(digest).equals(user.getPassword());
+	}
+
+	/**
+	 * @return the bytes to store for user's password: the raw digest if isStoredAsDigest(), or the
+	 *         stored string's UTF-8 bytes.
+	 * @throws IllegalArgumentException
+	 *           if the stored string is longer than PASSWORD_MAX_BYTES.
+	 */
+	private static byte[] passwordBytes(User user)
+	{
+		if (isStoredAsDigest(user))
+			return user.getPasswordDigest();
+
+		String password = user.getPassword();
+		byte[] bytes = (password == null ? "" : password).getBytes(UTF_8);
+
+		if (bytes.length > PASSWORD_MAX_BYTES)
+			throw new IllegalArgumentException("stored password for " + user.getUserKey()
+					+ " is longer than " + PASSWORD_MAX_BYTES + " bytes.");
+
+		return bytes;
+	}
+
+	private static byte[] keyBytes(String userKey)
+	{
+		byte[] key = keyBytesOrNull(userKey);
+
+		if (key == null)
+			throw new IllegalArgumentException("user key " + userKey + " is longer than "
+					+ KEY_MAX_BYTES + " bytes.");
+
+		return key;
+	}
+
+	/**
+	 * @return userKey's UTF-8 bytes; null if it is too long to be stored (so it cannot be present).
+	 */
+	private static byte[] keyBytesOrNull(String userKey)
+	{
+		byte[] key = (userKey == null ? "" : userKey).getBytes(UTF_8);
+
+		return key.length <= KEY_MAX_BYTES ? key : null;
+	}
+
+	/**
+	 * FNV-1a, followed by a final mix so that keys differing only in their last bytes spread across
+	 * the table.
+	 */
+	static int hash(byte[] key)
+	{
+		int h = 0x811C9DC5;
+
+		for (byte b : key)
+		{
+			h ^= b & 0xFF;
+			h *= 0x01000193;
+		}
+
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	/**
+	 * The mappings of one index file.
+	 */
+	private static final class Table
+	{
+		final MappedByteBuffer[]	chunks;
+
+		final long								capacity;
+
+		final long								mask;
+
+		private Table(MappedByteBuffer[] chunks, long capacity)
+		{
+			this.chunks = chunks;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+		}
+
+		/**
+		 * Creates file, sized for capacity slots and the header, and maps it.
+		 */
+		static Table create(File file, long capacity) throws IOException
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try
+			{
+				// extending the file leaves it sparse, and its records EMPTY
+				raf.setLength(0);
+				raf.setLength((capacity + 1) << RECORD_SHIFT);
+
+				Table table = new Table(mapChunks(raf), capacity);
+				table.chunks[0].putLong(H_CAPACITY, capacity);
+
+				return table;
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+
+		/**
+		 * Maps an existing file.
+		 */
+		static Table map(File file) throws IOException
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try
+			{
+				MappedByteBuffer[] chunks = mapChunks(raf);
+				long capacity = chunks[0].getLong(H_CAPACITY);
+
+				if (capacity < 1 || Long.bitCount(capacity) != 1
+						|| (capacity + 1) << RECORD_SHIFT != raf.length())
+					throw new IOException(file + " has an invalid header.");
+
+				return new Table(chunks, capacity);
+			}
+			finally
+			{
+				// the mappings stay valid after the file is closed
+				raf.close();
+			}
+		}
+
+		private static MappedByteBuffer[] mapChunks(RandomAccessFile raf) throws IOException
+		{
+			long length = raf.length();
+
+			if (length < RECORD_SIZE)
+				throw new IOException("an index must be at least " + RECORD_SIZE + " bytes.");
+
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+			FileChannel channel = raf.getChannel();
+
+			for (int i = 0; i < chunks.length; i++)
+			{
+				long start = (long) i << CHUNK_SHIFT;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE,
+						length - start));
+			}
+
+			return chunks;
+		}
+
+		ByteBuffer chunkFor(long slot)
+		{
+			return chunks[(int) (((slot + 1) << RECORD_SHIFT) >>> CHUNK_SHIFT)];
+		}
+
+		int positionOf(long slot)
+		{
+			return (int) (((slot + 1) << RECORD_SHIFT) & (CHUNK_SIZE - 1));
+		}
+
+		void force()
+		{
+			for (MappedByteBuffer chunk : chunks)
+				chunk.force();
+		}
+	}
+}
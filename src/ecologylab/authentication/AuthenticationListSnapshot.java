@@ -0,0 +1,517 @@
+package ecologylab.authentication;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import ecologylab.authentication.password.PasswordDigester;
+import ecologylab.authentication.translationScope.UserTranslationScope;
+import ecologylab.oodss.exceptions.SaveFailedException;
+import ecologylab.serialization.SIMPLTranslationException;
+import ecologylab.serialization.SimplTypesScope;
+import ecologylab.serialization.formatenums.Format;
+import ecologylab.serialization.formatenums.StringFormat;
+
+/**
+ * A compact binary form of an AuthenticationListXMLImpl, for lists large enough that reading and
+ * writing XML through simpl dominates server start-up and compaction.
+ * 
+ * A snapshot is a header (MAGIC, VERSION, flags, lastUID, and the number of users), one record per
+ * user, and a CRC32 of everything before it. A record holds the user's type, its length-prefixed
+ * UTF-8 user key, its password hash, its level and uid, and, for a UserWithAuxData, its auxiliary
+ * data. A legacy SHA-256 hash is stored as its 32 raw bytes rather than as Base64; any other stored
+ * form (such as a versioned hash from a PasswordHasher) is stored as a string, unchanged. Any other
+ * subclass of User is stored as its simpl XML, as the journal stores it, so that its class and
+ * fields survive; such users are translated with the UserTranslationScope, as they are in the XML
+ * format, so their classes must be registered there.
+ * 
+ * Snapshots are read through a memory-mapped buffer, and written to a temporary file that is forced
+ * to disk and renamed into place, so a crash never leaves a partial snapshot behind. The checksum is
+ * verified before any user is added to the list.
+ * 
+ * Use convertXmlToSnapshot() and convertSnapshotToXml() (or main()) to move existing lists between
+ * the two formats; AuthenticationListXMLImpl.load() reads either.
+ */
+public class AuthenticationListSnapshot
+{
+	/** "AUTH", the first four bytes of every snapshot. */
+	public static final int				MAGIC							= 0x41555448;
+
+	/**
+	 * The version written. Version 1 snapshots, which have no TYPE_SERIALIZED records, are read too.
+	 */
+	public static final short			VERSION						= 2;
+
+	/** Extension that marks a new snapshot file, one that does not exist yet, as binary. */
+	public static final String		FILE_EXTENSION		= ".authsnap";
+
+	static final int							FLAG_AUTO_SAVE		= 0x01;
+
+	static final byte							TYPE_USER					= 0;
+
+	static final byte							TYPE_AUX_DATA			= 1;
+
+	/** Any other subclass of User, stored as its length-prefixed simpl XML. */
+	static final byte							TYPE_SERIALIZED		= 2;
+
+	/** The password is stored as the raw bytes of a SHA-256 digest. */
+	static final byte							HASH_DIGEST				= 0;
+
+	/** The password is stored as a string, in whatever form the list held it. */
+	static final byte							HASH_STRING				= 1;
+
+	/** magic, version, flags, lastUID, user count */
+	static final int							HEADER_LENGTH			= 4 + 2 + 2 + 8 + 4;
+
+	private static final int			CHECKSUM_LENGTH		= 4;
+
+	private static final Charset	UTF_8							= Charset.forName("UTF-8");
+
+	private AuthenticationListSnapshot()
+	{
+	}
+
+	/**
+	 * @return true if file exists and begins with MAGIC.
+	 */
+	public static boolean isSnapshot(File file)
+	{
+		if (!file.isFile() || file.length() < HEADER_LENGTH + CHECKSUM_LENGTH)
+			return false;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+			try
+			{
+				return in.readInt() == MAGIC;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if file is, or (if it does not exist yet) is named as, a binary snapshot.
+	 */
+	static boolean usesSnapshotFormat(File file)
+	{
+		if (file.exists())
+			return isSnapshot(file);
+
+		return file.getName().endsWith(FILE_EXTENSION);
+	}
+
+	/**
+	 * Writes every user in list to file. Users added or removed while this runs may or may not be
+	 * included; callers that need an exact snapshot must hold the list's monitor.
+	 * 
+	 * @throws SaveFailedException
+	 *           if the snapshot could not be written; file is then left as it was.
+	 */
+	public static void write(AuthenticationListXMLImpl<?> list, File file) throws SaveFailedException
+	{
+		List<User> users = new ArrayList<User>(list.users());
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+
+		try
+		{
+			FileOutputStream fileOut = new FileOutputStream(tempFile);
+
+			try
+			{
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new CheckedOutputStream(fileOut, crc), 64 * 1024));
+
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				out.writeShort(list.isAutoSave() ? FLAG_AUTO_SAVE : 0);
+				out.writeLong(list.getLastUID());
+				out.writeInt(users.size());
+
+				PasswordDigester digester = PasswordDigester.get();
+
+				for (User user : users)
+					writeUser(out, user, digester);
+
+				out.flush();
+
+				// the checksum covers everything written through out, so it bypasses it
+				new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+				fileOut.getFD().sync();
+			}
+			finally
+			{
+				fileOut.close();
+			}
+		}
+		catch (IOException e)
+		{
+			tempFile.delete();
+			throw new SaveFailedException("could not write " + tempFile, e);
+		}
+
+		if (!tempFile.renameTo(file))
+		{
+			file.delete();
+
+			if (!tempFile.renameTo(file))
+				throw new SaveFailedException("could not replace " + file + " with " + tempFile);
+		}
+	}
+
+	private static void writeUser(DataOutputStream out, User user, PasswordDigester digester)
+			throws IOException
+	{
+		if (user.getClass() != User.class && user.getClass() != UserWithAuxData.class)
+		{
+			out.writeByte(TYPE_SERIALIZED);
+
+			try
+			{
+				writeString(out, SimplTypesScope.serialize(user, StringFormat.XML).toString());
+			}
+			catch (SIMPLTranslationException e)
+			{
+				throw new IOException("could not serialize " + user.getUserKey(), e);
+			}
+
+			return;
+		}
+
+		boolean auxData = user instanceof UserWithAuxData;
+		out.writeByte(auxData ? TYPE_AUX_DATA : TYPE_USER);
+
+		writeString(out, user.getUserKey());
+
+		String password = user.getPassword();
+		byte[] digest = user.getPasswordDigest();
+
+		// only store raw bytes if they encode back to exactly the stored string
+		if (digest != null && password.equals(digester.encode(digest)))
+		{
+			out.writeByte(HASH_DIGEST);
+			out.write(digest);
+		}
+		else
+		{
+			out.writeByte(HASH_STRING);
+			writeString(out, password == null ? "" : password);
+		}
+
+		out.writeInt(user.getLevel());
+		out.writeLong(user.getUid());
+
+		if (auxData)
+		{
+			String aux = ((UserWithAuxData) user).getAuxUserData();
+			writeString(out, aux == null ? "" : aux);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(UTF_8);
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the snapshot in file into a new AuthenticationListXMLImpl.
+	 * 
+	 * @see #read(File, AuthenticationListXMLImpl)
+	 */
+	public static <U extends User> AuthenticationListXMLImpl<U> read(File file)
+			throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<U> list = new AuthenticationListXMLImpl<U>();
+		read(file, list);
+
+		return list;
+	}
+
+	/**
+	 * Maps the snapshot in file into memory, verifies its checksum, and adds each of its users to
+	 * list, along with its lastUID and autoSave settings.
+	 * 
+	 * @return the number of users read.
+	 * @throws SaveFailedException
+	 *           if file could not be read, is not a snapshot of a supported version, or is corrupt;
+	 *           in that case, nothing has been added to list.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <U extends User> int read(File file, AuthenticationListXMLImpl<U> list)
+			throws SaveFailedException
+	{
+		MappedByteBuffer buffer;
+
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+			try
+			{
+				long length = raf.length();
+
+				if (length < HEADER_LENGTH + CHECKSUM_LENGTH || length > Integer.MAX_VALUE)
+					throw new SaveFailedException(file + " is not a valid snapshot: its length is " + length);
+
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			}
+			finally
+			{
+				// the mapping stays valid after the channel is closed
+				raf.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not map " + file, e);
+		}
+
+		int dataLength = buffer.limit() - CHECKSUM_LENGTH;
+
+		if (checksum(buffer, dataLength) != buffer.getInt(dataLength))
+			throw new SaveFailedException(file + " is corrupt: its checksum does not match.");
+
+		buffer.limit(dataLength);
+
+		if (buffer.getInt() != MAGIC)
+			throw new SaveFailedException(file + " is not an authentication list snapshot.");
+
+		short version = buffer.getShort();
+		if (version < 1 || version > VERSION)
+			throw new SaveFailedException(file + " is snapshot version " + version
+					+ "; only versions up to " + VERSION + " are supported.");
+
+		int flags = buffer.getShort();
+		long lastUID = buffer.getLong();
+		int count = buffer.getInt();
+
+		List<User> users = new ArrayList<User>(Math.max(0, Math.min(count, dataLength / 16)));
+
+		try
+		{
+			PasswordDigester digester = PasswordDigester.get();
+			SimplTypesScope userScope = null;
+			byte[] scratch = new byte[256];
+
+			for (int i = 0; i < count; i++)
+			{
+				byte type = buffer.get();
+
+				if (type == TYPE_SERIALIZED)
+				{
+					if (userScope == null)
+						userScope = UserTranslationScope.get();
+
+					int xmlLength = buffer.getInt();
+					scratch = ensureCapacity(scratch, xmlLength);
+					users.add(readSerializedUser(file, userScope, readString(buffer, scratch, xmlLength)));
+
+					continue;
+				}
+				else if (type != TYPE_USER && type != TYPE_AUX_DATA)
+				{
+					throw new SaveFailedException(file + " is corrupt: unknown user type " + type);
+				}
+
+				User user = (type == TYPE_AUX_DATA) ? new UserWithAuxData() : new User();
+
+				int keyLength = buffer.getInt();
+				scratch = ensureCapacity(scratch, keyLength);
+				user.setUserKey(readString(buffer, scratch, keyLength));
+
+				byte hashFormat = buffer.get();
+
+				if (hashFormat == HASH_DIGEST)
+				{
+					byte[] digest = new byte[PasswordDigester.DIGEST_LENGTH];
+					buffer.get(digest);
+					user.setHashedPassword(digester.encode(digest), digest);
+				}
+				else
+				{
+					int passwordLength = buffer.getInt();
+					scratch = ensureCapacity(scratch, passwordLength);
+					user.setHashedPassword(readString(buffer, scratch, passwordLength));
+				}
+
+				user.setLevel(buffer.getInt());
+				user.setUid(buffer.getLong());
+
+				if (type == TYPE_AUX_DATA)
+				{
+					int auxLength = buffer.getInt();
+					scratch = ensureCapacity(scratch, auxLength);
+					((UserWithAuxData) user).setAuxUserData(readString(buffer, scratch, auxLength));
+				}
+
+				users.add(user);
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new SaveFailedException(file + " is corrupt: it ends part-way through a user.");
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new SaveFailedException(file + " is corrupt: " + e.getMessage());
+		}
+
+		for (User user : users)
+			list.putLoadedUser((U) user);
+
+		list.advanceLastUID(lastUID);
+		list.setAutoSave((flags & FLAG_AUTO_SAVE) != 0);
+
+		return users.size();
+	}
+
+	private static User readSerializedUser(File file, SimplTypesScope userScope, String xml)
+			throws SaveFailedException
+	{
+		Object user;
+
+		try
+		{
+			user = userScope.deserialize(xml, StringFormat.XML);
+		}
+		catch (SIMPLTranslationException e)
+		{
+			throw new SaveFailedException(file + " holds a user that could not be translated.", e);
+		}
+
+		if (!(user instanceof User))
+			throw new SaveFailedException(file + " holds a user whose class is not registered in "
+					+ UserTranslationScope.NAME);
+
+		return (User) user;
+	}
+
+	private static int checksum(MappedByteBuffer buffer, int length)
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+
+		buffer.position(0);
+
+		for (int remaining = length; remaining > 0;)
+		{
+			int n = Math.min(chunk.length, remaining);
+			buffer.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			remaining -= n;
+		}
+
+		buffer.position(0);
+
+		return (int) crc.getValue();
+	}
+
+	private static byte[] ensureCapacity(byte[] scratch, int length)
+	{
+		if (length < 0)
+			throw new IllegalArgumentException("negative string length " + length);
+
+		return (length <= scratch.length) ? scratch : new byte[Math.max(length, scratch.length * 2)];
+	}
+
+	private static String readString(MappedByteBuffer buffer, byte[] scratch, int length)
+	{
+		buffer.get(scratch, 0, length);
+
+		return new String(scratch, 0, length, UTF_8);
+	}
+
+	/**
+	 * Reads the XML authentication list in xmlFile and writes it as a binary snapshot to
+	 * snapshotFile.
+	 * 
+	 * @return the number of users converted.
+	 * @throws SaveFailedException
+	 */
+	public static int convertXmlToSnapshot(File xmlFile, File snapshotFile)
+			throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<User> list = new AuthenticationListXMLImpl<User>();
+		int users = AuthenticationListStreamLoader.load(xmlFile, list, null);
+
+		write(list, snapshotFile);
+
+		return users;
+	}
+
+	/**
+	 * Reads the binary snapshot in snapshotFile and writes it as an XML authentication list to
+	 * xmlFile.
+	 * 
+	 * @return the number of users converted.
+	 * @throws SaveFailedException
+	 */
+	public static int convertSnapshotToXml(File snapshotFile, File xmlFile)
+			throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<User> list = new AuthenticationListXMLImpl<User>();
+		int users = read(snapshotFile, list);
+
+		try
+		{
+			SimplTypesScope.serialize(list, xmlFile, Format.XML);
+		}
+		catch (SIMPLTranslationException e)
+		{
+			throw new SaveFailedException("could not write " + xmlFile, e);
+		}
+
+		return users;
+	}
+
+	/**
+	 * Converts an authentication list between the XML and binary formats; the direction is chosen by
+	 * the format of the input file.
+	 * 
+	 * @param args
+	 *          the input file and the output file.
+	 * @throws SaveFailedException
+	 */
+	public static void main(String[] args) throws SaveFailedException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("usage: AuthenticationListSnapshot <input file> <output file>");
+			System.exit(1);
+		}
+
+		File in = new File(args[0]);
+		File out = new File(args[1]);
+
+		if (isSnapshot(in))
+			System.out.println("converted " + convertSnapshotToXml(in, out) + " users to XML.");
+		else
+			System.out.println("converted " + convertXmlToSnapshot(in, out) + " users to a snapshot.");
+	}
+}
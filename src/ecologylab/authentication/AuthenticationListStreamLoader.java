@@ -0,0 +1,439 @@
+package ecologylab.authentication;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import ecologylab.authentication.translationScope.UserTranslationScope;
+import ecologylab.oodss.exceptions.SaveFailedException;
+import ecologylab.serialization.SIMPLTranslationException;
+import ecologylab.serialization.SimplTypesScope;
+import ecologylab.serialization.formatenums.StringFormat;
+
+/**
+ * Loads a serialized AuthenticationListXMLImpl one user at a time with a StAX parser, instead of
+ * translating the whole file into an object graph first. Each user is put into the list as soon as
+ * it has been read, so peak memory is the list itself, and (since the list's reads are lock-free)
+ * a server can look up users that have already been loaded while the rest of the file is still
+ * being read; see loadInBackground().
+ * 
+ * Reads the format that simpl writes for AuthenticationListXMLImpl. User and UserWithAuxData
+ * elements (including User's other tag, authentication_list_entry) are read directly, with their
+ * fields as attributes or as leaf child elements; element and attribute names are matched without
+ * regard to case or underscores, so that user_key, userKey, and the legacy username all name the
+ * same field. Any other element in the list's map, such as an application's subclass of User, is
+ * translated on its own with the UserTranslationScope, as the journal does, so that its class and
+ * fields are kept; an element that scope does not know fails the load, rather than being skipped.
+ */
+public class AuthenticationListStreamLoader
+{
+	/**
+	 * Receives progress reports from a load.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * Called every PROGRESS_INTERVAL users.
+		 * 
+		 * @param usersLoaded
+		 *          the number of users loaded so far.
+		 * @param bytesRead
+		 *          the number of bytes of the file read so far.
+		 * @param totalBytes
+		 *          the length of the file.
+		 */
+		void progress(int usersLoaded, long bytesRead, long totalBytes);
+
+		/**
+		 * Called once the whole file has been loaded.
+		 */
+		void finished(int usersLoaded);
+	}
+
+	public static final int	PROGRESS_INTERVAL	= 1000;
+
+	private AuthenticationListStreamLoader()
+	{
+	}
+
+	/**
+	 * Loads the list in file into a new AuthenticationListXMLImpl.
+	 * 
+	 * @see #load(File, AuthenticationListXMLImpl, ProgressListener)
+	 */
+	public static <U extends User> AuthenticationListXMLImpl<U> load(File file,
+			ProgressListener listener) throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<U> list = new AuthenticationListXMLImpl<U>();
+		load(file, list, listener);
+
+		return list;
+	}
+
+	/**
+	 * Reads every user in file into list, along with the list's lastUID and autoSave settings.
+	 * 
+	 * @param file
+	 *          a serialized AuthenticationListXMLImpl.
+	 * @param list
+	 *          the list to add the users to.
+	 * @param listener
+	 *          receives progress reports; may be null.
+	 * @return the number of users loaded.
+	 * @throws SaveFailedException
+	 *           if the file could not be read or parsed.
+	 */
+	public static <U extends User> int load(File file, AuthenticationListXMLImpl<U> list,
+			ProgressListener listener) throws SaveFailedException
+	{
+		CountingInputStream in = null;
+
+		try
+		{
+			in = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			int loaded = read(in, file.length(), list, listener);
+
+			if (listener != null)
+				listener.finished(loaded);
+
+			return loaded;
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not read " + file, e);
+		}
+		catch (XMLStreamException e)
+		{
+			throw new SaveFailedException("could not parse " + file, e);
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts loading file into list on a new daemon thread, and returns immediately. Users can be
+	 * looked up in list as soon as they have been loaded.
+	 * 
+	 * @return a Future that yields the number of users loaded, or the SaveFailedException that ended
+	 *         the load.
+	 */
+	public static <U extends User> Future<Integer> loadInBackground(final File file,
+			final AuthenticationListXMLImpl<U> list, final ProgressListener listener)
+	{
+		FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>()
+		{
+			public Integer call() throws SaveFailedException
+			{
+				return load(file, list, listener);
+			}
+		});
+
+		Thread loader = new Thread(task, "auth-list-loader");
+		loader.setDaemon(true);
+		loader.start();
+
+		return task;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <U extends User> int read(CountingInputStream in, long totalBytes,
+			AuthenticationListXMLImpl<U> list, ProgressListener listener) throws XMLStreamException
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+		int loaded = 0;
+		int depth = 0;
+
+		// the user being read, while inside its element
+		User user = null;
+		int userDepth = -1;
+
+		// the depth of the list's map of users, while inside it
+		int mapDepth = -1;
+		SimplTypesScope userScope = null;
+
+		// the name of the leaf field element being read, inside a user element
+		String fieldName = null;
+		StringBuilder fieldValue = new StringBuilder();
+
+		try
+		{
+			while (reader.hasNext())
+			{
+				switch (reader.next())
+				{
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					String name = normalize(reader.getLocalName());
+
+					if (depth == 1)
+					{
+						readListAttributes(reader, list);
+					}
+					else if (user == null && isUserElement(name))
+					{
+						user = "userwithauxdata".equals(name) ? new UserWithAuxData() : new User();
+						userDepth = depth;
+
+						for (int i = 0; i < reader.getAttributeCount(); i++)
+							setUserField(user, normalize(reader.getAttributeLocalName(i)), reader
+									.getAttributeValue(i));
+					}
+					else if (user == null && depth == mapDepth + 1)
+					{
+						if (userScope == null)
+							userScope = UserTranslationScope.get();
+
+						// reads through the element's end tag
+						list.putLoadedUser((U) translateUser(reader, userScope));
+						depth--;
+
+						if (++loaded % PROGRESS_INTERVAL == 0 && listener != null)
+							listener.progress(loaded, in.getCount(), totalBytes);
+					}
+					else if (user == null && depth == 2 && "authlist".equals(name))
+					{
+						mapDepth = depth;
+					}
+					else if (user != null && depth == userDepth + 1)
+					{
+						fieldName = name;
+						fieldValue.setLength(0);
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (fieldName != null)
+						fieldValue.append(reader.getText());
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					if (fieldName != null && depth == userDepth + 1)
+					{
+						setUserField(user, fieldName, fieldValue.toString());
+						fieldName = null;
+					}
+					else if (user != null && depth == userDepth)
+					{
+						list.putLoadedUser((U) user);
+						user = null;
+
+						if (++loaded % PROGRESS_INTERVAL == 0 && listener != null)
+							listener.progress(loaded, in.getCount(), totalBytes);
+					}
+					else if (depth == mapDepth)
+					{
+						mapDepth = -1;
+					}
+
+					depth--;
+					break;
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return loaded;
+	}
+
+	private static boolean isUserElement(String normalizedName)
+	{
+		return "user".equals(normalizedName) || "userwithauxdata".equals(normalizedName)
+				|| "authenticationlistentry".equals(normalizedName);
+	}
+
+	/**
+	 * Copies the element reader is at, through its end tag, and translates it with userScope.
+	 * 
+	 * @throws XMLStreamException
+	 *           if userScope does not translate the element into a User.
+	 */
+	private static User translateUser(XMLStreamReader reader, SimplTypesScope userScope)
+			throws XMLStreamException
+	{
+		String tag = reader.getLocalName();
+		StringWriter xml = new StringWriter();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(xml);
+
+		int depth = 0;
+
+		while (true)
+		{
+			switch (reader.getEventType())
+			{
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				writer.writeStartElement(reader.getLocalName());
+
+				for (int i = 0; i < reader.getAttributeCount(); i++)
+					writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+				break;
+
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				writer.writeCharacters(reader.getText());
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				writer.writeEndElement();
+				depth--;
+				break;
+			}
+
+			if (depth == 0)
+				break;
+
+			reader.next();
+		}
+
+		writer.close();
+
+		Object user;
+
+		try
+		{
+			user = userScope.deserialize(xml.toString(), StringFormat.XML);
+		}
+		catch (SIMPLTranslationException e)
+		{
+			throw new XMLStreamException("could not translate user element <" + tag + ">", e);
+		}
+
+		if (!(user instanceof User))
+			throw new XMLStreamException("<" + tag + "> is not a user element known to "
+					+ UserTranslationScope.NAME, reader.getLocation());
+
+		return (User) user;
+	}
+
+	private static void readListAttributes(XMLStreamReader reader, AuthenticationListXMLImpl<?> list)
+	{
+		for (int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			String name = normalize(reader.getAttributeLocalName(i));
+			String value = reader.getAttributeValue(i);
+
+			if ("lastuid".equals(name))
+				list.advanceLastUID(Long.parseLong(value.trim()));
+			else if ("autosave".equals(name))
+				list.setAutoSave(Boolean.parseBoolean(value.trim()));
+		}
+	}
+
+	private static void setUserField(User user, String name, String value)
+	{
+		if ("userkey".equals(name) || "username".equals(name))
+			user.setUserKey(value);
+		else if ("password".equals(name))
+			user.setHashedPassword(value);
+		else if ("level".equals(name))
+			user.setLevel(Integer.parseInt(value.trim()));
+		else if ("uid".equals(name))
+			user.setUid(Long.parseLong(value.trim()));
+		else if ("auxuserdata".equals(name) && user instanceof UserWithAuxData)
+			((UserWithAuxData) user).setAuxUserData(value);
+	}
+
+	/**
+	 * @return name in lower case, without underscores or hyphens.
+	 */
+	static String normalize(String name)
+	{
+		StringBuilder normalized = new StringBuilder(name.length());
+
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+
+			if (c != '_' && c != '-')
+				normalized.append(Character.toLowerCase(c));
+		}
+
+		return normalized.toString();
+	}
+
+	/**
+	 * Counts the bytes read through it, for progress reports.
+	 */
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		private volatile long	count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+
+			if (b >= 0)
+				count++;
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+
+			if (n > 0)
+				count += n;
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count += skipped;
+
+			return skipped;
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+	}
+}
@@ -3,41 +3,91 @@
  */
 package ecologylab.authentication;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+import ecologylab.authentication.commit.BatchWriter;
+import ecologylab.authentication.commit.UserWrite;
+import ecologylab.authentication.password.PasswordHasher;
+import ecologylab.authentication.password.PasswordHashes;
+import ecologylab.authentication.translationScope.AuthServerTranslations;
 import ecologylab.authentication.translationScope.UserTranslationScope;
 import ecologylab.oodss.exceptions.SaveFailedException;
+import ecologylab.serialization.SIMPLTranslationException;
 import ecologylab.serialization.SaverState;
 import ecologylab.serialization.annotations.simpl_map;
 import ecologylab.serialization.annotations.simpl_scalar;
 import ecologylab.serialization.annotations.simpl_scope;
+import ecologylab.serialization.formatenums.Format;
 
 /**
- * Contains a HashMap of AuthenticationListEntry's that are hashed on their user key values. Raw
+ * Contains a map of AuthenticationListEntry's that are hashed on their user key values. Raw
  * passwords are never serialized using this object, only one-way hashes of them (see
  * {@link ecologylab.authentication.User AuthenticationListEntry}).
  * 
  * Instances of this should be used by a server to determine valid usernames and passwords;
  * generally, a serialized instance of this is used as a backing store for such servers.
  * 
- * Most methods in this class are synchronized, so that they cannot be interleaved on multiple
- * threads. This should prevent consistency errors.
+ * Methods that modify the list are synchronized, so that they cannot be interleaved on multiple
+ * threads. Methods that only read it (contains, isValid, getAccessLevel, setUID) take no lock: the
+ * users are kept in a ConcurrentHashMap, so concurrent logins for different users do not contend.
+ * Uids are allocated atomically, without the monitor.
+ * 
+ * Changes can be persisted in one of two ways. With autoSave, every change re-serializes the whole
+ * list. With a journal (see openJournal() and load()), every change appends one record to an
+ * AuthenticationListJournal, and the whole list is only written, to its snapshot file, every
+ * compactionInterval records.
  * 
  * @author Zachary O. Toups (zach@ecologylab.net)
  */
 public class AuthenticationListXMLImpl<U extends User> extends SaverState implements
-		AuthenticationList<U>
+		AuthenticationList<U>, BatchWriter<U>
 {
+	public static final int			DEFAULT_COMPACTION_INTERVAL	= 1000;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<AuthenticationListXMLImpl>	LAST_UID	=
+			AtomicLongFieldUpdater.newUpdater(AuthenticationListXMLImpl.class, "lastUID");
+
 	@simpl_map
 	@simpl_scope(UserTranslationScope.NAME)
-	private HashMap<String, U>	authList	= new HashMap<String, U>();
+	private ConcurrentHashMap<String, U>	authList	= new ConcurrentHashMap<String, U>();
 
+	/** The next uid to allocate; only modified through LAST_UID. */
 	@simpl_scalar
-	private long								lastUID		= 0;
+	private volatile long									lastUID		= 0;
 
 	@simpl_scalar
 	private boolean							autoSave	= false;
 
+	/**
+	 * Hashes the passwords of users as they are added; if null, passwords are stored as sent by the
+	 * client. Not serialized.
+	 */
+	private PasswordHasher			passwordHasher	= null;
+
+	/** Records changes since snapshotFile was written; null unless journaling. Not serialized. */
+	private AuthenticationListJournal	journal					= null;
+
+	/** The file the journal is compacted into. Not serialized. */
+	private File											snapshotFile		= null;
+
+	/** The number of journal records that triggers compaction. Not serialized. */
+	private int												compactionInterval;
+
+	/** True if snapshotFile is written as an AuthenticationListSnapshot rather than as XML. */
+	private boolean										binarySnapshot;
+
+	/** The file given to the constructor, which save() writes to; null if none was. Not serialized. */
+	private File											backingFile			= null;
+
 	/**
 	 * No-argument constructor for XML translation.
 	 */
@@ -51,6 +101,7 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 		super(backingFilename);
 
 		autoSave = true;
+		backingFile = new File(backingFilename);
 	}
 
 	/**
@@ -60,23 +111,92 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 */
 	public synchronized boolean addUser(U entry) throws SaveFailedException
 	{
-		if (!this.authList.containsKey(entry.getUserKey()))
+		if (this.performAddUser(entry))
 		{
-			authList.put(entry.getUserKey(), entry);
-			entry.setUid(this.getNextUID());
-
-			if (autoSave)
-				this.save();
-
+			this.persistChanges();
 			return true;
 		}
 
 		return false;
 	}
 
-	private synchronized long getNextUID()
+	/**
+	 * Adds entry to the map, and records it in the journal if there is one, but does not otherwise
+	 * save.
+	 */
+	private boolean performAddUser(U entry) throws SaveFailedException
+	{
+		// a versioned hash is a stored form, which a client may not choose
+		if (this.authList.containsKey(entry.getUserKey())
+				|| PasswordHashes.isVersioned(entry.getPassword()))
+			return false;
+
+		if (passwordHasher != null)
+			entry.setHashedPassword(passwordHasher.hash(entry.getPassword()));
+
+		entry.setUid(this.getNextUID());
+
+		if (journal != null)
+			this.journalAdd(entry);
+
+		authList.put(entry.getUserKey(), entry);
+
+		return true;
+	}
+
+	private long getNextUID()
+	{
+		return LAST_UID.getAndIncrement(this);
+	}
+
+	/**
+	 * Ensures that the next uid allocated is at least nextUID.
+	 */
+	void advanceLastUID(long nextUID)
+	{
+		long current;
+		while (nextUID > (current = lastUID))
+		{
+			if (LAST_UID.compareAndSet(this, current, nextUID))
+				break;
+		}
+	}
+
+	/**
+	 * Puts a user read from a saved list into this, as is: its password is not re-hashed, its uid is
+	 * kept, and nothing is saved or journaled. Used by AuthenticationListStreamLoader; readers may
+	 * look the user up as soon as this returns.
+	 */
+	void putLoadedUser(U user)
+	{
+		authList.put(user.getUserKey(), user);
+		this.advanceLastUID(user.getUid() + 1);
+	}
+
+	void setAutoSave(boolean autoSave)
+	{
+		this.autoSave = autoSave;
+	}
+
+	boolean isAutoSave()
+	{
+		return autoSave;
+	}
+
+	/**
+	 * @return the next uid that will be allocated.
+	 */
+	long getLastUID()
+	{
+		return lastUID;
+	}
+
+	/**
+	 * @return a weakly-consistent view of the users in this list.
+	 */
+	Collection<U> users()
 	{
-		return lastUID++;
+		return authList.values();
 	}
 
 	/**
@@ -97,7 +217,7 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 * @param entry
 	 * @return
 	 */
-	public synchronized boolean contains(U entry)
+	public boolean contains(U entry)
 	{
 		return this.contains(entry.getUserKey());
 	}
@@ -108,7 +228,7 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 * @param username
 	 * @return
 	 */
-	public synchronized boolean contains(String username)
+	public boolean contains(String username)
 	{
 		return authList.containsKey(username);
 	}
@@ -119,7 +239,7 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 * @param entry
 	 * @return
 	 */
-	public synchronized int getAccessLevel(U entry)
+	public int getAccessLevel(U entry)
 	{
 		return authList.get(entry.getUserKey()).getLevel();
 	}
@@ -131,10 +251,51 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 * @param entry
 	 * @return
 	 */
-	public synchronized boolean isValid(U entry)
+	public boolean isValid(U entry)
+	{
+		U storedUser = authList.get(entry.getUserKey());
+
+		return storedUser != null && storedUser.compareHashedPassword(entry);
+	}
+
+	/**
+	 * Rewrites every stored password that is not in canonical form. Legacy hashes are trimmed of
+	 * surrounding whitespace, so that they decode cleanly to a digest; if a PasswordHasher has been
+	 * set, they are also upgraded to its versioned form. Versioned hashes are left as they are. Saves
+	 * the list afterwards if anything changed and autoSave is on.
+	 * 
+	 * @return the number of users whose stored password was rewritten.
+	 * @throws SaveFailedException
+	 */
+	public synchronized int migratePasswordHashes() throws SaveFailedException
 	{
-		return (authList.containsKey(entry.getUserKey()) && authList.get(entry.getUserKey())
-				.compareHashedPassword(entry.getPassword()));
+		int migrated = 0;
+
+		for (U user : authList.values())
+		{
+			String storedPassword = user.getPassword();
+
+			if (storedPassword == null || PasswordHashes.isVersioned(storedPassword))
+				continue;
+
+			String migratedPassword = storedPassword.trim();
+
+			if (passwordHasher != null)
+				migratedPassword = passwordHasher.hash(migratedPassword);
+
+			if (!migratedPassword.equals(storedPassword))
+			{
+				user.setHashedPassword(migratedPassword);
+				migrated++;
+			}
+		}
+
+		if (migrated > 0 && journal != null)
+			this.compact();
+		else if (migrated > 0 && autoSave)
+			this.save();
+
+		return migrated;
 	}
 
 	/**
@@ -150,17 +311,219 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	 */
 	public synchronized boolean removeUser(U entry) throws SaveFailedException
 	{
-		if (this.isValid(entry) && entry.equals(authList.remove(entry.getUserKey())))
+		if (this.isValid(entry))
 		{
-			if (autoSave)
-				this.save();
+			boolean removed = this.performRemoveUser(entry);
 
-			return true;
+			if (removed || journal != null)
+				this.persistChanges();
+
+			return removed;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Removes entry, which has already been validated, from the map, recording it in the journal if
+	 * there is one, but does not otherwise save.
+	 */
+	private boolean performRemoveUser(U entry) throws SaveFailedException
+	{
+		if (journal != null)
+			this.journalRemove(entry.getUserKey());
+
+		return entry.equals(authList.remove(entry.getUserKey()));
+	}
+
+	/**
+	 * Replaces the password of the user with userKey, recording it in the journal if there is one,
+	 * but does not otherwise save.
+	 * 
+	 * @return false if there is no such user.
+	 */
+	private boolean performUpdatePassword(String userKey, String newPasswordPlainText)
+			throws SaveFailedException
+	{
+		U user = authList.get(userKey);
+
+		if (user == null)
+			return false;
+
+		user.setAndHashPassword(newPasswordPlainText);
+
+		if (passwordHasher != null)
+			user.setHashedPassword(passwordHasher.hash(user.getPassword()));
+
+		if (journal != null)
+			this.journalAdd(user);
+
+		return true;
+	}
+
+	/**
+	 * Applies every write in batch, then makes them durable together: by forcing the journal to disk,
+	 * if journaling, or, if autoSave is on, with one save of the backing file that is forced to disk
+	 * before it replaces the old one. If that fails, or any write fails, none of the batch's changes
+	 * are kept, in memory or in the journal.
+	 * 
+	 * @throws SaveFailedException
+	 *           if the batch could not be made durable, or if this has neither a journal nor a backing
+	 *           file with autoSave on, so that nothing could be.
+	 * @see ecologylab.authentication.commit.BatchWriter#writeBatch(java.util.List)
+	 */
+	public synchronized boolean[] writeBatch(List<UserWrite<U>> batch) throws SaveFailedException
+	{
+		if (journal == null && (!autoSave || backingFile == null))
+			throw new SaveFailedException("writes to this list cannot be made durable: it has neither a "
+					+ "journal nor a backing file that it saves to automatically.");
+
+		boolean[] results = new boolean[batch.size()];
+		boolean changed = false;
+
+		// the state of each user before the batch first touched it, to restore if the batch fails
+		Map<String, Undo<U>> undo = new HashMap<String, Undo<U>>();
+		long journalLength = 0;
+		int journalRecords = 0;
+
+		if (journal != null)
+		{
+			try
+			{
+				journalLength = journal.length();
+				journalRecords = journal.getRecordCount();
+			}
+			catch (IOException e)
+			{
+				throw new SaveFailedException(e);
+			}
+		}
+
+		try
+		{
+			for (int i = 0; i < results.length; i++)
+			{
+				UserWrite<U> write = batch.get(i);
+				String userKey = (write.getKind() == UserWrite.Kind.UPDATE_PASSWORD) ? write.getUserKey()
+						: write.getUser().getUserKey();
+
+				if (!undo.containsKey(userKey))
+					undo.put(userKey, new Undo<U>(authList.get(userKey)));
+
+				switch (write.getKind())
+				{
+				case ADD:
+					results[i] = this.performAddUser(write.getUser());
+					break;
+				case REMOVE:
+					results[i] = this.isValid(write.getUser()) && this.performRemoveUser(write.getUser());
+					break;
+				case UPDATE_PASSWORD:
+					results[i] = this.performUpdatePassword(userKey, write.getNewPasswordPlainText());
+					break;
+				}
+
+				changed |= results[i];
+			}
+
+			if (changed)
+				this.persistDurably();
+		}
+		catch (SaveFailedException e)
+		{
+			this.rollBack(undo, journalLength, journalRecords);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			this.rollBack(undo, journalLength, journalRecords);
+			throw e;
+		}
+
+		if (changed && journal != null)
+		{
+			// the batch is already durable in the journal, so a failed compaction does not fail it
+			try
+			{
+				this.compactIfDue();
+			}
+			catch (SaveFailedException e)
+			{
+				warning("could not compact the journal; will retry: " + e);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Forces the changes already applied to the map to disk: the journal, if journaling, or else the
+	 * whole list, to the backing file.
+	 */
+	private void persistDurably() throws SaveFailedException
+	{
+		if (journal != null)
+		{
+			try
+			{
+				journal.sync();
+			}
+			catch (IOException e)
+			{
+				throw new SaveFailedException(e);
+			}
+		}
+		else
+		{
+			this.saveDurably(backingFile);
+		}
+	}
+
+	/**
+	 * Restores the users touched by a failed batch, and discards the journal records it appended.
+	 */
+	private void rollBack(Map<String, Undo<U>> undo, long journalLength, int journalRecords)
+	{
+		for (Map.Entry<String, Undo<U>> touched : undo.entrySet())
+		{
+			Undo<U> before = touched.getValue();
+
+			if (before.user == null)
+			{
+				authList.remove(touched.getKey());
+			}
+			else
+			{
+				before.user.setHashedPassword(before.password);
+				authList.put(touched.getKey(), before.user);
+			}
+		}
+
+		if (journal != null)
+		{
+			try
+			{
+				journal.rollBack(journalLength, journalRecords);
+			}
+			catch (IOException e)
+			{
+				warning("could not discard the journal records of a failed batch: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Persists changes already applied to the map: by compacting the journal if it is due, or by
+	 * saving the whole list if autoSave is on.
+	 */
+	private void persistChanges() throws SaveFailedException
+	{
+		if (journal != null)
+			this.compactIfDue();
+		else if (autoSave)
+			this.save();
+	}
+
 	/**
 	 * Returns a String indicating the number of entries in the AuthenticationList.
 	 */
@@ -183,4 +546,259 @@ public class AuthenticationListXMLImpl<U extends User> extends SaverState implem
 	{
 		return authList.get(userKey).getLevel();
 	}
+
+	/**
+	 * Loads an AuthenticationList from its snapshot file and journal, compacting every
+	 * DEFAULT_COMPACTION_INTERVAL records.
+	 * 
+	 * @see #load(File, File, int)
+	 */
+	public static <U extends User> AuthenticationListXMLImpl<U> load(File snapshotFile,
+			File journalFile) throws SaveFailedException
+	{
+		return load(snapshotFile, journalFile, DEFAULT_COMPACTION_INTERVAL);
+	}
+
+	/**
+	 * Loads an AuthenticationList from its snapshot file (or creates an empty one, if there is none),
+	 * replays the changes recorded in its journal, and keeps journaling further changes.
+	 * 
+	 * @param snapshotFile
+	 *          the file holding the list as of its last compaction, either as XML or as an
+	 *          AuthenticationListSnapshot; compaction keeps writing it in the same format.
+	 * @param journalFile
+	 *          the journal of changes since then.
+	 * @param compactionInterval
+	 *          the number of journal records after which the list is written to snapshotFile and the
+	 *          journal is emptied.
+	 * @return the loaded list.
+	 * @throws SaveFailedException
+	 *           if either file could not be read, or the journal could not be opened.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <U extends User> AuthenticationListXMLImpl<U> load(File snapshotFile,
+			File journalFile, int compactionInterval) throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<U> list;
+
+		if (AuthenticationListSnapshot.isSnapshot(snapshotFile))
+		{
+			list = AuthenticationListSnapshot.read(snapshotFile);
+		}
+		else if (snapshotFile.exists())
+		{
+			try
+			{
+				list = (AuthenticationListXMLImpl<U>) AuthServerTranslations.get().deserialize(
+						snapshotFile, Format.XML);
+			}
+			catch (SIMPLTranslationException e)
+			{
+				throw new SaveFailedException("could not read " + snapshotFile, e);
+			}
+		}
+		else
+		{
+			list = new AuthenticationListXMLImpl<U>();
+		}
+
+		list.openJournal(snapshotFile, journalFile, compactionInterval);
+
+		return list;
+	}
+
+	/**
+	 * Replays the changes recorded in journalFile into this, then records every further change there
+	 * instead of saving the whole list. Every compactionInterval records, the list is written to
+	 * snapshotFile and the journal emptied.
+	 * 
+	 * @param snapshotFile
+	 *          the file this was loaded from, and that the journal is compacted into. It is written as
+	 *          a binary AuthenticationListSnapshot if it already is one, or if it does not exist yet
+	 *          and its name ends with AuthenticationListSnapshot.FILE_EXTENSION; as XML otherwise.
+	 * @param journalFile
+	 * @param compactionInterval
+	 * @return the number of journal records replayed.
+	 * @throws SaveFailedException
+	 *           if the journal could not be read or opened.
+	 */
+	public synchronized int openJournal(File snapshotFile, File journalFile, int compactionInterval)
+			throws SaveFailedException
+	{
+		if (journal != null)
+			throw new IllegalStateException("a journal is already open: " + journal.getFile());
+
+		AuthenticationListJournal newJournal = new AuthenticationListJournal(journalFile, false);
+
+		try
+		{
+			long highestUid = newJournal.replay(authList);
+
+			this.advanceLastUID(highestUid + 1);
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not replay " + journalFile, e);
+		}
+
+		this.journal = newJournal;
+		this.snapshotFile = snapshotFile;
+		this.binarySnapshot = AuthenticationListSnapshot.usesSnapshotFormat(snapshotFile);
+		this.compactionInterval = Math.max(1, compactionInterval);
+
+		return newJournal.getRecordCount();
+	}
+
+	/**
+	 * Writes the list to its snapshot file and closes the journal; further changes are persisted
+	 * according to autoSave again.
+	 * 
+	 * @throws SaveFailedException
+	 */
+	public synchronized void closeJournal() throws SaveFailedException
+	{
+		if (journal == null)
+			return;
+
+		this.compact();
+
+		try
+		{
+			journal.close();
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException(e);
+		}
+
+		journal = null;
+	}
+
+	/**
+	 * Writes the whole list to the snapshot file, then empties the journal. The snapshot is written
+	 * to a temporary file, forced to disk, and renamed into place, so that a crash cannot leave it half
+	 * written; if one happens before the journal is emptied, replaying it again is harmless.
+	 * 
+	 * @throws SaveFailedException
+	 */
+	public synchronized void compact() throws SaveFailedException
+	{
+		if (journal == null)
+			throw new IllegalStateException("no journal is open.");
+
+		if (binarySnapshot)
+			AuthenticationListSnapshot.write(this, snapshotFile);
+		else
+			this.saveDurably(snapshotFile);
+
+		try
+		{
+			journal.truncate();
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException(e);
+		}
+	}
+
+	/**
+	 * Writes the list as XML to a temporary file, forces it to disk, and renames it over file.
+	 */
+	private void saveDurably(File file) throws SaveFailedException
+	{
+		File tempFile = new File(file.getPath() + ".tmp");
+		this.save(tempFile);
+
+		try
+		{
+			RandomAccessFile written = new RandomAccessFile(tempFile, "rw");
+
+			try
+			{
+				written.getFD().sync();
+			}
+			finally
+			{
+				written.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not sync " + tempFile, e);
+		}
+
+		if (!tempFile.renameTo(file))
+		{
+			file.delete();
+
+			if (!tempFile.renameTo(file))
+				throw new SaveFailedException("could not replace " + file + " with " + tempFile);
+		}
+	}
+
+	private void compactIfDue() throws SaveFailedException
+	{
+		if (journal.getRecordCount() >= compactionInterval)
+			this.compact();
+	}
+
+	private void journalAdd(U entry) throws SaveFailedException
+	{
+		try
+		{
+			journal.appendAdd(entry);
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not journal the addition of " + entry.getUserKey(), e);
+		}
+	}
+
+	private void journalRemove(String userKey) throws SaveFailedException
+	{
+		try
+		{
+			journal.appendRemove(userKey);
+		}
+		catch (IOException e)
+		{
+			throw new SaveFailedException("could not journal the removal of " + userKey, e);
+		}
+	}
+
+	/**
+	 * @return the PasswordHasher applied to the passwords of new users; null if passwords are stored
+	 *         as sent by the client.
+	 */
+	public PasswordHasher getPasswordHasher()
+	{
+		return passwordHasher;
+	}
+
+	/**
+	 * Sets the PasswordHasher used to store the passwords of users added from now on. Existing users
+	 * keep their current hashes, which continue to work.
+	 * 
+	 * @param passwordHasher
+	 */
+	public void setPasswordHasher(PasswordHasher passwordHasher)
+	{
+		this.passwordHasher = passwordHasher;
+	}
+
+	/**
+	 * A user as it was before a batch first changed it; user is null if it was not in the list.
+	 */
+	private static final class Undo<U extends User>
+	{
+		final U				user;
+
+		final String	password;
+
+		Undo(U user)
+		{
+			this.user = user;
+			this.password = (user == null) ? null : user.getPassword();
+		}
+	}
 }
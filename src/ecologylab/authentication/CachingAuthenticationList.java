@@ -0,0 +1,548 @@
+package ecologylab.authentication;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.commit.BatchWriter;
+import ecologylab.authentication.commit.UserWrite;
+import ecologylab.authentication.password.PasswordHashes;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Wraps another AuthenticationList, such as an AuthenticationListDBImpl, with a bounded, in-memory
+ * cache of what it has been told about each user key: whether the user exists, its level and uid,
+ * and the password hash it last validated successfully. Repeated logins for the same user, and the
+ * setUID() and getAccessLevel() calls that follow them, are then answered without going to the
+ * backend.
+ * 
+ * Keys that the backend reports do not exist are cached too, as negative entries with a shorter
+ * time-to-live, so that lookups of mistyped or guessed user keys (as in credential stuffing) do not
+ * each reach the backend. A failed isValid() is never cached, except to learn whether the user
+ * exists.
+ * 
+ * The cache is split into segments by key hash, each a small LRU map with its own lock. Changes made
+ * through this (addUser, removeUser, and, where the backend supports them, writeBatch and
+ * performUpdatePassword) invalidate the user's entry; a lookup that was already in progress when
+ * the entry was invalidated does not re-cache what it read. Changes made to a shared backend by
+ * other servers are seen once the entry expires, or after invalidate() is called.
+ * 
+ * Create with wrap(), which returns a BatchWriter exactly when the backend is one (a Batching), and
+ * for an AuthenticationListDBImpl, a Database, which also updates passwords. Constructed directly,
+ * this is only an AuthenticationList.
+ */
+public class CachingAuthenticationList<U extends User> implements AuthenticationList<U>
+{
+	public static final int					DEFAULT_MAX_SIZE							= 100000;
+
+	public static final long				DEFAULT_TTL_MILLIS						= 60 * 1000;
+
+	public static final long				DEFAULT_NEGATIVE_TTL_MILLIS		= 5 * 1000;
+
+	static final int								SEGMENTS											= 16;
+
+	private static final int				UNKNOWN_LEVEL									= Integer.MIN_VALUE;
+
+	private static final long				UNKNOWN_UID										= Long.MIN_VALUE;
+
+	private final AuthenticationList<U>	delegate;
+
+	private final long							ttlMillis;
+
+	private final long							negativeTtlMillis;
+
+	private final Segment[]					segments											= new Segment[SEGMENTS];
+
+	private final AtomicLong				hits													= new AtomicLong();
+
+	private final AtomicLong				misses												= new AtomicLong();
+
+	/**
+	 * @return a cache in front of delegate, with the default size and time-to-lives, that is a
+	 *         BatchWriter if, and only if, delegate is.
+	 */
+	public static <U extends User> CachingAuthenticationList<U> wrap(AuthenticationList<U> delegate)
+	{
+		return wrap(delegate, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+	}
+
+	/**
+	 * @return a cache in front of delegate that is a BatchWriter if, and only if, delegate is; a
+	 *         Database if delegate is an AuthenticationListDBImpl.
+	 * @see #CachingAuthenticationList(AuthenticationList, int, long, long)
+	 */
+	@SuppressWarnings("unchecked")
+	public static <U extends User> CachingAuthenticationList<U> wrap(AuthenticationList<U> delegate,
+			int maxSize, long ttlMillis, long negativeTtlMillis)
+	{
+		if (delegate instanceof AuthenticationListDBImpl)
+			return new Database<U>((AuthenticationListDBImpl<U>) delegate, maxSize, ttlMillis,
+					negativeTtlMillis);
+		else if (delegate instanceof BatchWriter)
+			return new Batching<U>(delegate, maxSize, ttlMillis, negativeTtlMillis);
+		else
+			return new CachingAuthenticationList<U>(delegate, maxSize, ttlMillis, negativeTtlMillis);
+	}
+
+	/**
+	 * @return a cache in front of delegate, with the default size and time-to-lives, that also
+	 *         passes on batches and password changes.
+	 */
+	public static <U extends User> Database<U> wrap(AuthenticationListDBImpl<U> delegate)
+	{
+		return new Database<U>(delegate, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS,
+				DEFAULT_NEGATIVE_TTL_MILLIS);
+	}
+
+	public CachingAuthenticationList(AuthenticationList<U> delegate)
+	{
+		this(delegate, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+	}
+
+	/**
+	 * @param delegate
+	 *          the backend to cache.
+	 * @param maxSize
+	 *          the most user keys to cache; the least recently used are evicted beyond this.
+	 * @param ttlMillis
+	 *          how long what is known about an existing user is trusted.
+	 * @param negativeTtlMillis
+	 *          how long the absence of a user key is trusted.
+	 */
+	public CachingAuthenticationList(AuthenticationList<U> delegate, int maxSize, long ttlMillis,
+			long negativeTtlMillis)
+	{
+		this.delegate = delegate;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+
+		int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(segmentSize);
+	}
+
+	public boolean addUser(U user) throws SaveFailedException
+	{
+		String key = user.getUserKey();
+		this.invalidate(key);
+
+		try
+		{
+			return delegate.addUser(user);
+		}
+		finally
+		{
+			this.invalidate(key);
+		}
+	}
+
+	public boolean removeUser(U user) throws SaveFailedException
+	{
+		String key = user.getUserKey();
+		this.invalidate(key);
+
+		try
+		{
+			return delegate.removeUser(user);
+		}
+		finally
+		{
+			this.invalidate(key);
+		}
+	}
+
+	public boolean contains(U user)
+	{
+		String key = user.getUserKey();
+		Segment segment = this.segmentFor(key);
+		CachedUser cached = segment.get(key);
+
+		if (cached != null)
+		{
+			hits.incrementAndGet();
+			return cached.exists;
+		}
+
+		misses.incrementAndGet();
+		long generation = segment.generation();
+
+		boolean exists = delegate.contains(user);
+		segment.putIfCurrent(key, this.existence(exists), generation);
+
+		return exists;
+	}
+
+	public int getAccessLevel(U user)
+	{
+		return this.getAccessLevel(user.getUserKey());
+	}
+
+	/**
+	 * @return the user's level, as the backend reports it; for a key known not to exist, -1.
+	 */
+	public int getAccessLevel(String userKey)
+	{
+		String key = userKey.toLowerCase();
+		Segment segment = this.segmentFor(key);
+		CachedUser cached = segment.get(key);
+
+		if (cached != null && (!cached.exists || cached.level != UNKNOWN_LEVEL))
+		{
+			hits.incrementAndGet();
+			return cached.exists ? cached.level : -1;
+		}
+
+		misses.incrementAndGet();
+		long generation = segment.generation();
+
+		int level = delegate.getAccessLevel(key);
+
+		if (level < 0)
+			segment.putIfCurrent(key, this.existence(false), generation);
+		else
+			segment.putIfCurrent(key, this.found(cached).withLevel(level), generation);
+
+		return level;
+	}
+
+	public boolean isValid(U entry)
+	{
+		String key = entry.getUserKey();
+		Segment segment = this.segmentFor(key);
+		CachedUser cached = segment.get(key);
+
+		if (cached != null)
+		{
+			if (!cached.exists)
+			{
+				hits.incrementAndGet();
+				return false;
+			}
+
+			byte[] digest = entry.getPasswordDigest();
+
+			if (cached.verifiedDigest != null && digest != null
+					&& PasswordHashes.constantTimeEquals(cached.verifiedDigest, digest))
+			{
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+
+		misses.incrementAndGet();
+		long generation = segment.generation();
+
+		if (delegate.isValid(entry))
+		{
+			byte[] digest = entry.getPasswordDigest();
+
+			if (digest != null)
+				segment.putIfCurrent(key, this.found(cached).withVerifiedDigest(digest.clone()),
+						generation);
+
+			return true;
+		}
+
+		// a wrong password tells nothing about whether the user exists; find out once, so that
+		// repeated attempts against a key that does not exist stop reaching the backend
+		if (cached == null)
+			segment.putIfCurrent(key, this.existence(delegate.contains(entry)), generation);
+
+		return false;
+	}
+
+	public void setUID(U user)
+	{
+		String key = user.getUserKey();
+		Segment segment = this.segmentFor(key);
+		CachedUser cached = segment.get(key);
+
+		if (cached != null && cached.uid != UNKNOWN_UID)
+		{
+			hits.incrementAndGet();
+			user.setUid(cached.uid);
+			return;
+		}
+
+		misses.incrementAndGet();
+		long generation = segment.generation();
+
+		delegate.setUID(user);
+
+		// only a user known to exist is certain to have had its uid set by the backend
+		if (cached != null && cached.exists)
+			segment.putIfCurrent(key, cached.withUid(user.getUid()), generation);
+	}
+
+	public void save() throws SaveFailedException
+	{
+		delegate.save();
+	}
+
+	/**
+	 * Discards what is cached about userKey, so that the next lookup reaches the backend. Call when
+	 * the user is changed other than through this.
+	 */
+	public void invalidate(String userKey)
+	{
+		String key = userKey.toLowerCase();
+		this.segmentFor(key).invalidate(key);
+	}
+
+	/**
+	 * Discards every cached entry.
+	 */
+	public void invalidateAll()
+	{
+		for (Segment segment : segments)
+			segment.invalidateAll();
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache.
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups passed to the backend.
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public AuthenticationList<U> getDelegate()
+	{
+		return delegate;
+	}
+
+	@Override
+	public String toString()
+	{
+		return delegate.toString();
+	}
+
+	/**
+	 * Cloning AuthenticationLists is not allowed, because it is a security violation.
+	 * 
+	 * This method just throws an UnsupportedOperationException.
+	 */
+	@Override
+	public final Object clone() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(
+				"Cannot clone an AuthenticationList, for security reasons.");
+	}
+
+	/**
+	 * A cache in front of a backend that is a BatchWriter, passing batches on to it.
+	 */
+	public static class Batching<U extends User> extends CachingAuthenticationList<U> implements
+			BatchWriter<U>
+	{
+		private final BatchWriter<U>	writer;
+
+		@SuppressWarnings("unchecked")
+		Batching(AuthenticationList<U> delegate, int maxSize, long ttlMillis, long negativeTtlMillis)
+		{
+			super(delegate, maxSize, ttlMillis, negativeTtlMillis);
+
+			this.writer = (BatchWriter<U>) delegate;
+		}
+
+		/**
+		 * Passes batch to the backend, invalidating every user it touches.
+		 */
+		public boolean[] writeBatch(List<UserWrite<U>> batch) throws SaveFailedException
+		{
+			for (UserWrite<U> write : batch)
+				this.invalidate(write.getUserKey());
+
+			try
+			{
+				return writer.writeBatch(batch);
+			}
+			finally
+			{
+				for (UserWrite<U> write : batch)
+					this.invalidate(write.getUserKey());
+			}
+		}
+	}
+
+	/**
+	 * A cache in front of an AuthenticationListDBImpl, passing batches and password changes on to it.
+	 */
+	public static class Database<U extends User> extends Batching<U>
+	{
+		private final AuthenticationListDBImpl<U>	db;
+
+		Database(AuthenticationListDBImpl<U> delegate, int maxSize, long ttlMillis,
+				long negativeTtlMillis)
+		{
+			super(delegate, maxSize, ttlMillis, negativeTtlMillis);
+
+			this.db = delegate;
+		}
+
+		/**
+		 * Passes the password change to the backend, invalidating userKey before and after, as
+		 * addUser() does.
+		 * 
+		 * @see AuthenticationListDBImpl#performUpdatePassword(String, String)
+		 */
+		public void performUpdatePassword(String userKey, String newPasswordPlainText)
+				throws SaveFailedException
+		{
+			this.invalidate(userKey);
+
+			try
+			{
+				db.performUpdatePassword(userKey, newPasswordPlainText);
+			}
+			finally
+			{
+				this.invalidate(userKey);
+			}
+		}
+	}
+
+	private Segment segmentFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= h >>> 16;
+
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	private CachedUser existence(boolean exists)
+	{
+		long now = System.currentTimeMillis();
+
+		if (exists)
+			return new CachedUser(true, UNKNOWN_LEVEL, UNKNOWN_UID, null, now + ttlMillis);
+
+		return new CachedUser(false, UNKNOWN_LEVEL, UNKNOWN_UID, null, now + negativeTtlMillis);
+	}
+
+	/**
+	 * @return cached, if it records that the user exists; otherwise a new entry that does.
+	 */
+	private CachedUser found(CachedUser cached)
+	{
+		return (cached != null && cached.exists) ? cached : this.existence(true);
+	}
+
+	/**
+	 * What is known about one user key. Immutable; fields not yet learned from the backend are
+	 * UNKNOWN_LEVEL, UNKNOWN_UID, or null.
+	 */
+	private static final class CachedUser
+	{
+		final boolean	exists;
+
+		final int			level;
+
+		final long		uid;
+
+		/** The digest of the password last validated by the backend. */
+		final byte[]	verifiedDigest;
+
+		final long		expiresAt;
+
+		CachedUser(boolean exists, int level, long uid, byte[] verifiedDigest, long expiresAt)
+		{
+			this.exists = exists;
+			this.level = level;
+			this.uid = uid;
+			this.verifiedDigest = verifiedDigest;
+			this.expiresAt = expiresAt;
+		}
+
+		CachedUser withLevel(int level)
+		{
+			return new CachedUser(true, level, uid, verifiedDigest, expiresAt);
+		}
+
+		CachedUser withUid(long uid)
+		{
+			return new CachedUser(true, level, uid, verifiedDigest, expiresAt);
+		}
+
+		CachedUser withVerifiedDigest(byte[] verifiedDigest)
+		{
+			return new CachedUser(true, level, uid, verifiedDigest, expiresAt);
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache: an access-ordered map that evicts its least recently used entry
+	 * once it is full, and a count of invalidations, so that a lookup can tell whether its key was
+	 * invalidated while it was reading the backend.
+	 */
+	private static final class Segment
+	{
+		private final LinkedHashMap<String, CachedUser>	entries;
+
+		private long																		generation;
+
+		Segment(final int maxSize)
+		{
+			entries = new LinkedHashMap<String, CachedUser>(16, 0.75f, true)
+			{
+				private static final long	serialVersionUID	= 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest)
+				{
+					return this.size() > maxSize;
+				}
+			};
+		}
+
+		synchronized CachedUser get(String key)
+		{
+			CachedUser cached = entries.get(key);
+
+			if (cached != null && cached.expiresAt <= System.currentTimeMillis())
+			{
+				entries.remove(key);
+				return null;
+			}
+
+			return cached;
+		}
+
+		synchronized long generation()
+		{
+			return generation;
+		}
+
+		/**
+		 * Caches value for key, unless something in this segment has been invalidated since
+		 * generation was read.
+		 */
+		synchronized void putIfCurrent(String key, CachedUser value, long generation)
+		{
+			if (this.generation == generation)
+				entries.put(key, value);
+		}
+
+		synchronized void invalidate(String key)
+		{
+			generation++;
+			entries.remove(key);
+		}
+
+		synchronized void invalidateAll()
+		{
+			generation++;
+			entries.clear();
+		}
+	}
+}
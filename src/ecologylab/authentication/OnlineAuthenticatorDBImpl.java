@@ -6,10 +6,18 @@ package ecologylab.authentication;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import ecologylab.authentication.db.AuthenticationDBStrings;
+import ecologylab.authentication.db.ConnectionProvider;
+import ecologylab.authentication.logging.AuthDiagnostics;
+import ecologylab.authentication.session.OnlineUserRegistry;
+import ecologylab.authentication.session.SessionCache;
+import ecologylab.authentication.session.SessionCache.CachedSession;
 import ecologylab.serialization.library.html.A;
 import ecologylab.sql.ConnectionWithAutoClose;
 import ecologylab.sql.PreparedStatementWithAutoClose;
@@ -19,16 +27,36 @@ import ecologylab.sql.StatementWithAutoClose;
  * Encapsulates all authentication actions (tracking who is online, etc.), so that Servers don't
  * need to. Requires a backend database of users with passwords (an AuthenticationList).
  * 
- * Database implementation.
+ * Database implementation. Like AuthenticationListDBImpl, this does not serialize database access on
+ * a single monitor; concurrent logins proceed in parallel, bounded by the connection pool.
+ * 
+ * The online user list is served from a snapshot (see OnlineUserRegistry) that is refreshed from
+ * the database at most once a second after a local login or logout, and at least every
+ * ONLINE_USERS_MAX_AGE_MILLIS otherwise, so polling it does not query the table on every call.
  * 
  * @author Zachary O. Toups (zach@ecologylab.net)
  */
 public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
-		AuthenticationListDBImpl<UwAX> implements OnlineAuthenticator<UwAX>, AuthenticationDBStrings
+		AuthenticationListDBImpl<UwAX> implements PagedOnlineAuthenticator<UwAX>,
+		Resumable<UwAX>, AuthenticationDBStrings
 {
 	/**
-	 * Creates a new OnlineAuthenticatorDBImpl based on a connection to a MySQL database. Lazily
-	 * instantiates the database connection as needed.
+	 * Sessions known to be logged-in, so that sessionValid() does not need to query the database for
+	 * every message. Updated on login and logout through this; entries for sessions changed by other
+	 * servers expire after the cache's time-to-live.
+	 */
+	private SessionCache					sessionCache								= new SessionCache();
+
+	public static final long			ONLINE_USERS_MIN_REFRESH_MILLIS	= 1000;
+
+	public static final long			ONLINE_USERS_MAX_AGE_MILLIS			= 5000;
+
+	/** Snapshots of the user keys that the database marks as online. */
+	private final OnlineUserRegistry	onlineUsers									= this.createOnlineUserRegistry();
+
+	/**
+	 * Creates a new OnlineAuthenticatorDBImpl based on a connection to a PostgreSQL database. Lazily
+	 * instantiates database connections as needed, keeping them in a pool.
 	 * 
 	 * @param dbLocation
 	 *          URL for database in the form "mysql://...".
@@ -42,6 +70,17 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 		super(dbLocation, username, password, db);
 	}
 
+	/**
+	 * Creates a new OnlineAuthenticatorDBImpl that draws its database connections from
+	 * connectionProvider.
+	 * 
+	 * @param connectionProvider
+	 */
+	public OnlineAuthenticatorDBImpl(ConnectionProvider connectionProvider)
+	{
+		super(connectionProvider);
+	}
+
 	public OnlineAuthenticatorDBImpl()
 	{
 		super();
@@ -53,13 +92,12 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	@Override
 	public boolean login(UwAX entry, String sessionId)
 	{
-		System.out.println("*****************************************");
-		System.out.println("entry: " + entry.toString());
-
 		boolean loggedInSuccessfully = false;
 
-		// check password
-		if (super.isValid(entry))
+		// check password; the verified user carries the uid and level, so no further lookup is needed
+		UserWithAuxData verifiedUser = this.retrieveVerifiedUser(entry);
+
+		if (verifiedUser != null)
 		{
 			// regardless of whether the user is already online, update their information in the
 			// database.
@@ -68,26 +106,57 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 
 			this.performLoginOrLogoutOnDB(entry.getUserKey(), sessionId, true);
 
-			// set the UID from the backing store
-			this.setUID(entry);
+			// set the UID and level from the backing store
+			entry.setUid(verifiedUser.getUid());
+			entry.setLevel(verifiedUser.getLevel());
 			entry.setSessionId(sessionId);
+
+			sessionCache.put(sessionId, verifiedUser.getUid(), entry.getUserKey(), verifiedUser
+					.getLevel());
+			onlineUsers.changed();
 		}
 		else
 		{
-			debug("invalid entry");
+			AuthDiagnostics.debug(OnlineAuthenticatorDBImpl.class, "login rejected", "user", entry
+					.getUserKey());
 		}
 
 		return loggedInSuccessfully;
 	}
 
+	/**
+	 * Records the session in the database, as login() does, but without reading the user first.
+	 * 
+	 * @return false if the user no longer exists, or the database could not be updated.
+	 * @see ecologylab.authentication.Resumable#resume(ecologylab.authentication.User, long, int,
+	 *      long, java.lang.String)
+	 */
+	public boolean resume(UwAX entry, long uid, int level, long authenticated,
+			String sessionId)
+	{
+		if (this.performLoginOrLogoutOnDB(entry.getUserKey(), sessionId, true) == 0)
+			return false;
+
+		entry.setUid(uid);
+		entry.setLevel(level);
+		entry.setSessionId(sessionId);
+
+		sessionCache.put(sessionId, uid, entry.getUserKey(), level);
+		onlineUsers.changed();
+
+		return true;
+	}
+
 	/**
 	 * @see ecologylab.authentication.OnlineAuthenticator#lookupUserLevel(A)
 	 */
 	public int lookupUserLevel(UwAX entry)
 	{
-		if (super.isValid(entry))
+		UserWithAuxData verifiedUser = this.retrieveVerifiedUser(entry);
+
+		if (verifiedUser != null)
 		{
-			return super.getAccessLevel(entry);
+			return verifiedUser.getLevel();
 		}
 		else
 		{
@@ -105,7 +174,7 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	{
 		if (this.lookupUserLevel(administrator) >= AuthLevels.ADMINISTRATOR)
 		{
-			return this.performLookupOnlineUsersInDB();
+			return this.onlineUsers.snapshot().asSet();
 		}
 		else
 		{
@@ -127,11 +196,17 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	 */
 	public boolean logout(UwAX entry, String sessionId, boolean useUsername)
 	{
+		// the session check and the update must not interleave with another logout of the same user
+		ReentrantLock lock = userKeyLocks.lockFor(entry.getUserKey());
+		lock.lock();
+
 		try
 		{
 			if (entry.getUid() == this.performLookupUserId(sessionId))
 			{
 				this.performLoginOrLogoutOnDB(entry.getUserKey(), sessionId, false);
+				sessionCache.invalidate(sessionId);
+				onlineUsers.changed();
 				entry.setSessionId(null);
 				return true;
 			}
@@ -145,6 +220,10 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 			e.printStackTrace();
 			return false;
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -180,15 +259,115 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	public void logoutBySessionId(String sessionId)
 	{
 		this.performLogoutOnDB(sessionId);
+
+		// after the update, and bumping the cache's generation, so that a concurrent cache miss that read
+		// the row before the update cannot re-cache the session
+		sessionCache.invalidate(sessionId);
+		onlineUsers.changed();
 	}
 
 	/**
+	 * Checks the session cache first; only queries the database if the session is not cached (or its
+	 * entry has expired), caching the result if the session is valid.
+	 * 
 	 * @see ecologylab.authentication.OnlineAuthenticator#sessionValid(java.lang.String)
 	 */
 	@Override
 	public boolean sessionValid(String sessionId)
 	{
-		return this.performLookupUserId(sessionId) != -1;
+		return this.lookupSession(sessionId) != null;
+	}
+
+	/**
+	 * Looks up the user logged-in with the given session, from the session cache if possible, or
+	 * from the database otherwise.
+	 * 
+	 * @param sessionId
+	 * @return the session's user; null if sessionId is not logged-in.
+	 */
+	public CachedSession lookupSession(String sessionId)
+	{
+		CachedSession session = sessionCache.get(sessionId);
+
+		if (session == null && sessionId != null)
+			session = this.performLookupSessionOnDB(sessionId);
+
+		return session;
+	}
+
+	private OnlineUserRegistry createOnlineUserRegistry()
+	{
+		return new OnlineUserRegistry(new OnlineUserRegistry.Source()
+		{
+			public Collection<String> currentUsers()
+			{
+				return performLookupOnlineUsersInDB();
+			}
+		}, ONLINE_USERS_MIN_REFRESH_MILLIS, ONLINE_USERS_MAX_AGE_MILLIS);
+	}
+
+	/**
+	 * @return the cache of logged-in sessions used by this.
+	 */
+	public SessionCache getSessionCache()
+	{
+		return sessionCache;
+	}
+
+	/**
+	 * Replaces the session cache; use to change its time-to-live or size.
+	 * 
+	 * @param sessionCache
+	 */
+	public void setSessionCache(SessionCache sessionCache)
+	{
+		this.sessionCache = sessionCache;
+	}
+
+	/**
+	 * Looks up the user for sessionId in the database, and caches it if found.
+	 * 
+	 * @param sessionId
+	 * @return the cached session; null if the session is not in the database.
+	 */
+	private CachedSession performLookupSessionOnDB(String sessionId)
+	{
+		CachedSession session = null;
+
+		ConnectionWithAutoClose connection = null;
+		PreparedStatementWithAutoClose stmt = null;
+		ResultSet rs = null;
+
+		// read before the query, so that a logout that completes while it is in flight keeps the
+		// session out of the cache
+		long generation = sessionCache.generation();
+
+		try
+		{
+			connection = this.getAutoClosingConnection();
+
+			stmt = connection.prepareStatement(PREPARED_SELECT_SESSION_USER_BY_SESSION_ID);
+			stmt.setString(1, sessionId);
+
+			rs = stmt.executeQuery();
+
+			if (rs.next())
+			{
+				session = sessionCache.putIfCurrent(sessionId, rs.getLong(DB_COL_USER_ID), rs
+						.getString(COL_USER_KEY), rs.getInt(COL_LEVEL), generation);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (connection != null)
+				connection.close();
+		}
+
+		return session;
 	}
 
 	/**
@@ -228,7 +407,7 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 		return isOnline;
 	}
 
-	protected synchronized Set<String> performLookupOnlineUsersInDB()
+	protected Set<String> performLookupOnlineUsersInDB()
 	{
 		Set<String> onlineUsers = new HashSet<String>();
 
@@ -241,7 +420,7 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 			connection = this.getAutoClosingConnection();
 
 			stmt = connection.createStatement();
-			rs = stmt.executeQuery(SELECT_ALL_ONLINE_USERS);
+			rs = stmt.executeQuery(SELECT_ONLINE_USER_KEYS);
 
 			while (rs.next())
 			{
@@ -265,8 +444,9 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	 * @param key
 	 *          the key to use to look up the user; username if useUsername is true or email if it is
 	 *          false.
+	 * @return the number of rows updated; 0 if there is no such user, or the update failed.
 	 */
-	private void performLoginOrLogoutOnDB(String key, String sessionId, boolean login)
+	private int performLoginOrLogoutOnDB(String key, String sessionId, boolean login)
 	{
 		ConnectionWithAutoClose connection = null;
 		PreparedStatementWithAutoClose stmt = null;
@@ -284,14 +464,16 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 			else
 			{
 				stmt = connection.prepareStatement(PREPARED_LOGOUT_USER_BY_USER_KEY);
-				stmt.setString(2, key);
+				stmt.setString(1, key);
 			}
 
-			stmt.executeUpdate();
+			return stmt.executeUpdate();
 		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
+
+			return 0;
 		}
 		finally
 		{
@@ -332,7 +514,7 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	 * @return the current session id for the given email; null if email is not in system or if user
 	 *         is offline
 	 */
-	private synchronized String performLookupSessionIdDB(String userKey)
+	private String performLookupSessionIdDB(String userKey)
 	{
 		String sessionId = null;
 
@@ -370,7 +552,7 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	 * @param sessionId
 	 * @return -1 if the session was not in the database; user id otherwise
 	 */
-	private synchronized long performLookupUserId(String sessionId)
+	private long performLookupUserId(String sessionId)
 	{
 		long uid = -1;
 
@@ -409,6 +591,24 @@ public class OnlineAuthenticatorDBImpl<UwAX extends UserWithAuxData> extends
 	@Override
 	public Set<String> usersLoggedIn()
 	{
-		return this.performLookupOnlineUsersInDB();
+		return this.onlineUsers.snapshot().asSet();
+	}
+
+	/**
+	 * @see ecologylab.authentication.PagedOnlineAuthenticator#countUsersLoggedIn()
+	 */
+	@Override
+	public int countUsersLoggedIn()
+	{
+		return this.onlineUsers.snapshot().count();
+	}
+
+	/**
+	 * @see ecologylab.authentication.PagedOnlineAuthenticator#usersLoggedIn(int, int)
+	 */
+	@Override
+	public List<String> usersLoggedIn(int offset, int limit)
+	{
+		return this.onlineUsers.snapshot().page(offset, limit);
 	}
 }
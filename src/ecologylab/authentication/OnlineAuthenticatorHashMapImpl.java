@@ -3,8 +3,13 @@
  */
 package ecologylab.authentication;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ecologylab.authentication.logging.AuthDiagnostics;
+import ecologylab.authentication.session.OnlineUserRegistry;
 
 import ecologylab.generic.Debug;
 import ecologylab.oodss.exceptions.SaveFailedException;
@@ -13,12 +18,19 @@ import ecologylab.oodss.exceptions.SaveFailedException;
  * Encapsulates all authentication actions (tracking who is online, etc.), so that Servers don't
  * need to. Requires a backend database of users with passwords (an AuthenticationList).
  * 
+ * Instances of this are shared by all of a server's client session managers, so the online user
+ * and session maps are concurrent, and are never locked. A login claims the user key and the
+ * session id atomically (see claimSession()), so two sessions racing to log in the same user cannot
+ * both succeed. Logouts only remove mappings that still pair the same user key and session id.
+ * Enumerating the logged-in users reads an immutable snapshot from an OnlineUserRegistry, rather
+ * than the live maps.
+ * 
  * @author Zachary O. Toups (zach@ecologylab.net)
  */
 public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implements
-		OnlineAuthenticator<A>
+		PagedOnlineAuthenticator<A>, Resumable<A>
 {
-	protected AuthenticationList<A>		authList;
+	protected AuthenticationList<A>							authList;
 
 	/**
 	 * Map of authenticated keys to session ids. Authenticated keys are typically either usernames or
@@ -27,7 +39,7 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	 * In the base implementation (OnlineAuthenticatorHashMapImpl), the authentication key is
 	 * username.
 	 */
-	protected HashMap<String, String>	authKeyToSessionId	= new HashMap<String, String>();
+	protected ConcurrentHashMap<String, String>	authKeyToSessionId	= new ConcurrentHashMap<String, String>();
 
 	/**
 	 * Map of session ids to authenticated keys. As with authKeyToSessionId, authenticated key may be
@@ -37,7 +49,10 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	 * In the base implementation (OnlineAuthenticatorHashMapImpl), the authentication key is
 	 * username.
 	 */
-	protected HashMap<String, String>	sessionIdToAuthKey	= new HashMap<String, String>();
+	protected ConcurrentHashMap<String, String>	sessionIdToAuthKey	= new ConcurrentHashMap<String, String>();
+
+	/** Snapshots of authKeyToSessionId's keys, for usersLoggedIn(). */
+	protected final OnlineUserRegistry					onlineUsers;
 
 	/**
 	 * Creates a new Authenticator using the given AuthenticationList as a backend database of
@@ -49,6 +64,14 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	public OnlineAuthenticatorHashMapImpl(AuthenticationList<A> source)
 	{
 		authList = source;
+
+		onlineUsers = new OnlineUserRegistry(new OnlineUserRegistry.Source()
+		{
+			public Collection<String> currentUsers()
+			{
+				return authKeyToSessionId.keySet();
+			}
+		});
 	}
 
 	/**
@@ -56,9 +79,6 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	 */
 	public boolean login(A entry, String sessionId)
 	{
-		System.out.println("*****************************************");
-		System.out.println("entry: " + entry.toString());
-
 		boolean loggedInSuccessfully = false;
 
 		// first see if the username exists
@@ -68,41 +88,68 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 			// check password
 			if (authList.isValid(entry))
 			{
-				// now make sure that the user isn't already logged-in
-				if (!sessionIdToAuthKey.containsKey(entry.getUserKey()))
+				// claim the user key and session; fails if either is already logged-in
+				if (claimSession(entry.getUserKey(), sessionId))
 				{
 					// mark login successful
 					loggedInSuccessfully = true;
 
-					// and add to collections
-					addAuthenticatedSession(entry.getUserKey(), sessionId);
-
+					// the uid and level come from the list, never from the client
 					authList.setUID(entry);
+					entry.setLevel(authList.getAccessLevel(entry.getUserKey()));
 					entry.setSessionId(sessionId);
 				}
 				else
 				{
-					debug("already logged in.");
+					AuthDiagnostics.debug(OnlineAuthenticatorHashMapImpl.class, "already logged in", "user",
+							entry.getUserKey());
 				}
 			}
 			else
 			{
-				debug("invalid user with session id");
+				AuthDiagnostics.debug(OnlineAuthenticatorHashMapImpl.class, "login rejected", "user",
+						entry.getUserKey());
 			}
 		}
 		else if (entry == null)
 		{
-			debug("<null> attempted login.");
+			AuthDiagnostics.debug(OnlineAuthenticatorHashMapImpl.class, "<null> attempted login");
 			loggedInSuccessfully = false;
 		}
 		else
 		{
-			debug("username: " + entry.getUserKey() + " does not exist in authentication list.");
+			AuthDiagnostics.debug(OnlineAuthenticatorHashMapImpl.class, "no such user", "user", entry
+					.getUserKey());
 		}
 
 		return loggedInSuccessfully;
 	}
 
+	/**
+	 * @see ecologylab.authentication.Resumable#resume(ecologylab.authentication.User, long, int,
+	 *      long, java.lang.String)
+	 */
+	public boolean resume(A entry, long uid, int level, long authenticated,
+			String sessionId)
+	{
+		// the token may outlive the user it was issued to
+		if (!authList.contains(entry))
+			return false;
+
+		if (!claimSession(entry.getUserKey(), sessionId))
+		{
+			AuthDiagnostics.debug(OnlineAuthenticatorHashMapImpl.class, "already logged in", "user",
+					entry.getUserKey());
+			return false;
+		}
+
+		entry.setUid(uid);
+		entry.setLevel(level);
+		entry.setSessionId(sessionId);
+
+		return true;
+	}
+
 	/**
 	 * @see ecologylab.authentication.AuthenticationList#getAccessLevel(ecologylab.authentication.User)
 	 */
@@ -144,7 +191,23 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	 */
 	public Set<String> usersLoggedIn()
 	{
-		return this.authKeyToSessionId.keySet();
+		return this.onlineUsers.snapshot().asSet();
+	}
+
+	/**
+	 * @see ecologylab.authentication.PagedOnlineAuthenticator#countUsersLoggedIn()
+	 */
+	public int countUsersLoggedIn()
+	{
+		return this.onlineUsers.snapshot().count();
+	}
+
+	/**
+	 * @see ecologylab.authentication.PagedOnlineAuthenticator#usersLoggedIn(int, int)
+	 */
+	public List<String> usersLoggedIn(int offset, int limit)
+	{
+		return this.onlineUsers.snapshot().page(offset, limit);
 	}
 
 	/**
@@ -154,9 +217,10 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	{
 		try
 		{
-			if (entry.getUserKey().equals(this.sessionIdToAuthKey.get(sessionId)))
+			if (this.sessionIdToAuthKey.remove(sessionId, entry.getUserKey()))
 			{
-				removeSessionByUsername(entry.getUserKey());
+				this.authKeyToSessionId.remove(entry.getUserKey(), sessionId);
+				this.onlineUsers.changed();
 				entry.setSessionId(null);
 				return true;
 			}
@@ -187,11 +251,12 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 
 	protected void removeSessionByUsername(String username)
 	{
-		Object key = authKeyToSessionId.remove(username);
+		String sessionId = authKeyToSessionId.remove(username);
 
-		if (key != null)
+		if (sessionId != null)
 		{
-			this.sessionIdToAuthKey.remove(key);
+			this.sessionIdToAuthKey.remove(sessionId, username);
+			this.onlineUsers.changed();
 		}
 	}
 
@@ -201,13 +266,40 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 
 		if (key != null)
 		{
-			this.authKeyToSessionId.remove(key);
+			this.authKeyToSessionId.remove(key, sessionId);
+			this.onlineUsers.changed();
 		}
 	}
 
 	/**
-	 * Adds a username + sessionId to the appropriate tracking objects. Should be called only after a
-	 * session has been created (such as by login()).
+	 * Atomically records that username is logged-in on sessionId, if neither is logged-in already.
+	 * The user key is claimed first; if the session id turns out to be taken by another user, the
+	 * claim on the user key is released again. sessionValid() only sees the session once both are
+	 * claimed.
+	 * 
+	 * @param username
+	 * @param sessionId
+	 * @return true if both were claimed; false if either was already logged-in.
+	 */
+	protected boolean claimSession(String username, String sessionId)
+	{
+		if (this.authKeyToSessionId.putIfAbsent(username, sessionId) != null)
+			return false;
+
+		if (this.sessionIdToAuthKey.putIfAbsent(sessionId, username) != null)
+		{
+			this.authKeyToSessionId.remove(username, sessionId);
+			return false;
+		}
+
+		this.onlineUsers.changed();
+		return true;
+	}
+
+	/**
+	 * Adds a username + sessionId to the appropriate tracking objects, replacing any existing
+	 * mappings. Should be called only after a session has been created (such as by login()); login()
+	 * itself uses claimSession(), which does not replace.
 	 * 
 	 * @param username
 	 * @param sessionId
@@ -216,6 +308,7 @@ public class OnlineAuthenticatorHashMapImpl<A extends User> extends Debug implem
 	{
 		this.sessionIdToAuthKey.put(sessionId, username);
 		this.authKeyToSessionId.put(username, sessionId);
+		this.onlineUsers.changed();
 	}
 
 	public boolean sessionValid(String sessionId)
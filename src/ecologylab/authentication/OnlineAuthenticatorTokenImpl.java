@@ -0,0 +1,287 @@
+package ecologylab.authentication;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import ecologylab.authentication.logging.AuthDiagnostics;
+import ecologylab.authentication.session.SessionRevocationList;
+import ecologylab.authentication.session.SessionTokens;
+import ecologylab.generic.Debug;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * An OnlineAuthenticator that keeps no session state: the session id given to each user who logs
+ * in is a SessionTokens token, carrying the user's key, uid, level, and expiry under a MAC, so
+ * sessionValid() is answered by checking the MAC, with no map or database access. Every server
+ * that shares the token secret accepts the same sessions, so servers can be added without sharing
+ * a session store. Logouts, and forced logouts of a user, are recorded in a SessionRevocationList.
+ * 
+ * This is a library-only building block: no server in this package uses it. Because the token is
+ * the session id, login() ignores the sessionId it is given, and sets the entry's session id to a
+ * new token, which the caller must hand to the client and check with sessionValid() on each later
+ * request; nothing here carries the token to or from the client. OODSS servers assign each
+ * connection its own session id, which this does not accept, so they must use
+ * OnlineAuthenticatorHashMapImpl or OnlineAuthenticatorDBImpl.
+ * 
+ * Since no one keeps track of who is online, a user may hold several sessions at once,
+ * isLoggedIn() is always false, and the usersLoggedIn() methods return nothing. Passwords, and all
+ * changes to the users, go to the backing AuthenticationList.
+ */
+public class OnlineAuthenticatorTokenImpl<A extends User> extends Debug implements
+		PagedOnlineAuthenticator<A>, Resumable<A>
+{
+	protected final AuthenticationList<A>		authList;
+
+	protected final SessionTokens						tokens;
+
+	protected final SessionRevocationList		revocations;
+
+	/**
+	 * Creates an authenticator whose tokens are signed with a new random secret, so they are only
+	 * accepted by this instance.
+	 */
+	public OnlineAuthenticatorTokenImpl(AuthenticationList<A> source)
+	{
+		this(source, new SessionTokens());
+	}
+
+	/**
+	 * @param source
+	 *          the AuthenticationList of usernames and passwords to use for authentication.
+	 * @param tokens
+	 *          issues and checks session tokens; give every server the same secret to share sessions.
+	 */
+	public OnlineAuthenticatorTokenImpl(AuthenticationList<A> source, SessionTokens tokens)
+	{
+		this.authList = source;
+		this.tokens = tokens;
+		this.revocations = new SessionRevocationList(tokens.getLifetimeMillis());
+	}
+
+	/**
+	 * Checks entry's password and, if it matches, sets entry's uid, level, and session id; the new
+	 * session id is a token, to be given to the client.
+	 * 
+	 * @param sessionId
+	 *          ignored; the session id is chosen by this.
+	 * @see ecologylab.authentication.OnlineAuthenticator#login(A, java.lang.String)
+	 */
+	public boolean login(A entry, String sessionId)
+	{
+		if (entry == null)
+		{
+			AuthDiagnostics.debug(OnlineAuthenticatorTokenImpl.class, "<null> attempted login");
+			return false;
+		}
+
+		if (!authList.isValid(entry))
+		{
+			AuthDiagnostics.debug(OnlineAuthenticatorTokenImpl.class, "login rejected", "user", entry
+					.getUserKey());
+			return false;
+		}
+
+		// the uid and level come from the list, never from the client
+		authList.setUID(entry);
+		entry.setLevel(authList.getAccessLevel(entry.getUserKey()));
+		entry.setSessionId(tokens.issue(entry));
+
+		return true;
+	}
+
+	/**
+	 * Sets entry's uid and level, and gives it a new token as its session id, unless the user has
+	 * been removed, or forced out by logoutUser() since authenticated.
+	 * 
+	 * @param sessionId
+	 *          ignored; the session id is chosen by this.
+	 * @see ecologylab.authentication.Resumable#resume(ecologylab.authentication.User, long, int,
+	 *      long, java.lang.String)
+	 */
+	public boolean resume(A entry, long uid, int level, long authenticated,
+			String sessionId)
+	{
+		// the resumption token may outlive the user's account, or a forced logout
+		if (!authList.contains(entry) || revocations.isUserRevoked(entry.getUserKey(), authenticated))
+		{
+			AuthDiagnostics.debug(OnlineAuthenticatorTokenImpl.class, "resume rejected", "user", entry
+					.getUserKey());
+			return false;
+		}
+
+		entry.setUid(uid);
+		entry.setLevel(level);
+		entry.setSessionId(tokens.issue(entry));
+
+		return true;
+	}
+
+	/**
+	 * @return what sessionId says about its user, if it is a genuine, unexpired, and unrevoked
+	 *         token; otherwise null.
+	 */
+	public SessionTokens.Claims lookupSession(String sessionId)
+	{
+		SessionTokens.Claims claims = tokens.verify(sessionId);
+
+		if (claims == null || revocations.isRevoked(sessionId, claims))
+			return null;
+
+		return claims;
+	}
+
+	public boolean sessionValid(String sessionId)
+	{
+		return this.lookupSession(sessionId) != null;
+	}
+
+	/**
+	 * Revokes sessionId, if it is a valid session of entry's user.
+	 * 
+	 * @see ecologylab.authentication.OnlineAuthenticator#logout(A, java.lang.String)
+	 */
+	public boolean logout(A entry, String sessionId)
+	{
+		SessionTokens.Claims claims = this.lookupSession(sessionId);
+
+		if (claims == null || !claims.getUserKey().equals(entry.getUserKey()))
+			return false;
+
+		revocations.revoke(sessionId, claims);
+		entry.setSessionId(null);
+
+		return true;
+	}
+
+	public void logoutBySessionId(String sessionId)
+	{
+		SessionTokens.Claims claims = this.lookupSession(sessionId);
+
+		if (claims != null)
+			revocations.revoke(sessionId, claims);
+	}
+
+	/**
+	 * Forces userKey out of every session it holds, by revoking all of the tokens issued to it so
+	 * far.
+	 */
+	public void logoutUser(String userKey)
+	{
+		revocations.revokeUser(userKey);
+	}
+
+	public SessionRevocationList getRevocations()
+	{
+		return revocations;
+	}
+
+	/**
+	 * Always false; sessions are not tracked.
+	 * 
+	 * @see ecologylab.authentication.OnlineAuthenticator#isLoggedIn(A)
+	 */
+	public boolean isLoggedIn(A entry)
+	{
+		return false;
+	}
+
+	/**
+	 * Always null; sessions are not tracked.
+	 */
+	public String getSessionId(A entry)
+	{
+		return null;
+	}
+
+	/**
+	 * @return an empty set if administrator is valid, and an administrator; else null.
+	 */
+	public Set<String> usersLoggedIn(A administrator)
+	{
+		if (this.getAccessLevel(administrator) >= AuthLevels.ADMINISTRATOR)
+			return this.usersLoggedIn();
+
+		return null;
+	}
+
+	/**
+	 * Always empty; sessions are not tracked.
+	 */
+	public Set<String> usersLoggedIn()
+	{
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Always 0; sessions are not tracked.
+	 */
+	public int countUsersLoggedIn()
+	{
+		return 0;
+	}
+
+	/**
+	 * Always empty; sessions are not tracked.
+	 */
+	public List<String> usersLoggedIn(int offset, int limit)
+	{
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @see ecologylab.authentication.AuthenticationList#getAccessLevel(ecologylab.authentication.User)
+	 */
+	public int getAccessLevel(A entry)
+	{
+		if (authList.isValid(entry))
+			return authList.getAccessLevel(entry);
+
+		return -1;
+	}
+
+	public int getAccessLevel(String userKey)
+	{
+		return authList.getAccessLevel(userKey);
+	}
+
+	public boolean addUser(A entry) throws SaveFailedException
+	{
+		return this.authList.addUser(entry);
+	}
+
+	/**
+	 * Removes the user and revokes its sessions, which would otherwise stay valid until they expire.
+	 * 
+	 * @see ecologylab.authentication.AuthenticationList#removeUser(ecologylab.authentication.User)
+	 */
+	public boolean removeUser(A entry) throws SaveFailedException
+	{
+		boolean removed = this.authList.removeUser(entry);
+
+		if (removed)
+			revocations.revokeUser(entry.getUserKey());
+
+		return removed;
+	}
+
+	public boolean contains(A entry)
+	{
+		return this.authList.contains(entry);
+	}
+
+	public boolean isValid(A entry)
+	{
+		return this.authList.isValid(entry);
+	}
+
+	public void setUID(A entry)
+	{
+		this.authList.setUID(entry);
+	}
+
+	public void save() throws SaveFailedException
+	{
+		this.authList.save();
+	}
+}
@@ -0,0 +1,33 @@
+package ecologylab.authentication;
+
+import java.util.List;
+
+/**
+ * An OnlineAuthenticator that can count its logged-in users, and list them a page at a time, without
+ * building the whole set that usersLoggedIn() returns.
+ * 
+ * @param <U>
+ */
+public interface PagedOnlineAuthenticator<U extends User> extends OnlineAuthenticator<U>
+{
+	/**
+	 * Counts the users that are logged-in, without enumerating them; to be used by the backend
+	 * system only.
+	 * 
+	 * @return the number of logged-in users.
+	 */
+	public int countUsersLoggedIn();
+
+	/**
+	 * Looks up one page of the logged-in users, in sorted order; to be used by the backend system
+	 * only. Pages are taken from a snapshot, so paging through the whole list may miss or repeat users
+	 * who log in or out meanwhile.
+	 * 
+	 * @param offset
+	 *          the index of the first user to return.
+	 * @param limit
+	 *          the maximum number of users to return.
+	 * @return an unmodifiable list of up to limit user keys.
+	 */
+	public List<String> usersLoggedIn(int offset, int limit);
+}
@@ -0,0 +1,32 @@
+package ecologylab.authentication;
+
+/**
+ * Indicates that the implementer can log-in a user without checking its password, because the
+ * user's identity has already been verified, such as by a ResumeTokens token. OnlineAuthenticators
+ * and servers that implement this accept Resume requests; Resume requests to any others fail.
+ * 
+ * @param <E>
+ */
+public interface Resumable<E extends User>
+{
+	/**
+	 * Logs-in the given user without checking its password or looking it up in the backing store.
+	 * Handles the same bookkeeping as login(), and sets entry's uid and level to those given.
+	 * 
+	 * @param entry
+	 *          the user to log in; only its username need be set.
+	 * @param uid
+	 *          the verified uid of the user.
+	 * @param level
+	 *          the verified access level of the user.
+	 * @param authenticated
+	 *          when the user last logged in with its password, in milliseconds since the epoch; an
+	 *          implementation that can force users out refuses to resume sessions begun before the
+	 *          user was last forced out.
+	 * @param sessionId
+	 *          the session identifier for the connection, provided by OODSS, or a servlet.
+	 * @return true if the login was successful; false if the user or session is already logged-in,
+	 *         the user no longer exists, or it has been forced out since authenticated.
+	 */
+	public boolean resume(E entry, long uid, int level, long authenticated, String sessionId);
+}
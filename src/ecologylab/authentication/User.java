@@ -3,12 +3,10 @@
  */
 package ecologylab.authentication;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
 
-import biz.source_code.Base64Coder;
+import ecologylab.authentication.password.PasswordDigester;
+import ecologylab.authentication.password.PasswordHashes;
 import ecologylab.serialization.ElementState;
 import ecologylab.serialization.annotations.simpl_inherit;
 import ecologylab.serialization.annotations.simpl_other_tags;
@@ -71,6 +69,13 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 	 */
 	private String	sessionId	= null;
 
+	/**
+	 * The raw SHA-256 digest that password encodes, decoded on first comparison so that later
+	 * comparisons work on bytes; paired with the password it was decoded from, so that a concurrent
+	 * password change can never leave a stale digest in place. Not serialized.
+	 */
+	private volatile DecodedPassword	decodedPassword;
+
 	/**
 	 * No-argument constructor for serialization.
 	 */
@@ -119,15 +124,74 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 
 	/**
 	 * Compares the given hashed password (such as the kind from the getPassword() method) to the one
-	 * contained in this object.
+	 * contained in this object, which is treated as the stored password: it may be a versioned,
+	 * salted hash from a PasswordHasher, but hashedPassword may not.
 	 * 
 	 * @param hashedPassword
-	 *          - the password to check.
+	 *          - the password to check, as sent by a client.
 	 * @return true if the passwords are identical, false otherwise.
 	 */
 	public final boolean compareHashedPassword(String hashedPassword)
 	{
-		return this.password.trim().equals(hashedPassword.trim());
+		return PasswordHashes.matches(this.password, hashedPassword);
+	}
+
+	/**
+	 * Compares the password of the given User, as sent by a client, to the one contained in this
+	 * object, which is treated as the stored password. When both are legacy hashes, their decoded
+	 * digests are compared in constant time; the digests are cached, so repeated comparisons against
+	 * a stored User do not decode or allocate.
+	 * 
+	 * @param other
+	 *          - the User whose password to check.
+	 * @return true if the passwords are identical, false otherwise.
+	 */
+	final boolean compareHashedPassword(User other)
+	{
+		byte[] digest = this.getPasswordDigest();
+		byte[] otherDigest = other.getPasswordDigest();
+
+		if (digest != null && otherDigest != null)
+			return PasswordHashes.constantTimeEquals(digest, otherDigest);
+
+		return PasswordHashes.matches(this.password, other.password);
+	}
+
+	/**
+	 * @return the decoded digest of a legacy password hash, or null if the password is versioned or
+	 *         not a valid encoded digest.
+	 */
+	byte[] getPasswordDigest()
+	{
+		String encoded = this.password;
+		DecodedPassword decoded = this.decodedPassword;
+
+		if (decoded != null && decoded.encoded == encoded)
+			return decoded.digest;
+
+		if (encoded == null || PasswordHashes.isVersioned(encoded))
+			return null;
+
+		byte[] digest = PasswordHashes.decodeDigest(encoded);
+		this.decodedPassword = new DecodedPassword(encoded, digest);
+
+		return digest;
+	}
+
+	/**
+	 * A stored password and the digest decoded from it.
+	 */
+	private static final class DecodedPassword
+	{
+		final String	encoded;
+
+		final byte[]	digest;
+
+		DecodedPassword(String encoded, byte[] digest)
+		{
+			this.encoded = encoded;
+			this.digest = digest;
+		}
 	}
 
 	/**
@@ -140,7 +204,13 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 	 */
 	public boolean comparePassword(String plaintextPassword)
 	{
-		return this.password.equals(hashPassword(plaintextPassword));
+		if (plaintextPassword == null || this.password == null)
+			return false;
+
+		if (PasswordHashes.isVersioned(this.password))
+			return PasswordHashes.matches(this.password, hashPassword(plaintextPassword));
+
+		return PasswordDigester.get().matchesEncoded(plaintextPassword, this.password);
 	}
 	
 	public static void main(String[] args)
@@ -153,7 +223,8 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 	}
 
 	/**
-	 * Hashes the given password using SHA-256 and returns it as a String.
+	 * Hashes the given password using SHA-256 and returns it as a String. Uses the calling thread's
+	 * PasswordDigester, so no MessageDigest lookup or intermediate buffers are needed.
 	 * 
 	 * @param plaintextPassword
 	 *          - the password to hash.
@@ -162,35 +233,7 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 	private static String hashPassword(String plaintextPassword)
 	{
 		if (plaintextPassword != null)
-		{
-			try
-			{
-				MessageDigest encrypter = MessageDigest.getInstance("SHA-256");
-
-				try
-				{
-					encrypter.update(plaintextPassword.getBytes("UTF8"));
-				}
-				catch (UnsupportedEncodingException e)
-				{
-					System.err.println("Unsupported Enconding: UTF8: this should "
-							+ "never happen all JVM's required to implement UTF8");
-					e.printStackTrace();
-				}
-
-				// convert to normal characters and return as a String
-				return new String(Base64Coder.encode(encrypter.digest()));
-
-			}
-			catch (NoSuchAlgorithmException e)
-			{
-				// this won't happen in practice, once we have the right one! :D
-				e.printStackTrace();
-			}
-
-			// this should never occur
-			return plaintextPassword;
-		}
+			return PasswordDigester.get().hashToString(plaintextPassword);
 
 		return null;
 	}
@@ -203,6 +246,32 @@ class User extends ElementState implements AuthLevels, IMappable<String>, Compar
 		return password;
 	}
 
+	/**
+	 * Replaces the stored password with one that is already hashed, such as the stored form produced
+	 * by a PasswordHasher. Used only by backing stores.
+	 * 
+	 * @param hashedPassword
+	 */
+	void setHashedPassword(String hashedPassword)
+	{
+		this.password = hashedPassword;
+	}
+
+	/**
+	 * Replaces the stored password with a legacy hash whose digest has already been decoded, such as
+	 * one read from a binary snapshot, so that it need not be decoded again on the first login.
+	 * 
+	 * @param hashedPassword
+	 *          the Base64-encoded digest.
+	 * @param digest
+	 *          the raw digest that hashedPassword encodes.
+	 */
+	void setHashedPassword(String hashedPassword, byte[] digest)
+	{
+		this.password = hashedPassword;
+		this.decodedPassword = new DecodedPassword(hashedPassword, digest);
+	}
+
 	/**
 	 * @return Returns the username.
 	 */
@@ -0,0 +1,47 @@
+package ecologylab.authentication.async;
+
+import java.util.concurrent.CompletableFuture;
+
+import ecologylab.authentication.User;
+
+/**
+ * The asynchronous counterpart of Authenticatable: each method starts the operation and returns at
+ * once, with a CompletableFuture that completes when the operation does.
+ * 
+ * @see ecologylab.authentication.Authenticatable
+ */
+public interface AsyncAuthenticatable<E extends User>
+{
+	/**
+	 * Starts logging-in entry on the given session.
+	 * 
+	 * @return a future result that is SUCCEEDED if the user logged in, or says why not.
+	 */
+	public CompletableFuture<AuthResult> loginAsync(E entry, String sessionId);
+
+	/**
+	 * Starts logging-out entry, if it is logged-in on the given session.
+	 * 
+	 * @return a future result that is SUCCEEDED if the user logged out, or says why not.
+	 */
+	public CompletableFuture<AuthResult> logoutAsync(E entry, String sessionId);
+
+	/**
+	 * Starts checking whether entry is currently logged-in.
+	 */
+	public CompletableFuture<Boolean> isLoggedInAsync(E entry);
+
+	/**
+	 * Starts adding entry as a new user.
+	 * 
+	 * @return a future result that is SUCCEEDED, ALREADY_EXISTS, or STORE_FAILED.
+	 */
+	public CompletableFuture<AuthResult> addNewUserAsync(E entry);
+
+	/**
+	 * Starts removing the user matching entry's username and password.
+	 * 
+	 * @return a future result that is SUCCEEDED, UNKNOWN_USER, INVALID_CREDENTIALS, or STORE_FAILED.
+	 */
+	public CompletableFuture<AuthResult> removeExistingUserAsync(E entry);
+}
@@ -0,0 +1,54 @@
+package ecologylab.authentication.async;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import ecologylab.authentication.User;
+
+/**
+ * The asynchronous counterpart of OnlineAuthenticator: each method starts the operation and returns
+ * at once, with a CompletableFuture that completes when the backing store has answered. A failure
+ * of the backing store is reported as a STORE_FAILED result where there is one, and otherwise by
+ * failing the future.
+ * 
+ * @see ecologylab.authentication.OnlineAuthenticator
+ */
+public interface AsyncOnlineAuthenticator<U extends User> extends AsyncAuthenticatable<U>
+{
+	/**
+	 * Starts logging-in entry on the given session; if the login succeeds, entry's uid is set.
+	 * 
+	 * @return a future result that is SUCCEEDED, INVALID_CREDENTIALS, ALREADY_LOGGED_IN, or
+	 *         STORE_FAILED.
+	 */
+	public CompletableFuture<AuthResult> loginAsync(U entry, String sessionId);
+
+	/**
+	 * Starts logging-out entry, if it is logged-in on the given session.
+	 * 
+	 * @return a future result that is SUCCEEDED, NOT_LOGGED_IN, or SESSION_MISMATCH.
+	 */
+	public CompletableFuture<AuthResult> logoutAsync(U entry, String sessionId);
+
+	/**
+	 * Starts logging-out whichever user is logged-in on sessionId, if any.
+	 */
+	public CompletableFuture<Void> logoutBySessionIdAsync(String sessionId);
+
+	/**
+	 * Starts checking whether sessionId is logged-in.
+	 */
+	public CompletableFuture<Boolean> sessionValidAsync(String sessionId);
+
+	/**
+	 * Starts checking entry's username and password against the backing store.
+	 */
+	public CompletableFuture<Boolean> isValidAsync(U entry);
+
+	/**
+	 * Starts looking up the logged-in users for an administrator.
+	 * 
+	 * @return a future set of usernames, or of null if administrator is not valid.
+	 */
+	public CompletableFuture<Set<String>> usersLoggedInAsync(U administrator);
+}
@@ -0,0 +1,163 @@
+package ecologylab.authentication.async;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ecologylab.authentication.messages.AuthMessages;
+
+/**
+ * The outcome of an asynchronous login, logout, or change to the users, with the reason it failed
+ * (which the blocking API reduces to false), and the exception, if the backing store failed.
+ */
+public final class AuthResult implements AuthMessages
+{
+	public enum Outcome
+	{
+		/** The operation succeeded. */
+		SUCCEEDED,
+
+		/** The username was not found, or the password did not match. */
+		INVALID_CREDENTIALS,
+
+		/** Login failed, because the user is already logged-in on another session. */
+		ALREADY_LOGGED_IN,
+
+		/** Logout failed, because the user was not logged-in. */
+		NOT_LOGGED_IN,
+
+		/** Logout failed, because the user is logged-in on a different session. */
+		SESSION_MISMATCH,
+
+		/** Adding a user failed, because one with the same key already exists. */
+		ALREADY_EXISTS,
+
+		/** Removing a user failed, because there is no such user. */
+		UNKNOWN_USER,
+
+		/** The backing store could not be read or written; see getCause(). */
+		STORE_FAILED
+	}
+
+	private static final AuthResult	SUCCEEDED						= new AuthResult(Outcome.SUCCEEDED, null);
+
+	private static final AuthResult	INVALID_CREDENTIALS	= new AuthResult(
+																													Outcome.INVALID_CREDENTIALS,
+																													null);
+
+	private final Outcome						outcome;
+
+	private final Exception					cause;
+
+	private AuthResult(Outcome outcome, Exception cause)
+	{
+		this.outcome = outcome;
+		this.cause = cause;
+	}
+
+	public static AuthResult succeeded()
+	{
+		return SUCCEEDED;
+	}
+
+	public static AuthResult failed(Outcome outcome)
+	{
+		if (outcome == Outcome.INVALID_CREDENTIALS)
+			return INVALID_CREDENTIALS;
+
+		return new AuthResult(outcome, null);
+	}
+
+	public static AuthResult storeFailed(Exception cause)
+	{
+		return new AuthResult(Outcome.STORE_FAILED, cause);
+	}
+
+	/**
+	 * Waits for future, parking the calling thread until the operation has finished.
+	 * 
+	 * @return the future's result; STORE_FAILED, with the exception as its cause, if the operation
+	 *         threw, or if the calling thread was interrupted while waiting.
+	 */
+	public static AuthResult await(Future<AuthResult> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+
+			return storeFailed(cause instanceof Exception ? (Exception) cause : e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			return storeFailed(e);
+		}
+	}
+
+	public Outcome getOutcome()
+	{
+		return outcome;
+	}
+
+	public boolean isSuccess()
+	{
+		return outcome == Outcome.SUCCEEDED;
+	}
+
+	/**
+	 * @return the exception raised by the backing store, if the outcome is STORE_FAILED; else null.
+	 */
+	public Exception getCause()
+	{
+		return cause;
+	}
+
+	/**
+	 * @return the AuthMessages explanation a LoginStatusResponse would carry for this outcome, or
+	 *         null if there is none.
+	 */
+	public String getLoginExplanation()
+	{
+		switch (outcome)
+		{
+		case SUCCEEDED:
+			return LOGIN_SUCCESSFUL;
+		case INVALID_CREDENTIALS:
+		case STORE_FAILED:
+			return LOGIN_FAILED_PASSWORD;
+		case ALREADY_LOGGED_IN:
+			return LOGIN_FAILED_LOGGEDIN;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the AuthMessages explanation a LogoutStatusResponse would carry for this outcome, or
+	 *         null if there is none.
+	 */
+	public String getLogoutExplanation()
+	{
+		switch (outcome)
+		{
+		case SUCCEEDED:
+			return LOGOUT_SUCCESSFUL;
+		case NOT_LOGGED_IN:
+			return LOGOUT_FAILED_NOT_LOGGEDIN;
+		case SESSION_MISMATCH:
+			return LOGOUT_FAILED_IP_MISMATCH;
+		default:
+			return null;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return cause == null ? outcome.toString() : outcome + ": " + cause;
+	}
+}
@@ -0,0 +1,217 @@
+package ecologylab.authentication.async;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import ecologylab.authentication.OnlineAuthenticator;
+import ecologylab.authentication.User;
+import ecologylab.authentication.async.AuthResult.Outcome;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Makes any blocking OnlineAuthenticator asynchronous, by running each call on an Executor and
+ * completing its CompletableFuture from there. Use an executor with as many threads as the backing
+ * store can serve at once (for instance, the size of a PooledConnectionProvider), so that slow
+ * queries queue up there rather than on the caller's thread.
+ * 
+ * The reasons for failure that the blocking API does not report are worked out afterwards, on the
+ * executor, with the same checks Login and Logout make.
+ */
+public class ExecutorAsyncAuthenticator<U extends User> implements AsyncOnlineAuthenticator<U>
+{
+	private final OnlineAuthenticator<U>	authenticator;
+
+	private final Executor								executor;
+
+	/**
+	 * @param authenticator
+	 *          the blocking authenticator to call.
+	 * @param executor
+	 *          the executor on which to call it; if it rejects a call, that call's future fails with
+	 *          the RejectedExecutionException.
+	 */
+	public ExecutorAsyncAuthenticator(OnlineAuthenticator<U> authenticator, Executor executor)
+	{
+		this.authenticator = authenticator;
+		this.executor = executor;
+	}
+
+	public OnlineAuthenticator<U> getAuthenticator()
+	{
+		return authenticator;
+	}
+
+	public Executor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Runs task on the executor, completing the returned future with its result.
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					T result;
+
+					try
+					{
+						result = task.call();
+					}
+					catch (Throwable e)
+					{
+						future.completeExceptionally(e);
+						return;
+					}
+
+					future.complete(result);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	public CompletableFuture<AuthResult> loginAsync(final U entry, final String sessionId)
+	{
+		return this.submit(new Callable<AuthResult>()
+		{
+			public AuthResult call()
+			{
+				if (authenticator.login(entry, sessionId))
+					return AuthResult.succeeded();
+
+				return AuthResult.failed(authenticator.isLoggedIn(entry) ? Outcome.ALREADY_LOGGED_IN
+						: Outcome.INVALID_CREDENTIALS);
+			}
+		});
+	}
+
+	public CompletableFuture<AuthResult> logoutAsync(final U entry, final String sessionId)
+	{
+		return this.submit(new Callable<AuthResult>()
+		{
+			public AuthResult call()
+			{
+				if (authenticator.logout(entry, sessionId))
+					return AuthResult.succeeded();
+
+				return AuthResult.failed(authenticator.isLoggedIn(entry) ? Outcome.SESSION_MISMATCH
+						: Outcome.NOT_LOGGED_IN);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> logoutBySessionIdAsync(final String sessionId)
+	{
+		return this.submit(new Callable<Void>()
+		{
+			public Void call()
+			{
+				authenticator.logoutBySessionId(sessionId);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> isLoggedInAsync(final U entry)
+	{
+		return this.submit(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return authenticator.isLoggedIn(entry);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> sessionValidAsync(final String sessionId)
+	{
+		return this.submit(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return authenticator.sessionValid(sessionId);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> isValidAsync(final U entry)
+	{
+		return this.submit(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return authenticator.isValid(entry);
+			}
+		});
+	}
+
+	public CompletableFuture<Set<String>> usersLoggedInAsync(final U administrator)
+	{
+		return this.submit(new Callable<Set<String>>()
+		{
+			public Set<String> call()
+			{
+				return authenticator.usersLoggedIn(administrator);
+			}
+		});
+	}
+
+	public CompletableFuture<AuthResult> addNewUserAsync(final U entry)
+	{
+		return this.submit(new Callable<AuthResult>()
+		{
+			public AuthResult call()
+			{
+				try
+				{
+					if (authenticator.addUser(entry))
+						return AuthResult.succeeded();
+
+					return AuthResult.failed(Outcome.ALREADY_EXISTS);
+				}
+				catch (SaveFailedException e)
+				{
+					return AuthResult.storeFailed(e);
+				}
+			}
+		});
+	}
+
+	public CompletableFuture<AuthResult> removeExistingUserAsync(final U entry)
+	{
+		return this.submit(new Callable<AuthResult>()
+		{
+			public AuthResult call()
+			{
+				try
+				{
+					if (authenticator.removeUser(entry))
+						return AuthResult.succeeded();
+
+					return AuthResult.failed(authenticator.contains(entry) ? Outcome.INVALID_CREDENTIALS
+							: Outcome.UNKNOWN_USER);
+				}
+				catch (SaveFailedException e)
+				{
+					return AuthResult.storeFailed(e);
+				}
+			}
+		});
+	}
+}
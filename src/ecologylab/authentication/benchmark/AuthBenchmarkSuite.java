@@ -0,0 +1,606 @@
+package ecologylab.authentication.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.AuthenticationListXMLImpl;
+import ecologylab.authentication.OnlineAuthenticatorDBImpl;
+import ecologylab.authentication.OnlineAuthenticatorHashMapImpl;
+import ecologylab.authentication.User;
+import ecologylab.authentication.UserWithAuxData;
+import ecologylab.authentication.benchmark.OnlineAuthenticatorContentionBenchmark.ThreadBody;
+import ecologylab.authentication.db.ConnectionProvider;
+import ecologylab.authentication.db.DriverManagerConnectionProvider;
+import ecologylab.authentication.db.PooledConnectionProvider;
+import ecologylab.authentication.messages.Login;
+import ecologylab.authentication.messages.Logout;
+import ecologylab.authentication.password.PasswordDigester;
+import ecologylab.authentication.translationScope.AuthServerTranslations;
+import ecologylab.serialization.SimplTypesScope;
+import ecologylab.serialization.formatenums.StringFormat;
+
+/**
+ * Runs a suite of micro-benchmarks over the hot paths of the authentication subsystem, at several
+ * user counts and thread counts, and prints a table of throughput and time per operation, so that
+ * regressions can be measured by comparing runs:
+ * 
+ * <ul>
+ * <li>User: hashing a password, and comparing hashed and plaintext passwords.</li>
+ * <li>AuthenticationListXMLImpl: isValid, contains, and adding and removing a user.</li>
+ * <li>OnlineAuthenticatorHashMapImpl: login and logout, and sessionValid.</li>
+ * <li>Login and Logout messages: serialization and deserialization through
+ * AuthServerTranslations.</li>
+ * <li>AuthenticationListDBImpl (through OnlineAuthenticatorDBImpl): isValid, and login and logout,
+ * against any JDBC database, such as an in-process H2; only if -db is given.</li>
+ * </ul>
+ * 
+ * Each measurement runs every thread for a warm-up period, then for a measured period. The result
+ * of every operation is folded into a value that is published when the threads finish, so that
+ * the JIT cannot discard the work.
+ * 
+ * <pre>
+ * AuthBenchmarkSuite [-quick] [-filter &lt;substring&gt;] [-db &lt;driver class&gt; &lt;jdbc url&gt; [-createSchema]]
+ * </pre>
+ */
+public class AuthBenchmarkSuite
+{
+	static final int[]		USER_COUNTS							=
+																								{ 1000, 100000 };
+
+	static final int[]		THREAD_COUNTS						=
+																								{ 1, 4, 16 };
+
+	static final int			DB_USERS								= 1000;
+
+	/** The number of sessions kept logged-in for the sessionValid benchmarks. */
+	static final int			SESSIONS								= 1024;
+
+	static long						warmupMillis						= 1000;
+
+	static long						measureMillis						= 3000;
+
+	/** Where operation results end up, so that they are not dead code. */
+	static final AtomicLong	sink									= new AtomicLong();
+
+	public static void main(String[] args) throws Exception
+	{
+		String filter = null;
+		String dbDriver = null;
+		String dbUrl = null;
+		boolean createSchema = false;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if ("-quick".equals(args[i]))
+			{
+				warmupMillis = 200;
+				measureMillis = 1000;
+			}
+			else if ("-filter".equals(args[i]) && i + 1 < args.length)
+			{
+				filter = args[++i];
+			}
+			else if ("-db".equals(args[i]) && i + 2 < args.length)
+			{
+				dbDriver = args[++i];
+				dbUrl = args[++i];
+			}
+			else if ("-createSchema".equals(args[i]))
+			{
+				createSchema = true;
+			}
+			else
+			{
+				System.out
+						.println("AuthBenchmarkSuite [-quick] [-filter <substring>] [-db <driver class> <jdbc url> [-createSchema]]");
+				System.exit(1);
+			}
+		}
+
+		List<Benchmark> benchmarks = createBenchmarks();
+
+		if (dbDriver != null)
+			benchmarks.addAll(createDBBenchmarks(dbDriver, dbUrl, createSchema));
+
+		System.out.println("benchmark\tusers\tthreads\tops/s\tns/op");
+
+		for (Benchmark benchmark : benchmarks)
+		{
+			if (filter != null && !benchmark.name.contains(filter))
+				continue;
+
+			int[] userCounts = benchmark.dependsOnUserCount() ? USER_COUNTS : new int[]
+			{ 0 };
+
+			for (int users : userCounts)
+			{
+				benchmark.setUp(users);
+
+				for (int threads : THREAD_COUNTS)
+				{
+					measure(benchmark, threads, warmupMillis);
+					long[] result = measure(benchmark, threads, measureMillis);
+
+					double seconds = result[1] / 1e9;
+					System.out.printf("%s\t%s\t%d\t%.0f\t%.0f%n", benchmark.name, users > 0 ? Integer
+							.toString(users) : "-", threads, result[0] / seconds, result[1] * (double) threads
+							/ Math.max(1, result[0]));
+				}
+
+				benchmark.tearDown();
+			}
+		}
+
+		// printed so that the sink is observably used
+		System.out.println("(checksum " + sink.get() + ")");
+	}
+
+	/**
+	 * Runs benchmark on the given number of threads for duration milliseconds.
+	 * 
+	 * @return the number of operations performed, summed across threads, and the elapsed time in
+	 *         nanoseconds.
+	 */
+	static long[] measure(final Benchmark benchmark, final int threads, final long duration)
+			throws InterruptedException
+	{
+		final AtomicLong ops = new AtomicLong();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+
+		long began = System.nanoTime();
+
+		OnlineAuthenticatorContentionBenchmark.runAll(threads, new ThreadBody()
+		{
+			public void run(int threadNum)
+			{
+				long end = System.currentTimeMillis() + duration;
+				long count = 0;
+				long folded = 0;
+
+				try
+				{
+					while (System.currentTimeMillis() < end)
+					{
+						// check the clock every 64 operations, so that it does not dominate fast ones
+						for (int i = 0; i < 64; i++)
+							folded += benchmark.op(threadNum, threads, count++);
+					}
+				}
+				catch (Exception e)
+				{
+					synchronized (failures)
+					{
+						failures.add(e);
+					}
+				}
+
+				ops.addAndGet(count);
+				sink.addAndGet(folded);
+			}
+		});
+
+		long elapsed = System.nanoTime() - began;
+
+		if (!failures.isEmpty())
+			throw new IllegalStateException(benchmark.name + " failed: " + failures.get(0), failures
+					.get(0));
+
+		return new long[]
+		{ ops.get(), elapsed };
+	}
+
+	/**
+	 * One measured operation. A Benchmark is shared by all of the threads of a run.
+	 */
+	static abstract class Benchmark
+	{
+		final String	name;
+
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Prepares to run with the given number of users; 0 if the benchmark does not depend on it.
+		 */
+		void setUp(int users) throws Exception
+		{
+		}
+
+		/**
+		 * Performs one operation.
+		 * 
+		 * @param threadNum
+		 *          the calling thread, from 0 to threads - 1.
+		 * @param threads
+		 *          the number of threads running.
+		 * @param iteration
+		 *          the number of operations this thread has performed so far.
+		 * @return a value derived from the result, to be folded into the sink.
+		 */
+		abstract long op(int threadNum, int threads, long iteration) throws Exception;
+
+		void tearDown() throws Exception
+		{
+		}
+
+		boolean dependsOnUserCount()
+		{
+			return true;
+		}
+	}
+
+	static String password(int u)
+	{
+		return "password-" + u;
+	}
+
+	static User[] createUsers(int users)
+	{
+		User[] created = new User[users];
+
+		for (int u = 0; u < users; u++)
+			created[u] = OnlineAuthenticatorContentionBenchmark.newUser(u);
+
+		return created;
+	}
+
+	static AuthenticationListXMLImpl<User> createList(User[] users) throws Exception
+	{
+		AuthenticationListXMLImpl<User> list = new AuthenticationListXMLImpl<User>();
+
+		// add copies, so that the list's users are not the ones the benchmarks pass in
+		for (int u = 0; u < users.length; u++)
+			list.addUser(OnlineAuthenticatorContentionBenchmark.newUser(u));
+
+		return list;
+	}
+
+	/**
+	 * @return the index of a user for the given thread's iteration; threads never share users.
+	 */
+	static int userFor(int threadNum, int threads, long iteration, int users)
+	{
+		int perThread = Math.max(1, users / threads);
+
+		return (int) ((threadNum * perThread + iteration % perThread) % users);
+	}
+
+	static List<Benchmark> createBenchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		final String[] plaintexts = new String[64];
+		final String[] hashes = new String[plaintexts.length];
+
+		for (int i = 0; i < plaintexts.length; i++)
+		{
+			plaintexts[i] = password(i);
+			hashes[i] = PasswordDigester.get().hashToString(plaintexts[i]);
+		}
+
+		final User[] hashedUsers = new User[plaintexts.length];
+
+		for (int i = 0; i < plaintexts.length; i++)
+			hashedUsers[i] = new User("user-" + i, plaintexts[i]);
+
+		benchmarks.add(new Benchmark("User.hashPassword")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				return new User("user", plaintexts[(int) (iteration % plaintexts.length)]).hashCode();
+			}
+
+			@Override
+			boolean dependsOnUserCount()
+			{
+				return false;
+			}
+		});
+
+		benchmarks.add(new Benchmark("User.compareHashedPassword")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				int i = (int) (iteration % hashedUsers.length);
+
+				return hashedUsers[i].compareHashedPassword(hashes[i]) ? 1 : 0;
+			}
+
+			@Override
+			boolean dependsOnUserCount()
+			{
+				return false;
+			}
+		});
+
+		benchmarks.add(new Benchmark("User.comparePassword")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				int i = (int) (iteration % hashedUsers.length);
+
+				return hashedUsers[i].comparePassword(plaintexts[i]) ? 1 : 0;
+			}
+
+			@Override
+			boolean dependsOnUserCount()
+			{
+				return false;
+			}
+		});
+
+		benchmarks.add(new Benchmark("XMLImpl.isValid")
+		{
+			User[]														users;
+
+			AuthenticationListXMLImpl<User>	list;
+
+			@Override
+			void setUp(int count) throws Exception
+			{
+				users = createUsers(count);
+				list = createList(users);
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				return list.isValid(users[userFor(threadNum, threads, iteration, users.length)]) ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new Benchmark("XMLImpl.contains")
+		{
+			User[]														users;
+
+			AuthenticationListXMLImpl<User>	list;
+
+			@Override
+			void setUp(int count) throws Exception
+			{
+				users = createUsers(count);
+				list = createList(users);
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				return list.contains(users[userFor(threadNum, threads, iteration, users.length)]) ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new Benchmark("XMLImpl.addRemoveUser")
+		{
+			AuthenticationListXMLImpl<User>	list;
+
+			@Override
+			void setUp(int count) throws Exception
+			{
+				list = createList(createUsers(count));
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration) throws Exception
+			{
+				// each thread adds and removes its own user, which is never in the list already
+				User user = hashedUsers[threadNum % hashedUsers.length];
+				User added = new User("added-" + threadNum, user.getUserKey());
+
+				boolean result = list.addUser(added);
+				list.removeUser(added);
+
+				return result ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HashMapImpl.loginLogout")
+		{
+			User[]																users;
+
+			OnlineAuthenticatorHashMapImpl<User>	authenticator;
+
+			@Override
+			void setUp(int count) throws Exception
+			{
+				users = createUsers(count);
+				authenticator = new OnlineAuthenticatorHashMapImpl<User>(createList(users));
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				User user = users[userFor(threadNum, threads, iteration, users.length)];
+				String sessionId = "session-" + threadNum;
+
+				boolean loggedIn = authenticator.login(user, sessionId);
+
+				if (loggedIn)
+					authenticator.logout(user, sessionId);
+
+				return loggedIn ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HashMapImpl.sessionValid")
+		{
+			OnlineAuthenticatorHashMapImpl<User>	authenticator;
+
+			String[]															sessionIds;
+
+			@Override
+			void setUp(int count) throws Exception
+			{
+				User[] users = createUsers(count);
+				authenticator = new OnlineAuthenticatorHashMapImpl<User>(createList(users));
+
+				sessionIds = new String[Math.min(SESSIONS, count)];
+
+				for (int s = 0; s < sessionIds.length; s++)
+				{
+					sessionIds[s] = "session-" + s;
+					authenticator.login(users[s], sessionIds[s]);
+				}
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				return authenticator.sessionValid(sessionIds[userFor(threadNum, threads, iteration,
+						sessionIds.length)]) ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new MessageBenchmark("Messages.serializeLogin")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration) throws Exception
+			{
+				return SimplTypesScope.serialize(new Login(hashedUsers[threadNum % hashedUsers.length]),
+						StringFormat.XML).length();
+			}
+		});
+
+		benchmarks.add(new MessageBenchmark("Messages.deserializeLogin")
+		{
+			String	xml;
+
+			@Override
+			void setUp(int users) throws Exception
+			{
+				xml = SimplTypesScope.serialize(new Login(hashedUsers[0]), StringFormat.XML).toString();
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration) throws Exception
+			{
+				return AuthServerTranslations.get().deserialize(xml, StringFormat.XML).hashCode();
+			}
+		});
+
+		benchmarks.add(new MessageBenchmark("Messages.serializeLogout")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration) throws Exception
+			{
+				return SimplTypesScope.serialize(new Logout(hashedUsers[threadNum % hashedUsers.length]),
+						StringFormat.XML).length();
+			}
+		});
+
+		benchmarks.add(new MessageBenchmark("Messages.deserializeLogout")
+		{
+			String	xml;
+
+			@Override
+			void setUp(int users) throws Exception
+			{
+				xml = SimplTypesScope.serialize(new Logout(hashedUsers[0]), StringFormat.XML).toString();
+			}
+
+			@Override
+			long op(int threadNum, int threads, long iteration) throws Exception
+			{
+				return AuthServerTranslations.get().deserialize(xml, StringFormat.XML).hashCode();
+			}
+		});
+
+		return benchmarks;
+	}
+
+	static abstract class MessageBenchmark extends Benchmark
+	{
+		MessageBenchmark(String name)
+		{
+			super(name);
+		}
+
+		@Override
+		boolean dependsOnUserCount()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Benchmarks that share one database and DB_USERS users, created once.
+	 */
+	static List<Benchmark> createDBBenchmarks(String driver, String url, boolean createSchema)
+			throws Exception
+	{
+		int maxThreads = THREAD_COUNTS[THREAD_COUNTS.length - 1];
+
+		final ConnectionProvider pool = new PooledConnectionProvider(
+				new DriverManagerConnectionProvider(driver, url, null, null), maxThreads, maxThreads,
+				30000, 0, 0);
+
+		if (createSchema)
+			DBLoginThroughputBenchmark.createSchema(pool);
+
+		final OnlineAuthenticatorDBImpl<UserWithAuxData> authenticator = new OnlineAuthenticatorDBImpl<UserWithAuxData>(
+				pool);
+
+		final UserWithAuxData[] users = new UserWithAuxData[DB_USERS];
+
+		for (int u = 0; u < DB_USERS; u++)
+		{
+			String key = "suite-" + u;
+			users[u] = new UserWithAuxData(key, password(u), key + "@example.com");
+			authenticator.addUser(new UserWithAuxData(key, password(u), key + "@example.com"));
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new Benchmark("DBImpl.isValid")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				return authenticator.isValid(users[userFor(threadNum, threads, iteration, users.length)]) ? 1
+						: 0;
+			}
+
+			@Override
+			boolean dependsOnUserCount()
+			{
+				return false;
+			}
+		});
+
+		benchmarks.add(new Benchmark("DBImpl.loginLogout")
+		{
+			@Override
+			long op(int threadNum, int threads, long iteration)
+			{
+				UserWithAuxData user = users[userFor(threadNum, threads, iteration, users.length)];
+				String sessionId = "session-" + threadNum;
+
+				boolean loggedIn = authenticator.login(user, sessionId);
+
+				if (loggedIn)
+					authenticator.logout(user, sessionId);
+
+				return loggedIn ? 1 : 0;
+			}
+
+			@Override
+			boolean dependsOnUserCount()
+			{
+				return false;
+			}
+
+			@Override
+			void tearDown() throws Exception
+			{
+				pool.close();
+			}
+		});
+
+		return benchmarks;
+	}
+}
@@ -0,0 +1,187 @@
+package ecologylab.authentication.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.OnlineAuthenticatorDBImpl;
+import ecologylab.authentication.UserWithAuxData;
+import ecologylab.authentication.db.ConnectionProvider;
+import ecologylab.authentication.db.DriverManagerConnectionProvider;
+import ecologylab.authentication.db.PooledConnectionProvider;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Measures how login throughput of OnlineAuthenticatorDBImpl scales with the number of threads
+ * logging in at once. Works against any JDBC database, including an in-process one, e.g.:
+ * 
+ * <pre>
+ * DBLoginThroughputBenchmark org.h2.Driver jdbc:h2:mem:auth;DB_CLOSE_DELAY=-1 -createSchema
+ * </pre>
+ * 
+ * With -createSchema, the study_user table is created first, using DDL that H2 and MySQL accept.
+ */
+public class DBLoginThroughputBenchmark
+{
+	static final String	CREATE_SCHEMA				= "CREATE TABLE study_user ("
+																						+ "user_id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+																						+ "user_key VARCHAR(255) NOT NULL UNIQUE, "
+																						+ "password VARCHAR(255), " + "aux_user_data VARCHAR(255), "
+																						+ "level INT DEFAULT 0, " + "online BOOLEAN DEFAULT FALSE, "
+																						+ "last_online TIMESTAMP, " + "session_id VARCHAR(255))";
+
+	static final int[]	THREAD_COUNTS				=
+																					{ 1, 2, 4, 8, 16 };
+
+	static final int		USERS_PER_THREAD		= 16;
+
+	static final long		MEASURE_MILLIS			= 5000;
+
+	static final long		WARMUP_MILLIS				= 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.out
+					.println("DBLoginThroughputBenchmark <driver class> <jdbc url> [<username> <password>] [-createSchema]");
+			System.exit(1);
+		}
+
+		boolean createSchema = "-createSchema".equals(args[args.length - 1]);
+		int argCount = createSchema ? args.length - 1 : args.length;
+
+		String username = argCount > 2 ? args[2] : null;
+		String password = argCount > 3 ? args[3] : null;
+
+		int maxThreads = THREAD_COUNTS[THREAD_COUNTS.length - 1];
+
+		ConnectionProvider pool = new PooledConnectionProvider(new DriverManagerConnectionProvider(
+				args[0], args[1], username, password), maxThreads, maxThreads, 30000, 0, 0);
+
+		if (createSchema)
+			createSchema(pool);
+
+		OnlineAuthenticatorDBImpl<UserWithAuxData> authenticator = new OnlineAuthenticatorDBImpl<UserWithAuxData>(
+				pool);
+
+		UserWithAuxData[][] users = createUsers(authenticator, maxThreads);
+
+		System.out.println("threads\tlogins/s\tscaling");
+
+		double singleThreaded = 0;
+
+		for (int threads : THREAD_COUNTS)
+		{
+			run(authenticator, users, threads, WARMUP_MILLIS);
+			double loginsPerSecond = run(authenticator, users, threads, MEASURE_MILLIS);
+
+			if (threads == 1)
+				singleThreaded = loginsPerSecond;
+
+			System.out.printf("%d\t%.0f\t%.2fx%n", threads, loginsPerSecond, loginsPerSecond
+					/ singleThreaded);
+		}
+
+		pool.close();
+	}
+
+	static void createSchema(ConnectionProvider connections) throws SQLException
+	{
+		Connection conn = connections.getConnection();
+
+		try
+		{
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate(CREATE_SCHEMA);
+			stmt.close();
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+
+	static UserWithAuxData[][] createUsers(OnlineAuthenticatorDBImpl<UserWithAuxData> authenticator,
+			int threads) throws SaveFailedException
+	{
+		UserWithAuxData[][] users = new UserWithAuxData[threads][USERS_PER_THREAD];
+
+		for (int t = 0; t < threads; t++)
+		{
+			for (int u = 0; u < USERS_PER_THREAD; u++)
+			{
+				String key = "bench-" + t + "-" + u;
+				users[t][u] = new UserWithAuxData(key, "password-" + key, key + "@example.com");
+
+				authenticator.addUser(new UserWithAuxData(key, "password-" + key, key + "@example.com"));
+			}
+		}
+
+		return users;
+	}
+
+	/**
+	 * Logs in users from the given number of threads for duration milliseconds.
+	 * 
+	 * @return logins per second, summed across threads.
+	 */
+	static double run(final OnlineAuthenticatorDBImpl<UserWithAuxData> authenticator,
+			final UserWithAuxData[][] users, int threads, final long duration)
+			throws InterruptedException
+	{
+		final AtomicLong logins = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++)
+		{
+			final UserWithAuxData[] mine = users[t];
+			final int threadNum = t;
+
+			new Thread("login-" + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+
+						long end = System.currentTimeMillis() + duration;
+						long count = 0;
+
+						while (System.currentTimeMillis() < end)
+						{
+							UserWithAuxData user = mine[(int) (count % mine.length)];
+
+							if (!authenticator.login(user, "session-" + threadNum + "-" + count))
+								throw new IllegalStateException("login failed for " + user.getUserKey());
+
+							count++;
+						}
+
+						logins.addAndGet(count);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long began = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - began;
+
+		return logins.get() / (elapsed / 1e9);
+	}
+}
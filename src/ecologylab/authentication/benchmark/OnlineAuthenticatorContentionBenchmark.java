@@ -0,0 +1,226 @@
+package ecologylab.authentication.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.AuthenticationListXMLImpl;
+import ecologylab.authentication.OnlineAuthenticatorHashMapImpl;
+import ecologylab.authentication.User;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Exercises OnlineAuthenticatorHashMapImpl from many threads at once. First, a stress check: every
+ * thread tries to log in every user on its own session, and exactly one login per user must win,
+ * leaving the two session maps consistent; all sessions are then logged out concurrently. Second,
+ * measures login / sessionValid / logout throughput as the number of threads grows, with all
+ * threads contending for a small set of users.
+ * 
+ * <pre>
+ * OnlineAuthenticatorContentionBenchmark [&lt;stress rounds&gt;]
+ * </pre>
+ */
+public class OnlineAuthenticatorContentionBenchmark
+{
+	static final int[]	THREAD_COUNTS							=
+																								{ 1, 2, 4, 8, 16 };
+
+	static final int		STRESS_USERS							= 1000;
+
+	static final int		HOT_USERS									= 8;
+
+	static final int		VALIDATIONS_PER_LOGIN			= 8;
+
+	static final long		MEASURE_MILLIS						= 5000;
+
+	static final long		WARMUP_MILLIS							= 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int maxThreads = THREAD_COUNTS[THREAD_COUNTS.length - 1];
+
+		OnlineAuthenticatorHashMapImpl<User> authenticator = createAuthenticator(STRESS_USERS);
+
+		for (int r = 0; r < rounds; r++)
+			stress(authenticator, maxThreads, STRESS_USERS);
+
+		System.out.println("stress: " + rounds + " rounds of " + maxThreads + " threads racing for "
+				+ STRESS_USERS + " users passed.");
+
+		System.out.println("threads\tops/s\tscaling");
+
+		double singleThreaded = 0;
+
+		for (int threads : THREAD_COUNTS)
+		{
+			run(authenticator, threads, WARMUP_MILLIS);
+			double opsPerSecond = run(authenticator, threads, MEASURE_MILLIS);
+
+			if (threads == 1)
+				singleThreaded = opsPerSecond;
+
+			System.out.printf("%d\t%.0f\t%.2fx%n", threads, opsPerSecond, opsPerSecond / singleThreaded);
+		}
+	}
+
+	static OnlineAuthenticatorHashMapImpl<User> createAuthenticator(int users)
+			throws SaveFailedException
+	{
+		AuthenticationListXMLImpl<User> list = new AuthenticationListXMLImpl<User>();
+
+		for (int u = 0; u < users; u++)
+			list.addUser(newUser(u));
+
+		return new OnlineAuthenticatorHashMapImpl<User>(list);
+	}
+
+	static User newUser(int u)
+	{
+		return new User("user-" + u, "password-" + u);
+	}
+
+	/**
+	 * Has every thread try to log in every user on its own session; checks that exactly one login per
+	 * user succeeded and that the maps agree, then logs every session out from all threads at once and
+	 * checks that nothing is left.
+	 */
+	static void stress(final OnlineAuthenticatorHashMapImpl<User> authenticator, int threads,
+			final int users) throws InterruptedException
+	{
+		final AtomicIntegerArray wins = new AtomicIntegerArray(users);
+
+		runAll(threads, new ThreadBody()
+		{
+			public void run(int threadNum)
+			{
+				for (int u = 0; u < users; u++)
+				{
+					if (authenticator.login(newUser(u), "session-" + threadNum + "-" + u))
+						wins.incrementAndGet(u);
+				}
+			}
+		});
+
+		for (int u = 0; u < users; u++)
+		{
+			if (wins.get(u) != 1)
+				throw new IllegalStateException("user-" + u + " logged in " + wins.get(u) + " times.");
+
+			User user = newUser(u);
+			String sessionId = authenticator.getSessionId(user);
+
+			if (sessionId == null || !authenticator.sessionValid(sessionId))
+				throw new IllegalStateException("user-" + u + " has no valid session.");
+		}
+
+		if (authenticator.usersLoggedIn().size() != users)
+			throw new IllegalStateException(authenticator.usersLoggedIn().size()
+					+ " users logged in; expected " + users);
+
+		runAll(threads, new ThreadBody()
+		{
+			public void run(int threadNum)
+			{
+				for (int u = 0; u < users; u++)
+					authenticator.logoutBySessionId("session-" + threadNum + "-" + u);
+			}
+		});
+
+		if (!authenticator.usersLoggedIn().isEmpty())
+			throw new IllegalStateException(authenticator.usersLoggedIn().size()
+					+ " users still logged in after logout.");
+	}
+
+	/**
+	 * Each thread repeatedly tries to log in one of HOT_USERS users, validates sessions, and logs out
+	 * again, for duration milliseconds.
+	 * 
+	 * @return operations (logins, validations, and logouts) per second, summed across threads.
+	 */
+	static double run(final OnlineAuthenticatorHashMapImpl<User> authenticator, int threads,
+			final long duration) throws InterruptedException
+	{
+		final AtomicLong ops = new AtomicLong();
+
+		long began = System.nanoTime();
+
+		runAll(threads, new ThreadBody()
+		{
+			public void run(int threadNum)
+			{
+				User[] users = new User[HOT_USERS];
+				for (int u = 0; u < HOT_USERS; u++)
+					users[u] = newUser(u);
+
+				long end = System.currentTimeMillis() + duration;
+				long count = 0;
+
+				while (System.currentTimeMillis() < end)
+				{
+					User user = users[(int) ((count + threadNum) % HOT_USERS)];
+					String sessionId = "session-" + threadNum + "-" + count;
+
+					boolean loggedIn = authenticator.login(user, sessionId);
+
+					for (int v = 0; v < VALIDATIONS_PER_LOGIN; v++)
+						authenticator.sessionValid(sessionId);
+
+					if (loggedIn)
+						authenticator.logout(user, sessionId);
+
+					count += VALIDATIONS_PER_LOGIN + 2;
+				}
+
+				ops.addAndGet(count);
+			}
+		});
+
+		long elapsed = System.nanoTime() - began;
+
+		return ops.get() / (elapsed / 1e9);
+	}
+
+	interface ThreadBody
+	{
+		void run(int threadNum);
+	}
+
+	/**
+	 * Runs body on the given number of threads, releasing them together, and waits for all to finish.
+	 */
+	static void runAll(int threads, final ThreadBody body) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int threadNum = t;
+
+			new Thread("contender-" + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						body.run(threadNum);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+	}
+}
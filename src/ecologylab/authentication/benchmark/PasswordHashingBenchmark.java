@@ -0,0 +1,132 @@
+package ecologylab.authentication.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+
+import biz.source_code.Base64Coder;
+import ecologylab.authentication.password.PasswordDigester;
+
+/**
+ * Measures the throughput and per-operation allocation of hashing a client password and comparing
+ * it with a stored hash, which happens for every Login, comparing:
+ * <ul>
+ * <li>legacy: MessageDigest.getInstance(), String.getBytes(), and Base64Coder on every call, then
+ * String comparison (how User hashed passwords originally).</li>
+ * <li>digester: PasswordDigester.hashToString(), then String comparison.</li>
+ * <li>digesterCompare: PasswordDigester.matchesEncoded(), comparing without creating a String.</li>
+ * </ul>
+ * 
+ * Allocation is measured with the HotSpot-specific com.sun.management.ThreadMXBean, where
+ * available.
+ */
+public class PasswordHashingBenchmark
+{
+	static final int		WARMUP_ITERATIONS		= 1000000;
+
+	static final int		MEASURE_ITERATIONS	= 1000000;
+
+	static final String	PASSWORD						= "correct horse battery staple";
+
+	static volatile int	sink;
+
+	public static void main(String[] args) throws Exception
+	{
+		final String stored = PasswordDigester.get().hashToString(PASSWORD);
+
+		Operation[] operations =
+		{ new Operation("legacy")
+		{
+			@Override
+			boolean run() throws Exception
+			{
+				MessageDigest encrypter = MessageDigest.getInstance("SHA-256");
+				encrypter.update(PASSWORD.getBytes("UTF8"));
+				return new String(Base64Coder.encode(encrypter.digest())).trim().equals(stored.trim());
+			}
+		}, new Operation("digester")
+		{
+			@Override
+			boolean run()
+			{
+				return PasswordDigester.get().hashToString(PASSWORD).equals(stored);
+			}
+		}, new Operation("digesterCompare")
+		{
+			@Override
+			boolean run()
+			{
+				return PasswordDigester.get().matchesEncoded(PASSWORD, stored);
+			}
+		} };
+
+		System.out.println("operation\tops/s\tbytes/op");
+
+		for (Operation operation : operations)
+		{
+			operation.measure(WARMUP_ITERATIONS);
+			operation.measure(MEASURE_ITERATIONS);
+			operation.report();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM cannot
+	 * report it.
+	 */
+	static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+					.currentThread().getId());
+
+		return -1;
+	}
+
+	abstract static class Operation
+	{
+		final String	name;
+
+		double				opsPerSecond;
+
+		double				bytesPerOp;
+
+		Operation(String name)
+		{
+			this.name = name;
+		}
+
+		abstract boolean run() throws Exception;
+
+		void measure(int iterations) throws Exception
+		{
+			int matched = 0;
+
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+
+			for (int i = 0; i < iterations; i++)
+			{
+				if (run())
+					matched++;
+			}
+
+			long elapsed = System.nanoTime() - start;
+			long allocatedAfter = allocatedBytes();
+
+			sink += matched;
+
+			opsPerSecond = iterations / (elapsed / 1e9);
+			bytesPerOp = (allocatedBefore < 0) ? -1 : (double) (allocatedAfter - allocatedBefore)
+					/ iterations;
+		}
+
+		void report()
+		{
+			System.out.printf("%s\t%.0f\t%s%n", name, opsPerSecond, bytesPerOp < 0 ? "n/a" : String
+					.format("%.1f", bytesPerOp));
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package ecologylab.authentication.benchmark;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.AuthenticationListXMLImpl;
+import ecologylab.authentication.OnlineAuthenticator;
+import ecologylab.authentication.OnlineAuthenticatorHashMapImpl;
+import ecologylab.authentication.User;
+import ecologylab.authentication.benchmark.OnlineAuthenticatorContentionBenchmark.ThreadBody;
+import ecologylab.authentication.distributed.server.DoubleThreadedAuthNIOServer;
+import ecologylab.authentication.distributed.server.ShardedAuthNIOServer;
+import ecologylab.authentication.metrics.AuthMetrics;
+import ecologylab.authentication.metrics.InstrumentedOnlineAuthenticator;
+import ecologylab.authentication.nio.NIOAuthClient;
+import ecologylab.authentication.nio.SessionShards;
+import ecologylab.authentication.translationScope.AuthServerTranslations;
+import ecologylab.collections.Scope;
+
+/**
+ * Compares DoubleThreadedAuthNIOServer with ShardedAuthNIOServer under load: many clients, each on
+ * its own thread, repeatedly connect, log in, and disconnect (which logs them out), against each
+ * server in turn on the loopback interface. The authenticator sleeps for a configurable time on
+ * each login and logout, to stand in for a database round trip.
+ * 
+ * <pre>
+ * ServerLoadBenchmark [-clients &lt;n&gt;] [-workers &lt;n&gt;] [-delay &lt;millis&gt;] [-seconds &lt;n&gt;] [-port &lt;n&gt;]
+ * </pre>
+ * 
+ * Reports completed login cycles per second and the mean time per cycle, as seen by the clients.
+ */
+public class ServerLoadBenchmark
+{
+	static final int	IDLE_TIMEOUT		= 30000;
+
+	static final int	MAX_PACKET_SIZE	= 8192;
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = 64;
+		int workers = Runtime.getRuntime().availableProcessors();
+		long delayMillis = 2;
+		long seconds = 10;
+		int port = 14100;
+
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if ("-clients".equals(args[i]))
+				clients = Integer.parseInt(args[i + 1]);
+			else if ("-workers".equals(args[i]))
+				workers = Integer.parseInt(args[i + 1]);
+			else if ("-delay".equals(args[i]))
+				delayMillis = Long.parseLong(args[i + 1]);
+			else if ("-seconds".equals(args[i]))
+				seconds = Long.parseLong(args[i + 1]);
+			else if ("-port".equals(args[i]))
+				port = Integer.parseInt(args[i + 1]);
+			else
+			{
+				System.out
+						.println("ServerLoadBenchmark [-clients <n>] [-workers <n>] [-delay <millis>] [-seconds <n>] [-port <n>]");
+				System.exit(1);
+			}
+		}
+
+		System.out.println(clients + " clients, " + delayMillis + "ms authenticator delay, " + workers
+				+ " workers");
+		System.out.println("server\tcycles/s\tms/cycle\tfailures");
+
+		InetAddress[] loopback =
+		{ InetAddress.getByName("127.0.0.1") };
+
+		for (int s = 0; s < 2; s++)
+		{
+			OnlineAuthenticator<User> authenticator = createAuthenticator(clients, delayMillis);
+			DoubleThreadedAuthNIOServer<User> server;
+
+			if (s == 0)
+				server = new DoubleThreadedAuthNIOServer<User>(port + s, loopback,
+						AuthServerTranslations.get(), new Scope(), IDLE_TIMEOUT, MAX_PACKET_SIZE, authenticator);
+			else
+				server = new ShardedAuthNIOServer<User>(port + s, loopback, AuthServerTranslations.get(),
+						new Scope(), IDLE_TIMEOUT, MAX_PACKET_SIZE, authenticator, new SessionShards(workers,
+								SessionShards.DEFAULT_QUEUE_CAPACITY));
+
+			server.start();
+
+			try
+			{
+				// warm up, then measure
+				run(port + s, clients, 1000);
+				long[] result = run(port + s, clients, seconds * 1000);
+
+				double cyclesPerSecond = result[0] * 1000.0 / (seconds * 1000);
+				double millisPerCycle = result[0] == 0 ? 0 : clients * seconds * 1000.0 / result[0];
+
+				System.out.printf("%s\t%.0f\t%.2f\t%d%n", s == 0 ? "double-threaded" : "sharded",
+						cyclesPerSecond, millisPerCycle, result[1]);
+			}
+			finally
+			{
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * @return an authenticator for users user-0 to user-(users - 1), which sleeps for delayMillis on
+	 *         each login and logout.
+	 */
+	static OnlineAuthenticator<User> createAuthenticator(int users, final long delayMillis)
+			throws Exception
+	{
+		AuthenticationListXMLImpl<User> list = new AuthenticationListXMLImpl<User>();
+
+		for (int u = 0; u < users; u++)
+			list.addUser(OnlineAuthenticatorContentionBenchmark.newUser(u));
+
+		return new InstrumentedOnlineAuthenticator<User>(new OnlineAuthenticatorHashMapImpl<User>(list),
+				new AuthMetrics())
+		{
+			@Override
+			public boolean login(User entry, String sessionId)
+			{
+				pause(delayMillis);
+				return super.login(entry, sessionId);
+			}
+
+			@Override
+			public void logoutBySessionId(String sessionId)
+			{
+				pause(delayMillis);
+				super.logoutBySessionId(sessionId);
+			}
+		};
+	}
+
+	static void pause(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Has each client log in and out over and over for duration milliseconds.
+	 * 
+	 * @return the number of successful login cycles, and the number that failed.
+	 */
+	static long[] run(final int port, int clients, final long duration) throws InterruptedException
+	{
+		final AtomicLong cycles = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+
+		OnlineAuthenticatorContentionBenchmark.runAll(clients, new ThreadBody()
+		{
+			public void run(int threadNum)
+			{
+				long end = System.currentTimeMillis() + duration;
+
+				try
+				{
+					NIOAuthClient<Scope, User> client = new NIOAuthClient<Scope, User>("127.0.0.1", port,
+							AuthServerTranslations.get(), new Scope(), OnlineAuthenticatorContentionBenchmark
+									.newUser(threadNum));
+
+					while (System.currentTimeMillis() < end)
+					{
+						if (client.connect() && client.login())
+							cycles.incrementAndGet();
+						else
+							failures.incrementAndGet();
+
+						client.disconnect();
+					}
+				}
+				catch (Exception e)
+				{
+					failures.incrementAndGet();
+				}
+			}
+		});
+
+		return new long[]
+		{ cycles.get(), failures.get() };
+	}
+}
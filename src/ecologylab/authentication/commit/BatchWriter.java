@@ -0,0 +1,25 @@
+package ecologylab.authentication.commit;
+
+import java.util.List;
+
+import ecologylab.authentication.User;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * A backing store that can apply many UserWrites and make them all durable at once: with one save,
+ * or in one transaction.
+ */
+public interface BatchWriter<U extends User>
+{
+	/**
+	 * Applies every write in batch, in order, then makes the batch durable.
+	 * 
+	 * @param batch
+	 * @return for each write, whether it succeeded (as the corresponding AuthenticationList method
+	 *         would have returned).
+	 * @throws SaveFailedException
+	 *           if the batch could not be made durable; then none of its writes may be assumed to have
+	 *           been.
+	 */
+	boolean[] writeBatch(List<UserWrite<U>> batch) throws SaveFailedException;
+}
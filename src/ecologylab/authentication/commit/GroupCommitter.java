@@ -0,0 +1,283 @@
+package ecologylab.authentication.commit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ecologylab.authentication.User;
+import ecologylab.generic.Debug;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Coalesces writes to an AuthenticationList that arrive from many threads into batches, and
+ * commits each batch through a BatchWriter: one save of an XML list, or one transaction against a
+ * database, instead of one per write.
+ * 
+ * A single committer thread takes the first queued write, then waits up to windowMillis for more,
+ * or until maxBatchSize have arrived, and commits them together. Each caller gets a Future that
+ * completes, with the result of its own write, once the whole batch is durable; if the batch fails,
+ * every Future in it fails with the same SaveFailedException.
+ */
+public class GroupCommitter<U extends User> extends Debug
+{
+	public static final long								DEFAULT_WINDOW_MILLIS		= 5;
+
+	public static final int									DEFAULT_MAX_BATCH_SIZE	= 256;
+
+	private final BatchWriter<U>						writer;
+
+	private final long											windowMillis;
+
+	private final int												maxBatchSize;
+
+	private final LinkedBlockingQueue<Pending>	queue										= new LinkedBlockingQueue<Pending>();
+
+	private final Thread										committer;
+
+	private volatile boolean								running									= true;
+
+	/**
+	 * Queued by shutdown(), after every accepted write, to stop the committer; the committer is never
+	 * interrupted, because an interrupt during writeBatch() would close a journal's FileChannel.
+	 */
+	private final Pending										stop										= new Pending(null);
+
+	public GroupCommitter(BatchWriter<U> writer)
+	{
+		this(writer, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	/**
+	 * @param writer
+	 *          the backing store to commit batches to.
+	 * @param windowMillis
+	 *          how long to wait, after the first write of a batch arrives, for others to join it.
+	 * @param maxBatchSize
+	 *          the most writes to commit together.
+	 */
+	public GroupCommitter(BatchWriter<U> writer, long windowMillis, int maxBatchSize)
+	{
+		this.writer = writer;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+
+		committer = new Thread("group-committer")
+		{
+			@Override
+			public void run()
+			{
+				commitLoop();
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	public Future<Boolean> addUser(U user)
+	{
+		return this.submit(UserWrite.add(user));
+	}
+
+	public Future<Boolean> removeUser(U user)
+	{
+		return this.submit(UserWrite.remove(user));
+	}
+
+	public Future<Boolean> updatePassword(String userKey, String newPasswordPlainText)
+	{
+		return this.submit(UserWrite.<U> updatePassword(userKey, newPasswordPlainText));
+	}
+
+	/**
+	 * Queues write to be committed with the next batch.
+	 * 
+	 * @return a Future that completes once the batch containing write is durable.
+	 * @throws IllegalStateException
+	 *           if this has been shut down.
+	 */
+	public Future<Boolean> submit(UserWrite<U> write)
+	{
+		Pending pending = new Pending(write);
+
+		// checked and queued under the lock that shutdown() takes to stop accepting writes, so that
+		// every write is either queued ahead of the stop marker, or refused
+		synchronized (queue)
+		{
+			if (!running)
+				throw new IllegalStateException("GroupCommitter has been shut down.");
+
+			queue.add(pending);
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Commits the writes already queued, then stops the committer thread.
+	 * 
+	 * @throws InterruptedException
+	 *           if the calling thread is interrupted while waiting for the committer to finish; the
+	 *           committer still finishes.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		synchronized (queue)
+		{
+			if (running)
+			{
+				running = false;
+				queue.add(stop);
+			}
+		}
+
+		committer.join();
+	}
+
+	private void commitLoop()
+	{
+		List<Pending> batch = new ArrayList<Pending>(maxBatchSize);
+		boolean stopping = false;
+
+		while (!stopping)
+		{
+			try
+			{
+				Pending first = queue.take();
+
+				if (first == stop)
+					break;
+
+				batch.add(first);
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+
+				while (batch.size() < maxBatchSize)
+				{
+					long remaining = deadline - System.nanoTime();
+
+					if (remaining <= 0)
+						break;
+
+					Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+					if (next == null)
+						break;
+
+					if (next == stop)
+					{
+						stopping = true;
+						break;
+					}
+
+					batch.add(next);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// nothing here interrupts this thread; commit whatever has been gathered, and carry on
+			}
+
+			if (!batch.isEmpty())
+				this.commit(batch);
+
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Pending> batch)
+	{
+		List<UserWrite<U>> writes = new ArrayList<UserWrite<U>>(batch.size());
+
+		for (Pending pending : batch)
+			writes.add(pending.write);
+
+		try
+		{
+			boolean[] results = writer.writeBatch(writes);
+
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).complete(results[i], null);
+		}
+		catch (SaveFailedException e)
+		{
+			for (Pending pending : batch)
+				pending.complete(false, e);
+		}
+		catch (RuntimeException e)
+		{
+			SaveFailedException failure = new SaveFailedException("batch failed", e);
+
+			for (Pending pending : batch)
+				pending.complete(false, failure);
+		}
+	}
+
+	/**
+	 * A queued write, and the Future its caller waits on.
+	 */
+	private final class Pending implements Future<Boolean>
+	{
+		final UserWrite<U>										write;
+
+		private final CountDownLatch					done	= new CountDownLatch(1);
+
+		private volatile boolean							result;
+
+		private volatile SaveFailedException	failure;
+
+		Pending(UserWrite<U> write)
+		{
+			this.write = write;
+		}
+
+		void complete(boolean result, SaveFailedException failure)
+		{
+			this.result = result;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			return false;
+		}
+
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		public boolean isDone()
+		{
+			return done.getCount() == 0;
+		}
+
+		public Boolean get() throws InterruptedException, ExecutionException
+		{
+			done.await();
+			return this.report();
+		}
+
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException
+		{
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+
+			return this.report();
+		}
+
+		private Boolean report() throws ExecutionException
+		{
+			if (failure != null)
+				throw new ExecutionException(failure);
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package ecologylab.authentication.commit;
+
+import ecologylab.authentication.User;
+
+/**
+ * One write to an AuthenticationList, queued to be committed with others by a GroupCommitter.
+ * Instances are immutable.
+ */
+public final class UserWrite<U extends User>
+{
+	public enum Kind
+	{
+		ADD, REMOVE, UPDATE_PASSWORD
+	}
+
+	private final Kind		kind;
+
+	private final U				user;
+
+	private final String	userKey;
+
+	private final String	newPasswordPlainText;
+
+	private UserWrite(Kind kind, U user, String userKey, String newPasswordPlainText)
+	{
+		this.kind = kind;
+		this.user = user;
+		this.userKey = userKey;
+		this.newPasswordPlainText = newPasswordPlainText;
+	}
+
+	/**
+	 * @return a write that adds user, as AuthenticationList.addUser() does.
+	 */
+	public static <U extends User> UserWrite<U> add(U user)
+	{
+		return new UserWrite<U>(Kind.ADD, user, user.getUserKey(), null);
+	}
+
+	/**
+	 * @return a write that removes user, as AuthenticationList.removeUser() does.
+	 */
+	public static <U extends User> UserWrite<U> remove(U user)
+	{
+		return new UserWrite<U>(Kind.REMOVE, user, user.getUserKey(), null);
+	}
+
+	/**
+	 * @return a write that replaces the password of the user with userKey.
+	 */
+	public static <U extends User> UserWrite<U> updatePassword(String userKey,
+			String newPasswordPlainText)
+	{
+		return new UserWrite<U>(Kind.UPDATE_PASSWORD, null, userKey, newPasswordPlainText);
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 * @return the user to add or remove; null for UPDATE_PASSWORD.
+	 */
+	public U getUser()
+	{
+		return user;
+	}
+
+	public String getUserKey()
+	{
+		return userKey;
+	}
+
+	/**
+	 * @return the new password, for UPDATE_PASSWORD; null otherwise.
+	 */
+	public String getNewPasswordPlainText()
+	{
+		return newPasswordPlainText;
+	}
+}
@@ -60,18 +60,72 @@ public interface AuthenticationDBStrings
 																																+ COL_USER_KEY
 																																+ " = ?;";
 
+	/**
+	 * Replaces a user's password only if it is still the one given; used to migrate stored hashes
+	 * without overwriting a password changed since it was read.
+	 */
+	static final String	PREPARED_UPDATE_USER_PASSWORD_IF_UNCHANGED	= "UPDATE "
+																																+ DB_TABLE_USER
+																																+ " SET "
+																																+ COL_PASSWORD
+																																+ " = ? WHERE "
+																																+ COL_USER_KEY
+																																+ " = ? AND "
+																																+ COL_PASSWORD
+																																+ " = ?;";
+
 	static final String	PREPARED_SELECT_USER_BY_USER_KEY			= "SELECT * FROM "
 																																+ DB_TABLE_USER
 																																+ " WHERE "
 																																+ COL_USER_KEY
 																																+ " = ?;";
 
+	/**
+	 * Selects only the columns needed to verify a user's credentials and build the resulting User:
+	 * user_id, level, password, and aux_user_data.
+	 */
+	static final String	PREPARED_SELECT_CREDENTIALS_BY_USER_KEY	= "SELECT "
+																																+ DB_COL_USER_ID
+																																+ ", "
+																																+ COL_LEVEL
+																																+ ", "
+																																+ COL_PASSWORD
+																																+ ", "
+																																+ COL_AUX_USER_DATA
+																																+ " FROM "
+																																+ DB_TABLE_USER
+																																+ " WHERE "
+																																+ COL_USER_KEY
+																																+ " = ?;";
+
+	/** Selects the user_key and stored password of every user; used to migrate stored hashes. */
+	static final String	SELECT_ALL_USER_PASSWORDS							= "SELECT "
+																																+ COL_USER_KEY
+																																+ ", "
+																																+ COL_PASSWORD
+																																+ " FROM "
+																																+ DB_TABLE_USER
+																																+ ";";
+
 	static final String	PREPARED_SELECT_USER_BY_SESSION_ID		= "SELECT * FROM "
 																																+ DB_TABLE_USER
 																																+ " WHERE "
 																																+ COL_SESSION_ID
 																																+ " = ?;";
 
+	/** Selects the user_id, user_key, and level of the user logged-in with a given session_id. */
+	static final String	PREPARED_SELECT_SESSION_USER_BY_SESSION_ID	= "SELECT "
+																																+ DB_COL_USER_ID
+																																+ ", "
+																																+ COL_USER_KEY
+																																+ ", "
+																																+ COL_LEVEL
+																																+ " FROM "
+																																+ DB_TABLE_USER
+																																+ " WHERE "
+																																+ COL_SESSION_ID
+																																+ " = ?;";
+
 	static final String	SELECT_USER_LEVEL_BY_USER_KEY_PREFIX	= "SELECT "
 																																+ COL_LEVEL
 																																+ " FROM "
@@ -102,7 +156,9 @@ public interface AuthenticationDBStrings
 																																+ DB_TABLE_USER
 																																+ " SET "
 																																+ COL_ONLINE
-																																+ "=FALSE WHERE "
+																																+ "=FALSE, "
+																																+ COL_SESSION_ID
+																																+ "=NULL WHERE "
 																																+ COL_USER_KEY
 																																+ "= ?;";
 
@@ -116,6 +172,15 @@ public interface AuthenticationDBStrings
 																																+ COL_SESSION_ID
 																																+ "=?;";
 
+	/** Selects only the user_key of every logged-in user. */
+	static final String	SELECT_ONLINE_USER_KEYS								= "SELECT "
+																																+ COL_USER_KEY
+																																+ " FROM "
+																																+ DB_TABLE_USER
+																																+ " WHERE "
+																																+ COL_ONLINE
+																																+ "=TRUE;";
+
 	static final String	SELECT_ALL_ONLINE_USERS								= "SELECT * FROM "
 																																+ DB_TABLE_USER
 																																+ " WHERE "
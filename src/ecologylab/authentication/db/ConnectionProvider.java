@@ -0,0 +1,30 @@
+package ecologylab.authentication.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Source of JDBC Connections for the database-backed authentication classes. Connections handed out
+ * by a ConnectionProvider must be closed by the caller once it is finished with them; depending on
+ * the implementation, closing a Connection will either release the physical connection or return it
+ * to a pool.
+ * 
+ * @see ecologylab.authentication.AuthenticationListDBImpl
+ */
+public interface ConnectionProvider
+{
+	/**
+	 * Acquires a Connection to the database.
+	 * 
+	 * @return a Connection that is ready to use; never null.
+	 * @throws SQLException
+	 *           if no connection could be obtained.
+	 */
+	public Connection getConnection() throws SQLException;
+
+	/**
+	 * Releases any resources held by this provider. Connections requested after calling this method
+	 * will fail.
+	 */
+	public void close();
+}
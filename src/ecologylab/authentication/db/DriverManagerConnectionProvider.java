@@ -0,0 +1,97 @@
+package ecologylab.authentication.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import ecologylab.generic.Debug;
+
+/**
+ * ConnectionProvider that opens a new physical connection through the DriverManager every time one
+ * is requested. The JDBC driver class is loaded once, when the provider is constructed.
+ * 
+ * On its own, this provider performs a full connect / authenticate handshake with the database for
+ * each call; it is normally wrapped by a {@link PooledConnectionProvider}.
+ */
+public class DriverManagerConnectionProvider extends Debug implements ConnectionProvider
+{
+	/** Driver class used by the authentication database when no other is specified. */
+	public static final String	POSTGRESQL_DRIVER	= "org.postgresql.Driver";
+
+	private final String				url;
+
+	private final Properties		connectionProperties	= new Properties();
+
+	/**
+	 * Creates a new provider for the given JDBC URL; the URL must contain any credentials the
+	 * database requires.
+	 * 
+	 * @param driverClassName
+	 *          fully-qualified name of the JDBC driver class to load; may be null if the driver
+	 *          registers itself.
+	 * @param url
+	 *          the JDBC URL, in the form "jdbc:...".
+	 */
+	public DriverManagerConnectionProvider(String driverClassName, String url)
+	{
+		this(driverClassName, url, null, null);
+	}
+
+	/**
+	 * Creates a new provider for the given JDBC URL, authenticating with username and password.
+	 * 
+	 * @param driverClassName
+	 *          fully-qualified name of the JDBC driver class to load; may be null if the driver
+	 *          registers itself.
+	 * @param url
+	 *          the JDBC URL, in the form "jdbc:...".
+	 * @param username
+	 *          username to connect to database; may be null.
+	 * @param password
+	 *          password for database; may be null.
+	 */
+	public DriverManagerConnectionProvider(String driverClassName, String url, String username,
+			String password)
+	{
+		super();
+
+		this.url = url;
+
+		if (username != null)
+			connectionProperties.setProperty("user", username);
+		if (password != null)
+			connectionProperties.setProperty("password", password);
+
+		if (driverClassName != null)
+		{
+			try
+			{
+				Class.forName(driverClassName);
+			}
+			catch (ClassNotFoundException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @see ecologylab.authentication.db.ConnectionProvider#getConnection()
+	 */
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		return DriverManager.getConnection(url, connectionProperties);
+	}
+
+	/**
+	 * Nothing to release; each Connection is closed by its user.
+	 * 
+	 * @see ecologylab.authentication.db.ConnectionProvider#close()
+	 */
+	@Override
+	public void close()
+	{
+	}
+}
@@ -0,0 +1,549 @@
+package ecologylab.authentication.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ecologylab.generic.Debug;
+
+/**
+ * Bounded pool of JDBC Connections, layered over another ConnectionProvider that creates the
+ * physical connections (typically a {@link DriverManagerConnectionProvider}).
+ *
+ * Connections are handed out as proxies; calling close() on a proxy returns the physical connection
+ * to the pool instead of closing it, so existing code that closes its connection when done (such as
+ * ConnectionWithAutoClose) works unchanged. Each borrow gets a new proxy, which stops working once
+ * it is closed, so a caller that keeps its proxy cannot use or return a connection that has since
+ * been lent to someone else. Statements left open by a borrower are closed when it returns the
+ * connection.
+ *
+ * The pool provides:
+ * <ul>
+ * <li>a hard bound (maxSize) on the number of connections open at once; callers wait up to
+ * maxWaitMillis for one to become free, then fail with an SQLException.</li>
+ * <li>validation-on-borrow: idle connections are checked with Connection.isValid() before being
+ * handed out; broken connections are discarded and replaced.</li>
+ * <li>idle eviction: connections left unused for longer than idleTimeoutMillis are closed by a
+ * background thread, down to minIdle connections.</li>
+ * <li>leak detection: a connection that has been borrowed for longer than leakThresholdMillis is
+ * reported, along with the stack trace of the code that borrowed it.</li>
+ * </ul>
+ */
+public class PooledConnectionProvider extends Debug implements ConnectionProvider
+{
+	public static final int							DEFAULT_MAX_SIZE										= 16;
+
+	public static final long						DEFAULT_MAX_WAIT_MILLIS							= 5000;
+
+	public static final long						DEFAULT_IDLE_TIMEOUT_MILLIS					= 5 * 60 * 1000;
+
+	public static final long						DEFAULT_LEAK_THRESHOLD_MILLIS				= 60 * 1000;
+
+	/** Timeout, in seconds, passed to Connection.isValid() when validating on borrow. */
+	public static final int							VALIDATION_TIMEOUT_SECONDS					= 2;
+
+	private final ConnectionProvider		physicalConnections;
+
+	private final int										maxSize;
+
+	private final int										minIdle;
+
+	private final long									maxWaitMillis;
+
+	private final long									idleTimeoutMillis;
+
+	private final long									leakThresholdMillis;
+
+	/** One permit per connection that may be borrowed; bounds the total size of the pool. */
+	private final Semaphore							permits;
+
+	/**
+	 * Idle connections; most recently returned at the head, so that the least recently used
+	 * connections collect at the tail, where the evictor finds them.
+	 */
+	private final LinkedBlockingDeque<PooledConnection>	idle						= new LinkedBlockingDeque<PooledConnection>();
+
+	private final Set<PooledConnection>	borrowed														= Collections
+																																	.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+
+	private final Thread								maintenanceThread;
+
+	private volatile boolean						closed															= false;
+
+	/**
+	 * Creates a new pool with default settings.
+	 *
+	 * @param physicalConnections
+	 *          the provider used to open new physical connections.
+	 */
+	public PooledConnectionProvider(ConnectionProvider physicalConnections)
+	{
+		this(physicalConnections, DEFAULT_MAX_SIZE, 0, DEFAULT_MAX_WAIT_MILLIS,
+				DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_LEAK_THRESHOLD_MILLIS);
+	}
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param physicalConnections
+	 *          the provider used to open new physical connections.
+	 * @param maxSize
+	 *          the maximum number of connections, idle or borrowed, that the pool will hold.
+	 * @param minIdle
+	 *          the number of idle connections the evictor will leave open.
+	 * @param maxWaitMillis
+	 *          how long getConnection() will wait for a connection when the pool is exhausted.
+	 * @param idleTimeoutMillis
+	 *          how long a connection may sit idle before it is closed; 0 disables idle eviction.
+	 * @param leakThresholdMillis
+	 *          how long a connection may be borrowed before it is reported as leaked; 0 disables
+	 *          leak detection.
+	 */
+	public PooledConnectionProvider(ConnectionProvider physicalConnections, int maxSize, int minIdle,
+			long maxWaitMillis, long idleTimeoutMillis, long leakThresholdMillis)
+	{
+		super();
+
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize must be at least 1: " + maxSize);
+
+		this.physicalConnections = physicalConnections;
+		this.maxSize = maxSize;
+		this.minIdle = Math.min(minIdle, maxSize);
+		this.maxWaitMillis = maxWaitMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+
+		this.permits = new Semaphore(maxSize, true);
+
+		long maintenanceInterval = maintenanceIntervalMillis();
+
+		if (maintenanceInterval > 0)
+		{
+			maintenanceThread = new Thread(new Maintenance(maintenanceInterval),
+					"PooledConnectionProvider maintenance");
+			maintenanceThread.setDaemon(true);
+			maintenanceThread.start();
+		}
+		else
+		{
+			maintenanceThread = null;
+		}
+	}
+
+	/**
+	 * Borrows a Connection from the pool, opening a new one if no idle connection is available and the
+	 * pool is not full. The returned Connection goes back to the pool when it is closed.
+	 *
+	 * @see ecologylab.authentication.db.ConnectionProvider#getConnection()
+	 */
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		if (closed)
+			throw new SQLException("Connection pool has been closed.");
+
+		try
+		{
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS))
+				throw new SQLException("Timed out after " + maxWaitMillis
+						+ "ms waiting for a database connection; all " + maxSize + " are in use.");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection.");
+		}
+
+		try
+		{
+			PooledConnection pooled;
+
+			while ((pooled = idle.pollFirst()) != null)
+			{
+				if (pooled.validate())
+					break;
+
+				pooled.closePhysical();
+			}
+
+			if (pooled == null)
+				pooled = new PooledConnection(physicalConnections.getConnection());
+
+			Connection handle = pooled.borrow();
+			borrowed.add(pooled);
+
+			return handle;
+		}
+		catch (SQLException e)
+		{
+			permits.release();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Called when the user of a borrowed connection closes it.
+	 */
+	private void release(PooledConnection pooled)
+	{
+		borrowed.remove(pooled);
+
+		try
+		{
+			if (!closed && pooled.reset())
+			{
+				idle.offerFirst(pooled);
+			}
+			else
+			{
+				pooled.closePhysical();
+			}
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return the number of connections currently borrowed from the pool.
+	 */
+	public int getActiveCount()
+	{
+		return borrowed.size();
+	}
+
+	/**
+	 * @return the number of open connections waiting in the pool.
+	 */
+	public int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * @return the maximum number of connections this pool will hold.
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Closes all idle connections and stops the maintenance thread. Borrowed connections are closed
+	 * when they are returned.
+	 *
+	 * @see ecologylab.authentication.db.ConnectionProvider#close()
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+
+		if (maintenanceThread != null)
+			maintenanceThread.interrupt();
+
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null)
+			pooled.closePhysical();
+
+		physicalConnections.close();
+	}
+
+	/**
+	 * Closes connections that have been idle too long (keeping minIdle), and reports borrowed
+	 * connections that have been held past the leak threshold.
+	 */
+	protected void performMaintenance()
+	{
+		long now = System.currentTimeMillis();
+
+		if (idleTimeoutMillis > 0)
+		{
+			Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+
+			while (oldestFirst.hasNext() && idle.size() > minIdle)
+			{
+				PooledConnection pooled = oldestFirst.next();
+
+				if (now - pooled.lastReturned >= idleTimeoutMillis && idle.remove(pooled))
+					pooled.closePhysical();
+			}
+		}
+
+		if (leakThresholdMillis > 0)
+		{
+			for (PooledConnection pooled : borrowed)
+			{
+				if (!pooled.leakReported && now - pooled.borrowedAt >= leakThresholdMillis)
+				{
+					pooled.leakReported = true;
+
+					warning("possible connection leak: connection borrowed " + (now - pooled.borrowedAt)
+							+ "ms ago and not yet returned; borrowed at:");
+					pooled.borrowedBy.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private long maintenanceIntervalMillis()
+	{
+		long interval = 0;
+
+		if (idleTimeoutMillis > 0)
+			interval = idleTimeoutMillis / 2;
+		if (leakThresholdMillis > 0)
+			interval = (interval == 0) ? leakThresholdMillis / 2 : Math.min(interval,
+					leakThresholdMillis / 2);
+
+		return (interval == 0) ? 0 : Math.max(interval, 1000);
+	}
+
+	/**
+	 * Periodically runs performMaintenance() until the pool is closed.
+	 */
+	private class Maintenance implements Runnable
+	{
+		private final long	intervalMillis;
+
+		Maintenance(long intervalMillis)
+		{
+			this.intervalMillis = intervalMillis;
+		}
+
+		@Override
+		public void run()
+		{
+			while (!closed)
+			{
+				try
+				{
+					Thread.sleep(intervalMillis);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+
+				try
+				{
+					performMaintenance();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A physical connection, along with the state of its current borrow.
+	 */
+	private class PooledConnection
+	{
+		final Connection							physical;
+
+		volatile long									borrowedAt;
+
+		volatile long									lastReturned;
+
+		volatile Throwable						borrowedBy;
+
+		volatile boolean							leakReported;
+
+		/** Statements created by the current borrower, closed when the connection is returned. */
+		private final List<Statement>	statements	= Collections
+																										.synchronizedList(new ArrayList<Statement>());
+
+		PooledConnection(Connection physical)
+		{
+			this.physical = physical;
+		}
+
+		/**
+		 * @return a new proxy for this connection, for the borrower alone.
+		 */
+		Connection borrow()
+		{
+			borrowedAt = System.currentTimeMillis();
+			borrowedBy = (leakThresholdMillis > 0) ? new Throwable("connection borrowed") : null;
+			leakReported = false;
+
+			return new BorrowedConnection(this).proxy;
+		}
+
+		/**
+		 * @return true if the physical connection is still usable.
+		 */
+		boolean validate()
+		{
+			try
+			{
+				return !physical.isClosed() && physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+			}
+			catch (SQLException e)
+			{
+				return false;
+			}
+			catch (AbstractMethodError e)
+			{ // pre-JDBC 4 driver; cannot validate, so trust it
+				return true;
+			}
+		}
+
+		/**
+		 * Restores the connection to a clean state before it goes back into the pool.
+		 *
+		 * @return true if the connection may be reused.
+		 */
+		boolean reset()
+		{
+			try
+			{
+				this.closeStatements();
+
+				if (physical.isClosed())
+					return false;
+
+				if (!physical.getAutoCommit())
+				{
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+
+				physical.clearWarnings();
+				lastReturned = System.currentTimeMillis();
+
+				return true;
+			}
+			catch (SQLException e)
+			{
+				return false;
+			}
+		}
+
+		private void closeStatements()
+		{
+			synchronized (statements)
+			{
+				for (Statement statement : statements)
+				{
+					try
+					{
+						statement.close();
+					}
+					catch (SQLException e)
+					{
+						// the connection is checked next, and discarded if it is broken
+					}
+				}
+
+				statements.clear();
+			}
+		}
+
+		void closePhysical()
+		{
+			try
+			{
+				physical.close();
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The proxy that stands in for a PooledConnection during one borrow. Closing it returns the
+	 * connection to the pool, once; after that, every other method fails.
+	 */
+	private class BorrowedConnection implements InvocationHandler
+	{
+		final PooledConnection				pooled;
+
+		final Connection							proxy;
+
+		private final AtomicBoolean		closed	= new AtomicBoolean();
+
+		BorrowedConnection(PooledConnection pooled)
+		{
+			this.pooled = pooled;
+			this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class[]
+					{ Connection.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+
+			if ("close".equals(name) && method.getParameterTypes().length == 0)
+			{
+				if (closed.compareAndSet(false, true))
+					release(pooled);
+
+				return null;
+			}
+			else if ("isClosed".equals(name) && method.getParameterTypes().length == 0)
+			{
+				return closed.get() || pooled.physical.isClosed();
+			}
+			else if ("equals".equals(name) && method.getParameterTypes().length == 1)
+			{
+				return proxy == args[0];
+			}
+			else if ("hashCode".equals(name) && method.getParameterTypes().length == 0)
+			{
+				return System.identityHashCode(proxy);
+			}
+			else if ("toString".equals(name) && method.getParameterTypes().length == 0)
+			{
+				return "PooledConnection[" + pooled.physical + "]";
+			}
+
+			if (closed.get())
+				throw new SQLException("Connection has already been returned to the pool.");
+
+			Object result;
+
+			try
+			{
+				result = method.invoke(pooled.physical, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+
+			if (result instanceof Statement)
+				pooled.statements.add((Statement) result);
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ecologylab.authentication.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, striped by user key. Operations that must read and then modify the record
+ * for a single user key (such as checking that a user does not exist before inserting it) lock the
+ * stripe for that key, so that they are atomic with respect to each other, while operations on other
+ * user keys proceed in parallel.
+ * 
+ * Two user keys may share a stripe; this only costs some unnecessary waiting, never correctness.
+ */
+public class UserKeyLocks
+{
+	public static final int				DEFAULT_STRIPES	= 64;
+
+	private final ReentrantLock[]	stripes;
+
+	private final int							mask;
+
+	public UserKeyLocks()
+	{
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param minimumStripes
+	 *          the number of locks to create; rounded up to a power of two.
+	 */
+	public UserKeyLocks(int minimumStripes)
+	{
+		int size = 1;
+		while (size < minimumStripes)
+			size <<= 1;
+
+		stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++)
+			stripes[i] = new ReentrantLock();
+
+		mask = size - 1;
+	}
+
+	/**
+	 * @param userKey
+	 * @return the lock guarding userKey; callers lock() it, and must unlock() it in a finally block.
+	 */
+	public ReentrantLock lockFor(String userKey)
+	{
+		return stripes[this.stripeFor(userKey)];
+	}
+
+	/**
+	 * Returns the distinct locks guarding all of userKeys, in a fixed global order; locking them in
+	 * the returned order cannot deadlock with another caller doing the same.
+	 * 
+	 * @param userKeys
+	 * @return the locks; callers lock() each in order, and must unlock() them in a finally block.
+	 */
+	public List<ReentrantLock> locksFor(Collection<String> userKeys)
+	{
+		boolean[] needed = new boolean[stripes.length];
+
+		for (String userKey : userKeys)
+			needed[this.stripeFor(userKey)] = true;
+
+		List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
+
+		for (int i = 0; i < stripes.length; i++)
+		{
+			if (needed[i])
+				locks.add(stripes[i]);
+		}
+
+		return locks;
+	}
+
+	private int stripeFor(String userKey)
+	{
+		int h = userKey.hashCode();
+		h ^= (h >>> 16);
+
+		return h & mask;
+	}
+}
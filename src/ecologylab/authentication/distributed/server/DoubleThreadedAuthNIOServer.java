@@ -7,18 +7,32 @@ import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ecologylab.authentication.Authenticatable;
 import ecologylab.authentication.OnlineAuthenticator;
+import ecologylab.authentication.Resumable;
 import ecologylab.authentication.User;
+import ecologylab.authentication.async.AsyncAuthenticatable;
+import ecologylab.authentication.async.AuthResult;
+import ecologylab.authentication.async.ExecutorAsyncAuthenticator;
+import ecologylab.authentication.commit.GroupCommitter;
+import ecologylab.authentication.listener.AuthenticationEventBus;
 import ecologylab.authentication.listener.AuthenticationListener;
+import ecologylab.authentication.logging.AuthDiagnostics;
 import ecologylab.authentication.logging.AuthLogging;
 import ecologylab.authentication.logging.AuthenticationOp;
 import ecologylab.authentication.messages.AuthMessages;
 import ecologylab.authentication.nio.AuthClientSessionManager;
+import ecologylab.authentication.nio.SessionExecutors;
+import ecologylab.authentication.password.HashingExecutor;
 import ecologylab.authentication.registryobjects.AuthServerRegistryObjects;
+import ecologylab.authentication.session.ResumeTokens;
 import ecologylab.authentication.translationScope.AuthServerTranslations;
 import ecologylab.collections.Scope;
 import ecologylab.oodss.distributed.server.DoubleThreadedNIOServer;
@@ -38,17 +52,52 @@ import ecologylab.serialization.SimplTypesScope;
  */
 public class DoubleThreadedAuthNIOServer<A extends User> extends
 		DoubleThreadedNIOServer implements AuthServerRegistryObjects, AuthMessages, AuthLogging,
-		Authenticatable<A>
+		Authenticatable<A>, Resumable<A>, AsyncAuthenticatable<A>
 {
+	/** Runs tasks on the calling thread; used for async calls when there is no authenticatorExecutor. */
+	private static final Executor					CALLING_THREAD		= new Executor()
+																											{
+																												public void execute(Runnable task)
+																												{
+																													task.run();
+																												}
+																											};
+
 	/**
-	 * Optional Logging listeners may record authentication events, such as users logging-in.
+	 * Delivers authentication events to the optional AuthenticationListeners and Logging listeners
+	 * (which may record events such as users logging-in), off of the message-processing thread.
 	 */
-	private final List<Logging>									logListeners	= new LinkedList<Logging>();
-
-	private final List<AuthenticationListener>	authListeners	= new LinkedList<AuthenticationListener>();
+	private final AuthenticationEventBus				eventBus			= this.createEventBus();
 
 	protected OnlineAuthenticator<A>			authenticator	= null;
 
+	/**
+	 * Optional executor on which logins are checked, so that a costly PasswordHasher does not stall
+	 * the message-processing thread.
+	 */
+	protected HashingExecutor							hashingExecutor	= null;
+
+	/**
+	 * Optional group committer through which users are added and removed, so that concurrent
+	 * signups share one save or transaction; if null, each goes straight to the authenticator.
+	 */
+	protected GroupCommitter<A>						groupCommitter	= null;
+
+	/**
+	 * Optional executor on which calls to the authenticator are made, for the async API, which Login
+	 * and Logout use, so that a blocking authenticator does not stall the message-processing thread.
+	 */
+	protected Executor										authenticatorExecutor	= null;
+
+	/** Runs the async API; on authenticatorExecutor, or on the calling thread if there is none. */
+	protected ExecutorAsyncAuthenticator<A>	asyncAuthenticator;
+
+	/**
+	 * The executor created by setVirtualThreadMode(true), on which clients' messages are processed,
+	 * and which this server shuts down.
+	 */
+	private volatile ExecutorService			sessionExecutor	= null;
+
 	/**
 	 * @param portNumber
 	 * @param inetAddress
@@ -71,6 +120,7 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 		this.applicationObjectScope.put(MAIN_AUTHENTICATABLE, this);
 
 		this.authenticator = authenticator;
+		this.asyncAuthenticator = new ExecutorAsyncAuthenticator<A>(authenticator, CALLING_THREAD);
 	}
 
 	/**
@@ -87,7 +137,7 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 		try
 		{
 			return new AuthClientSessionManager(sessionId, maxMessageSize, getBackend(), this, sk,
-					translationScope, registry, this, authenticator);
+					translationScope, registry, this, authenticator, hashingExecutor, sessionExecutor);
 		}
 		catch (ClassCastException e)
 		{
@@ -98,43 +148,137 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 		return null;
 	}
 
+	/**
+	 * Sets the executor on which clients' logins will be processed. Affects only clients that connect
+	 * after the call.
+	 * 
+	 * @param hashingExecutor
+	 *          the executor; null to process logins on the message-processing thread.
+	 */
+	public void setHashingExecutor(HashingExecutor hashingExecutor)
+	{
+		this.hashingExecutor = hashingExecutor;
+	}
+
+	/**
+	 * Sets the ResumeTokens with which clients are issued session-resumption tokens when they log
+	 * in, and with which their Resume requests are checked.
+	 * 
+	 * @param resumeTokens
+	 *          the tokens; null to issue none, and reject Resume requests.
+	 */
+	public void setResumeTokens(ResumeTokens resumeTokens)
+	{
+		if (resumeTokens != null)
+			this.applicationObjectScope.put(RESUME_TOKENS, resumeTokens);
+		else
+			this.applicationObjectScope.remove(RESUME_TOKENS);
+	}
+
+	/**
+	 * Sets the executor on which the authenticator is called by the async API; it should have about
+	 * as many threads as the authenticator can serve at once. Clients' Login and Logout requests go
+	 * through the async API, but their responses still wait for its futures on the thread processing
+	 * the session, so this only frees the server's processing thread for sessions that are already
+	 * processed elsewhere: on the HashingExecutor before login, or with virtual thread mode on, where
+	 * the wait holds no platform thread.
+	 * 
+	 * @param authenticatorExecutor
+	 *          the executor; null to call the authenticator on the calling thread.
+	 */
+	public void setAuthenticatorExecutor(Executor authenticatorExecutor)
+	{
+		this.authenticatorExecutor = authenticatorExecutor;
+		this.asyncAuthenticator = new ExecutorAsyncAuthenticator<A>(authenticator,
+				authenticatorExecutor != null ? authenticatorExecutor : CALLING_THREAD);
+	}
+
+	/**
+	 * Turns on or off processing each client's messages on its own virtual thread (or, on JVMs
+	 * without virtual threads, on a pool of platform threads; see SessionExecutors), so that blocking
+	 * authenticators and password hashing run across all cores without being rewritten as async
+	 * code. Each client's messages are still processed one at a time, in order; a session thread
+	 * waiting for a login or logout parks on the async API's future. Turning it on affects only
+	 * clients that connect after the call; turning it off sends every client back to the processing
+	 * thread.
+	 * 
+	 * @param enabled
+	 *          true to use a thread per session; false to go back to the message-processing thread.
+	 */
+	public synchronized void setVirtualThreadMode(boolean enabled)
+	{
+		if (enabled == (sessionExecutor != null))
+			return;
+
+		if (enabled)
+		{
+			sessionExecutor = SessionExecutors.newSessionExecutor();
+		}
+		else
+		{
+			// work already handed to it finishes; sessions that connected while it was on then find it
+			// shut down, and go back to processing their messages on the processing thread
+			sessionExecutor.shutdown();
+			sessionExecutor = null;
+		}
+	}
+
+	/**
+	 * Creates the event bus used to notify listeners; override to change its executor, queue
+	 * capacity, or overflow policy. Called during construction.
+	 * 
+	 * @return a new AuthenticationEventBus with default settings.
+	 */
+	protected AuthenticationEventBus createEventBus()
+	{
+		return new AuthenticationEventBus();
+	}
+
+	public AuthenticationEventBus getEventBus()
+	{
+		return eventBus;
+	}
+
+	/**
+	 * Sets the GroupCommitter through which addNewUser() and removeExistingUser() write; it should
+	 * commit to the same backing store as the authenticator.
+	 * 
+	 * @param groupCommitter
+	 *          the committer; null to write through the authenticator one user at a time.
+	 */
+	public void setGroupCommitter(GroupCommitter<A> groupCommitter)
+	{
+		this.groupCommitter = groupCommitter;
+	}
+
 	/**
 	 * @see ecologylab.oodss.logging.AuthLogging#addLoggingListener(ecologylab.oodss.logging.Logging)
 	 */
 	@Override
 	public void addLoggingListener(Logging log)
 	{
-		logListeners.add(log);
+		eventBus.addLoggingListener(log);
 	}
 
 	public void addAuthenticationListener(AuthenticationListener authListener)
 	{
-		authListeners.add(authListener);
+		eventBus.addAuthenticationListener(authListener);
 	}
 
 	protected void fireLogoutEvent(String username, String sessionId)
 	{
-		for (AuthenticationListener a : authListeners)
-		{
-			a.userLoggedOut(username, sessionId);
-		}
+		eventBus.fireLogoutEvent(username, sessionId);
 	}
 
 	protected void fireLoginEvent(String username, String sessionId)
 	{
-		for (AuthenticationListener a : authListeners)
-		{
-			a.userLoggedIn(username, sessionId);
-		}
+		eventBus.fireLoginEvent(username, sessionId);
 	}
 
 	@Override
 	public void fireLoggingEvent(AuthenticationOp op)
 	{
-		for (Logging logListener : logListeners)
-		{
-			logListener.logAction(op);
-		}
+		eventBus.fireLoggingEvent(op);
 	}
 
 	/**
@@ -157,7 +301,8 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 
 		if (logoutSuccess)
 		{
-			debug(entry.getUserKey() + " has been logged out.");
+			AuthDiagnostics.debug(DoubleThreadedAuthNIOServer.class, "logged out", "user", entry
+					.getUserKey());
 			fireLogoutEvent(entry.getUserKey(), sessionId);
 		}
 
@@ -183,6 +328,144 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 		return loginSuccess;
 	}
 
+	/**
+	 * Resumes through the authenticator, if it is Resumable.
+	 * 
+	 * @return false if the authenticator is not Resumable, or did not resume the session.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean resume(A entry, long uid, int level, long authenticated, String sessionId)
+	{
+		if (!(authenticator instanceof Resumable))
+			return false;
+
+		boolean resumed = ((Resumable<A>) authenticator).resume(entry, uid, level, authenticated,
+				sessionId);
+
+		if (resumed)
+		{
+			fireLoginEvent(entry.getUserKey(), sessionId);
+		}
+
+		return resumed;
+	}
+
+	/**
+	 * Like login(), but returns at once: calls login() on the authenticator executor, so that
+	 * overrides of it apply, and listeners are notified as usual.
+	 */
+	@Override
+	public CompletableFuture<AuthResult> loginAsync(final A entry, final String sessionId)
+	{
+		return asyncAuthenticator.submit(new Callable<AuthResult>()
+		{
+			@Override
+			public AuthResult call()
+			{
+				if (DoubleThreadedAuthNIOServer.this.login(entry, sessionId))
+					return AuthResult.succeeded();
+
+				return AuthResult.failed(DoubleThreadedAuthNIOServer.this.isLoggedIn(entry)
+						? AuthResult.Outcome.ALREADY_LOGGED_IN : AuthResult.Outcome.INVALID_CREDENTIALS);
+			}
+		});
+	}
+
+	/**
+	 * Like logout(), but returns at once: calls logout() on the authenticator executor, so that
+	 * overrides of it apply, and listeners are notified as usual.
+	 */
+	@Override
+	public CompletableFuture<AuthResult> logoutAsync(final A entry, final String sessionId)
+	{
+		return asyncAuthenticator.submit(new Callable<AuthResult>()
+		{
+			@Override
+			public AuthResult call()
+			{
+				if (DoubleThreadedAuthNIOServer.this.logout(entry, sessionId))
+					return AuthResult.succeeded();
+
+				return AuthResult.failed(DoubleThreadedAuthNIOServer.this.isLoggedIn(entry)
+						? AuthResult.Outcome.SESSION_MISMATCH : AuthResult.Outcome.NOT_LOGGED_IN);
+			}
+		});
+	}
+
+	/**
+	 * Like isLoggedIn(), which it calls on the authenticator executor.
+	 */
+	@Override
+	public CompletableFuture<Boolean> isLoggedInAsync(final A entry)
+	{
+		return asyncAuthenticator.submit(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				return DoubleThreadedAuthNIOServer.this.isLoggedIn(entry);
+			}
+		});
+	}
+
+	/**
+	 * Like addNewUser(), but returns at once; writes through the GroupCommitter, if there is one.
+	 */
+	@Override
+	public CompletableFuture<AuthResult> addNewUserAsync(final A entry)
+	{
+		if (groupCommitter == null)
+			return asyncAuthenticator.addNewUserAsync(entry);
+
+		return asyncAuthenticator.submit(new Callable<AuthResult>()
+		{
+			@Override
+			public AuthResult call() throws InterruptedException
+			{
+				return committed(groupCommitter.addUser(entry), AuthResult.Outcome.ALREADY_EXISTS);
+			}
+		});
+	}
+
+	/**
+	 * Like removeExistingUser(), but returns at once; writes through the GroupCommitter, if there is
+	 * one.
+	 */
+	@Override
+	public CompletableFuture<AuthResult> removeExistingUserAsync(final A entry)
+	{
+		if (groupCommitter == null)
+			return asyncAuthenticator.removeExistingUserAsync(entry);
+
+		return asyncAuthenticator.submit(new Callable<AuthResult>()
+		{
+			@Override
+			public AuthResult call() throws InterruptedException
+			{
+				return committed(groupCommitter.removeUser(entry), AuthResult.Outcome.UNKNOWN_USER);
+			}
+		});
+	}
+
+	/**
+	 * Waits for a GroupCommitter write, and describes its result.
+	 */
+	private static AuthResult committed(Future<Boolean> write,
+			AuthResult.Outcome ifFalse) throws InterruptedException
+	{
+		try
+		{
+			return write.get() ? AuthResult.succeeded() : AuthResult.failed(ifFalse);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+
+			return AuthResult.storeFailed(cause instanceof Exception ? (Exception) cause : e);
+		}
+	}
+
 	private void remove(String sessionId)
 	{
 		authenticator.logoutBySessionId(sessionId);
@@ -216,12 +499,23 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 	{
 		try
 		{
+			if (groupCommitter != null)
+				return groupCommitter.addUser(entry).get();
+
 			return this.authenticator.addUser(entry);
 		}
 		catch (SaveFailedException e)
 		{
 			e.printStackTrace();
 		}
+		catch (ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 
 		return isRunning();
 	}
@@ -234,6 +528,9 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 	{
 		try
 		{
+			if (groupCommitter != null)
+				return groupCommitter.removeUser(entry).get();
+
 			return this.authenticator.removeUser(entry);
 		}
 		catch (SaveFailedException e)
@@ -241,6 +538,14 @@ public class DoubleThreadedAuthNIOServer<A extends User> extends
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		catch (ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 
 		return isRunning();
 	}
@@ -2,14 +2,15 @@ package ecologylab.authentication.distributed.server;
 
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.util.LinkedList;
-import java.util.List;
 
 import ecologylab.authentication.Authenticatable;
 import ecologylab.authentication.AuthenticationList;
 import ecologylab.authentication.OnlineAuthenticatorHashMapImpl;
+import ecologylab.authentication.Resumable;
 import ecologylab.authentication.User;
+import ecologylab.authentication.listener.AuthenticationEventBus;
 import ecologylab.authentication.listener.AuthenticationListener;
+import ecologylab.authentication.logging.AuthDiagnostics;
 import ecologylab.authentication.logging.AuthLogging;
 import ecologylab.authentication.logging.AuthenticationOp;
 import ecologylab.authentication.messages.AuthMessages;
@@ -21,15 +22,15 @@ import ecologylab.oodss.logging.Logging;
 import ecologylab.serialization.SimplTypesScope;
 
 public class NIODatagramAuthServer<A extends User, S extends Scope> extends NIODatagramServer<S>
-		implements AuthServerRegistryObjects, AuthMessages, AuthLogging, Authenticatable<A>
+		implements AuthServerRegistryObjects, AuthMessages, AuthLogging, Authenticatable<A>,
+		Resumable<A>
 {
 
 	/**
-	 * Optional Logging listeners may record authentication events, such as users logging-in.
+	 * Delivers authentication events to the optional AuthenticationListeners and Logging listeners
+	 * (which may record events such as users logging-in), off of the message-processing thread.
 	 */
-	private final List<Logging>									logListeners	= new LinkedList<Logging>();
-
-	private final List<AuthenticationListener>	authListeners	= new LinkedList<AuthenticationListener>();
+	private final AuthenticationEventBus				eventBus			= this.createEventBus();
 
 	protected OnlineAuthenticatorHashMapImpl<A>	authenticator	= null;
 
@@ -64,43 +65,50 @@ public class NIODatagramAuthServer<A extends User, S extends Scope> extends NIOD
 		authenticator = new OnlineAuthenticatorHashMapImpl<A>(authList);
 	}
 
+	/**
+	 * Creates the event bus used to notify listeners; override to change its executor, queue
+	 * capacity, or overflow policy. Called during construction.
+	 * 
+	 * @return a new AuthenticationEventBus with default settings.
+	 */
+	protected AuthenticationEventBus createEventBus()
+	{
+		return new AuthenticationEventBus();
+	}
+
+	public AuthenticationEventBus getEventBus()
+	{
+		return eventBus;
+	}
+
 	/**
 	 * @see ecologylab.oodss.logging.AuthLogging#addLoggingListener(ecologylab.oodss.logging.Logging)
 	 */
 	@Override
 	public void addLoggingListener(Logging log)
 	{
-		logListeners.add(log);
+		eventBus.addLoggingListener(log);
 	}
 
 	public void addAuthenticationListener(AuthenticationListener authListener)
 	{
-		authListeners.add(authListener);
+		eventBus.addAuthenticationListener(authListener);
 	}
 
 	protected void fireLogoutEvent(String username, String sessionId)
 	{
-		for (AuthenticationListener a : authListeners)
-		{
-			a.userLoggedOut(username, sessionId);
-		}
+		eventBus.fireLogoutEvent(username, sessionId);
 	}
 
 	protected void fireLoginEvent(String username, String sessionId)
 	{
-		for (AuthenticationListener a : authListeners)
-		{
-			a.userLoggedIn(username, sessionId);
-		}
+		eventBus.fireLoginEvent(username, sessionId);
 	}
 
 	@Override
 	public void fireLoggingEvent(AuthenticationOp op)
 	{
-		for (Logging logListener : logListeners)
-		{
-			logListener.logAction(op);
-		}
+		eventBus.fireLoggingEvent(op);
 	}
 
 	/**
@@ -123,7 +131,8 @@ public class NIODatagramAuthServer<A extends User, S extends Scope> extends NIOD
 
 		if (logoutSuccess)
 		{
-			debug(entry.getUserKey() + " has been logged out.");
+			AuthDiagnostics.debug(NIODatagramAuthServer.class, "logged out", "user", entry
+					.getUserKey());
 			fireLogoutEvent(entry.getUserKey(), sessionId);
 		}
 
@@ -149,6 +158,19 @@ public class NIODatagramAuthServer<A extends User, S extends Scope> extends NIOD
 		return loginSuccess;
 	}
 
+	@Override
+	public boolean resume(A entry, long uid, int level, long authenticated, String sessionId)
+	{
+		boolean resumed = authenticator.resume(entry, uid, level, authenticated, sessionId);
+
+		if (resumed)
+		{
+			fireLoginEvent(entry.getUserKey(), sessionId);
+		}
+
+		return resumed;
+	}
+
 	/**
 	 * XXX unimplemented
 	 * 
@@ -0,0 +1,91 @@
+package ecologylab.authentication.distributed.server;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+
+import ecologylab.authentication.OnlineAuthenticator;
+import ecologylab.authentication.User;
+import ecologylab.authentication.nio.AuthClientSessionManager;
+import ecologylab.authentication.nio.SessionShards;
+import ecologylab.collections.Scope;
+import ecologylab.serialization.SimplTypesScope;
+
+/**
+ * An authenticating server that processes messages on a fixed pool of worker threads, rather than
+ * on a single processing thread. Each client is assigned to one worker by the hash of its session
+ * id, so its messages are processed in the order they arrived, while the Login, Logout, and
+ * application requests of clients on different workers proceed in parallel.
+ * 
+ * Authenticators used with this server must be safe to call from several threads at once, as
+ * OnlineAuthenticatorHashMapImpl and OnlineAuthenticatorDBImpl are.
+ * 
+ * @see DoubleThreadedAuthNIOServer
+ */
+public class ShardedAuthNIOServer<A extends User> extends DoubleThreadedAuthNIOServer<A>
+{
+	private final SessionShards	shards;
+
+	/**
+	 * Creates a server with one worker per available processor.
+	 */
+	public ShardedAuthNIOServer(int portNumber, InetAddress[] inetAddress,
+			SimplTypesScope requestTranslationSpace, Scope objectRegistry, int idleConnectionTimeout,
+			int maxPacketSize, OnlineAuthenticator<A> authenticator) throws IOException, BindException
+	{
+		this(portNumber, inetAddress, requestTranslationSpace, objectRegistry, idleConnectionTimeout,
+				maxPacketSize, authenticator, new SessionShards());
+	}
+
+	/**
+	 * @param shards
+	 *          the workers among which clients are divided; shut down when the server stops.
+	 */
+	public ShardedAuthNIOServer(int portNumber, InetAddress[] inetAddress,
+			SimplTypesScope requestTranslationSpace, Scope objectRegistry, int idleConnectionTimeout,
+			int maxPacketSize, OnlineAuthenticator<A> authenticator, SessionShards shards)
+			throws IOException, BindException
+	{
+		super(portNumber, inetAddress, requestTranslationSpace, objectRegistry, idleConnectionTimeout,
+				maxPacketSize, authenticator);
+
+		this.shards = shards;
+	}
+
+	/**
+	 * Creates a session manager that processes all of its messages on the session's worker (or,
+	 * before login, on the HashingExecutor, if there is one).
+	 */
+	@Override
+	protected AuthClientSessionManager generateContextManager(String sessionId, SelectionKey sk,
+			SimplTypesScope translationScope, Scope registry)
+	{
+		try
+		{
+			return new AuthClientSessionManager(sessionId, maxMessageSize, getBackend(), this, sk,
+					translationScope, registry, this, authenticator, hashingExecutor, shards
+							.forSession(sessionId));
+		}
+		catch (ClassCastException e)
+		{
+			debug("ATTEMPT TO USE AuthMessageProcessor WITH A NON-AUTHENTICATING SERVER!");
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
+	public SessionShards getShards()
+	{
+		return shards;
+	}
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+
+		shards.shutdown();
+	}
+}
@@ -0,0 +1,376 @@
+package ecologylab.authentication.listener;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ecologylab.authentication.logging.AuthenticationOp;
+import ecologylab.generic.Debug;
+import ecologylab.oodss.logging.Logging;
+
+/**
+ * Delivers authentication events (logins, logouts, and AuthenticationOps for Logging listeners) to
+ * their listeners off of the thread that raised them, so that a slow listener, such as a logging
+ * sink that writes to disk or the network, does not slow down logins.
+ * 
+ * Listeners are kept in copy-on-write lists, so events are raised without locking and listeners may
+ * be added or removed at any time. Each listener has its own bounded queue and receives its events
+ * one at a time, in the order they were raised, on a thread from a shared Executor. A listener that
+ * falls behind fills only its own queue; what happens to events that arrive when it is full is
+ * decided by the OverflowPolicy. An exception thrown by one listener is reported and does not affect
+ * the others.
+ */
+public class AuthenticationEventBus extends Debug
+{
+	/**
+	 * What to do with an event for a listener whose queue is full.
+	 */
+	public enum OverflowPolicy
+	{
+		/** Discard the new event. */
+		DROP_NEWEST,
+
+		/** Discard the listener's oldest queued event to make room for the new one. */
+		DROP_OLDEST,
+
+		/**
+		 * Make the thread that raised the event wait until the listener's queue has room. Nothing is
+		 * lost, and the listener still sees its events in order, but a slow listener then slows down
+		 * the raising thread; a listener must not raise events on this bus from its own callbacks.
+		 */
+		BLOCK
+	}
+
+	public static final int																DEFAULT_QUEUE_CAPACITY		= 1024;
+
+	public static final int																DEFAULT_DISPATCH_THREADS	= 2;
+
+	/** The most events a listener is given in one turn on a dispatch thread, before yielding it. */
+	static final int																			BATCH_SIZE								= 64;
+
+	/** How often a thread blocked by the BLOCK policy makes sure the listener's queue is draining. */
+	static final long																			BLOCK_RETRY_MILLIS				= 100;
+
+	private final Executor																executor;
+
+	/** The executor created by this, if any, so that shutdown() can stop it. */
+	private final ExecutorService													ownExecutor;
+
+	private final int																			queueCapacity;
+
+	private final OverflowPolicy													overflowPolicy;
+
+	private final CopyOnWriteArrayList<AuthListenerQueue>	authListeners							= new CopyOnWriteArrayList<AuthListenerQueue>();
+
+	private final CopyOnWriteArrayList<LoggingQueue>			logListeners							= new CopyOnWriteArrayList<LoggingQueue>();
+
+	private final AtomicLong															droppedEvents							= new AtomicLong();
+
+	/**
+	 * Creates an event bus with its own pool of DEFAULT_DISPATCH_THREADS daemon threads, queues of
+	 * DEFAULT_QUEUE_CAPACITY events per listener, and the DROP_NEWEST policy.
+	 */
+	public AuthenticationEventBus()
+	{
+		this(null, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * @param executor
+	 *          runs listeners' deliveries; if null, a pool of DEFAULT_DISPATCH_THREADS daemon threads
+	 *          is created, and stopped by shutdown().
+	 * @param queueCapacity
+	 *          the number of undelivered events each listener may have queued.
+	 * @param overflowPolicy
+	 *          what to do with events for a listener whose queue is full.
+	 */
+	public AuthenticationEventBus(Executor executor, int queueCapacity, OverflowPolicy overflowPolicy)
+	{
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("queueCapacity must be at least 1.");
+
+		if (executor == null)
+		{
+			this.ownExecutor = Executors.newFixedThreadPool(DEFAULT_DISPATCH_THREADS,
+					new ThreadFactory()
+					{
+						private final AtomicInteger	threadNum	= new AtomicInteger();
+
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "auth-events-" + threadNum.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			this.executor = ownExecutor;
+		}
+		else
+		{
+			this.ownExecutor = null;
+			this.executor = executor;
+		}
+
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void addAuthenticationListener(AuthenticationListener listener)
+	{
+		authListeners.add(new AuthListenerQueue(listener));
+	}
+
+	/**
+	 * Stops delivering new events to listener; events already queued for it may still be delivered.
+	 * 
+	 * @return true if listener was registered.
+	 */
+	public boolean removeAuthenticationListener(AuthenticationListener listener)
+	{
+		for (AuthListenerQueue q : authListeners)
+		{
+			if (q.listener == listener)
+				return authListeners.remove(q);
+		}
+
+		return false;
+	}
+
+	public void addLoggingListener(Logging log)
+	{
+		logListeners.add(new LoggingQueue(log));
+	}
+
+	/**
+	 * Stops delivering new events to log; events already queued for it may still be delivered.
+	 * 
+	 * @return true if log was registered.
+	 */
+	public boolean removeLoggingListener(Logging log)
+	{
+		for (LoggingQueue q : logListeners)
+		{
+			if (q.listener == log)
+				return logListeners.remove(q);
+		}
+
+		return false;
+	}
+
+	public void fireLoginEvent(String username, String sessionId)
+	{
+		if (authListeners.isEmpty())
+			return;
+
+		AuthEvent event = new AuthEvent(true, username, sessionId);
+
+		for (AuthListenerQueue q : authListeners)
+			q.post(event);
+	}
+
+	public void fireLogoutEvent(String username, String sessionId)
+	{
+		if (authListeners.isEmpty())
+			return;
+
+		AuthEvent event = new AuthEvent(false, username, sessionId);
+
+		for (AuthListenerQueue q : authListeners)
+			q.post(event);
+	}
+
+	public void fireLoggingEvent(AuthenticationOp op)
+	{
+		for (LoggingQueue q : logListeners)
+			q.post(op);
+	}
+
+	/**
+	 * @return the number of events discarded because a listener's queue was full, since this was
+	 *         created.
+	 */
+	public long getDroppedEventCount()
+	{
+		return droppedEvents.get();
+	}
+
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Stops the dispatch threads, if this created them. Events still queued are not delivered.
+	 */
+	public void shutdown()
+	{
+		if (ownExecutor != null)
+			ownExecutor.shutdown();
+	}
+
+	private static final class AuthEvent
+	{
+		final boolean	login;
+
+		final String	username;
+
+		final String	sessionId;
+
+		AuthEvent(boolean login, String username, String sessionId)
+		{
+			this.login = login;
+			this.username = username;
+			this.sessionId = sessionId;
+		}
+	}
+
+	/**
+	 * The queue of undelivered events for one listener. At most one dispatch thread drains it at a
+	 * time, so the listener sees its events one at a time and in order.
+	 */
+	private abstract class ListenerQueue<L, E> implements Runnable
+	{
+		final L													listener;
+
+		private final BlockingQueue<E>	queue			= new ArrayBlockingQueue<E>(queueCapacity);
+
+		/** True while this is queued on, or running on, the executor. */
+		private final AtomicBoolean			scheduled	= new AtomicBoolean();
+
+		ListenerQueue(L listener)
+		{
+			this.listener = listener;
+		}
+
+		abstract void deliver(E event);
+
+		void post(E event)
+		{
+			if (!queue.offer(event))
+			{
+				switch (overflowPolicy)
+				{
+				case DROP_NEWEST:
+					droppedEvents.incrementAndGet();
+					return;
+				case DROP_OLDEST:
+					while (!queue.offer(event))
+					{
+						if (queue.poll() != null)
+							droppedEvents.incrementAndGet();
+					}
+					break;
+				case BLOCK:
+					try
+					{
+						// keep a dispatch thread draining the queue while waiting for it to make room
+						this.schedule();
+
+						while (!queue.offer(event, BLOCK_RETRY_MILLIS, TimeUnit.MILLISECONDS))
+							this.schedule();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						droppedEvents.incrementAndGet();
+						return;
+					}
+					break;
+				}
+			}
+
+			this.schedule();
+		}
+
+		private void schedule()
+		{
+			if (scheduled.compareAndSet(false, true))
+			{
+				try
+				{
+					executor.execute(this);
+				}
+				catch (RejectedExecutionException e)
+				{
+					// the executor is shut down or saturated; leave the events queued for the next post
+					scheduled.set(false);
+				}
+			}
+		}
+
+		public void run()
+		{
+			try
+			{
+				E event;
+				int delivered = 0;
+
+				while (delivered < BATCH_SIZE && (event = queue.poll()) != null)
+				{
+					this.deliverSafely(event);
+					delivered++;
+				}
+			}
+			finally
+			{
+				scheduled.set(false);
+
+				// events posted while finishing up would otherwise wait for the next post
+				if (!queue.isEmpty())
+					this.schedule();
+			}
+		}
+
+		private void deliverSafely(E event)
+		{
+			try
+			{
+				this.deliver(event);
+			}
+			catch (RuntimeException e)
+			{
+				warning("listener " + listener + " failed to handle an event: " + e);
+			}
+		}
+	}
+
+	private final class AuthListenerQueue extends ListenerQueue<AuthenticationListener, AuthEvent>
+	{
+		AuthListenerQueue(AuthenticationListener listener)
+		{
+			super(listener);
+		}
+
+		@Override
+		void deliver(AuthEvent event)
+		{
+			if (event.login)
+				listener.userLoggedIn(event.username, event.sessionId);
+			else
+				listener.userLoggedOut(event.username, event.sessionId);
+		}
+	}
+
+	private final class LoggingQueue extends ListenerQueue<Logging, AuthenticationOp>
+	{
+		LoggingQueue(Logging log)
+		{
+			super(log);
+		}
+
+		@Override
+		void deliver(AuthenticationOp op)
+		{
+			listener.logAction(op);
+		}
+	}
+}
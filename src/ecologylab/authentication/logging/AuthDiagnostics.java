@@ -0,0 +1,326 @@
+package ecologylab.authentication.logging;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostic logging for the authentication module, for use on paths that run for every login,
+ * logout, or message, where writing to System.out (which is synchronized, and blocks on the
+ * console) would serialize the threads that call it.
+ * 
+ * Each message is an event name and up to two key/value fields, at a Level. A message below the
+ * current threshold costs one volatile read and nothing else: the helpers take their fields as
+ * separate arguments, so no string is built and no array is allocated unless the message will be
+ * written. Messages that are written are queued and formatted and written by a single daemon thread;
+ * if the queue is full, they are dropped and counted, rather than making the caller wait.
+ * 
+ * The threshold starts at the level named by the system property THRESHOLD_PROPERTY, or WARN.
+ * Never pass passwords, hashes, or connect strings as field values.
+ */
+public final class AuthDiagnostics
+{
+	public enum Level
+	{
+		TRACE, DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * Receives the messages that are written. Called only from the diagnostics thread.
+	 */
+	public interface Sink
+	{
+		void write(Record record);
+
+		/**
+		 * Called once the queue has been drained, so that buffered output can be flushed.
+		 */
+		void flush();
+	}
+
+	public static final String						THRESHOLD_PROPERTY	= "ecologylab.authentication.diagnostics";
+
+	public static final int								QUEUE_CAPACITY			= 4096;
+
+	private static volatile int						threshold						= initialThreshold();
+
+	private static volatile Sink					sink								= new StreamSink(System.err);
+
+	private static final BlockingQueue<Record>	queue							= new ArrayBlockingQueue<Record>(
+																																QUEUE_CAPACITY);
+
+	private static final AtomicLong				dropped							= new AtomicLong();
+
+	static
+	{
+		Thread writer = new Thread("auth-diagnostics")
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private AuthDiagnostics()
+	{
+	}
+
+	private static int initialThreshold()
+	{
+		String level = System.getProperty(THRESHOLD_PROPERTY);
+
+		if (level != null)
+		{
+			try
+			{
+				return Level.valueOf(level.trim().toUpperCase()).ordinal();
+			}
+			catch (IllegalArgumentException e)
+			{
+				// fall through to the default
+			}
+		}
+
+		return Level.WARN.ordinal();
+	}
+
+	/**
+	 * Sets the lowest level that is written.
+	 */
+	public static void setThreshold(Level level)
+	{
+		threshold = level.ordinal();
+	}
+
+	public static Level getThreshold()
+	{
+		return Level.values()[threshold];
+	}
+
+	/**
+	 * Replaces the destination of written messages; by default, they go to System.err.
+	 */
+	public static void setSink(Sink newSink)
+	{
+		sink = newSink;
+	}
+
+	/**
+	 * @return true if messages at level are written. Callers only need this to avoid computing a
+	 *         field value that is itself expensive.
+	 */
+	public static boolean isEnabled(Level level)
+	{
+		return level.ordinal() >= threshold;
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was full.
+	 */
+	public static long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public static void debug(Class<?> source, String event)
+	{
+		if (Level.DEBUG.ordinal() >= threshold)
+			enqueue(Level.DEBUG, source, event, null, null, null, null);
+	}
+
+	public static void debug(Class<?> source, String event, String key, Object value)
+	{
+		if (Level.DEBUG.ordinal() >= threshold)
+			enqueue(Level.DEBUG, source, event, key, value, null, null);
+	}
+
+	public static void debug(Class<?> source, String event, String key1, Object value1,
+			String key2, Object value2)
+	{
+		if (Level.DEBUG.ordinal() >= threshold)
+			enqueue(Level.DEBUG, source, event, key1, value1, key2, value2);
+	}
+
+	public static void info(Class<?> source, String event, String key, Object value)
+	{
+		if (Level.INFO.ordinal() >= threshold)
+			enqueue(Level.INFO, source, event, key, value, null, null);
+	}
+
+	public static void warn(Class<?> source, String event, String key, Object value)
+	{
+		if (Level.WARN.ordinal() >= threshold)
+			enqueue(Level.WARN, source, event, key, value, null, null);
+	}
+
+	public static void log(Level level, Class<?> source, String event, String key1, Object value1,
+			String key2, Object value2)
+	{
+		if (level.ordinal() >= threshold)
+			enqueue(level, source, event, key1, value1, key2, value2);
+	}
+
+	private static void enqueue(Level level, Class<?> source, String event, String key1,
+			Object value1, String key2, Object value2)
+	{
+		Record record = new Record(System.currentTimeMillis(), level, source.getName(), Thread
+				.currentThread().getName(), event, key1, value1, key2, value2);
+
+		if (!queue.offer(record))
+			dropped.incrementAndGet();
+	}
+
+	private static void drain()
+	{
+		List<Record> batch = new ArrayList<Record>(256);
+
+		while (true)
+		{
+			try
+			{
+				batch.add(queue.take());
+				queue.drainTo(batch, 255);
+
+				Sink current = sink;
+
+				for (Record record : batch)
+					current.write(record);
+
+				current.flush();
+			}
+			catch (InterruptedException e)
+			{
+				// the thread is a daemon, and is only stopped with the JVM
+			}
+			catch (RuntimeException e)
+			{
+				// a broken sink must not stop diagnostics for good
+				e.printStackTrace();
+			}
+
+			batch.clear();
+		}
+	}
+
+	/**
+	 * One diagnostic message. Field values are kept as given, and only turned into strings when the
+	 * message is written.
+	 */
+	public static final class Record
+	{
+		private final long		time;
+
+		private final Level		level;
+
+		private final String	source;
+
+		private final String	thread;
+
+		private final String	event;
+
+		private final String	key1;
+
+		private final Object	value1;
+
+		private final String	key2;
+
+		private final Object	value2;
+
+		Record(long time, Level level, String source, String thread, String event, String key1,
+				Object value1, String key2, Object value2)
+		{
+			this.time = time;
+			this.level = level;
+			this.source = source;
+			this.thread = thread;
+			this.event = event;
+			this.key1 = key1;
+			this.value1 = value1;
+			this.key2 = key2;
+			this.value2 = value2;
+		}
+
+		public long getTime()
+		{
+			return time;
+		}
+
+		public Level getLevel()
+		{
+			return level;
+		}
+
+		public String getSource()
+		{
+			return source;
+		}
+
+		public String getThread()
+		{
+			return thread;
+		}
+
+		public String getEvent()
+		{
+			return event;
+		}
+
+		/**
+		 * Appends this as a single line: time, level, thread, source, event, then key=value fields.
+		 */
+		public void appendTo(StringBuilder out)
+		{
+			out.append(time).append(' ').append(level).append(" [").append(thread).append("] ")
+					.append(source).append(": ").append(event);
+
+			if (key1 != null)
+				out.append(' ').append(key1).append('=').append(value1);
+
+			if (key2 != null)
+				out.append(' ').append(key2).append('=').append(value2);
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder(96);
+			this.appendTo(out);
+
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Writes each message as a line to a PrintStream.
+	 */
+	public static class StreamSink implements Sink
+	{
+		private final PrintStream		out;
+
+		private final StringBuilder	line	= new StringBuilder(128);
+
+		public StreamSink(PrintStream out)
+		{
+			this.out = out;
+		}
+
+		public void write(Record record)
+		{
+			line.setLength(0);
+			record.appendTo(line);
+			out.println(line);
+		}
+
+		public void flush()
+		{
+			out.flush();
+		}
+	}
+}
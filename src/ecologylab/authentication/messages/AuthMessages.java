@@ -25,6 +25,19 @@ public interface AuthMessages
 	 */
 	public static final String	LOGIN_FAILED_NO_IP_SUPPLIED				= "Cannot log in: server unable to determine IP address.";
 
+	/**
+	 * Indicates that resuming a session failed because the token was forged, expired, for another
+	 * user, or not accepted by this server; the client should log in again with its password.
+	 */
+	public static final String	RESUME_FAILED_TOKEN								= "Cannot resume: session token invalid or expired.";
+
+	/**
+	 * Indicates that resuming a session failed although the token was genuine, because the server
+	 * refused it: the user was removed or logged out by the server since the token was issued, or
+	 * could not be logged back in; the client should log in again with its password.
+	 */
+	public static final String	RESUME_FAILED_REFUSED							= "Cannot resume: session refused by the server.";
+
 	/** Indicates that creating a user failed, because the user already exists. */
 	public static final String	CREATE_USER_FAILED_ALREADY_EXISTS	= "Could not create new user; user already exists.";
 
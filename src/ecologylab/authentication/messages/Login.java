@@ -5,7 +5,10 @@ package ecologylab.authentication.messages;
 
 import ecologylab.authentication.Authenticatable;
 import ecologylab.authentication.User;
+import ecologylab.authentication.async.AsyncAuthenticatable;
+import ecologylab.authentication.async.AuthResult;
 import ecologylab.authentication.registryobjects.AuthServerRegistryObjects;
+import ecologylab.authentication.session.ResumeTokens;
 import ecologylab.collections.Scope;
 import ecologylab.oodss.distributed.server.clientsessionmanager.BaseSessionManager;
 import ecologylab.oodss.messages.RequestMessage;
@@ -74,15 +77,35 @@ public class Login<S extends Scope> extends RequestMessage<S> implements AuthMes
 
 		boolean loginSuccess = false;
 
+		// the result of an asynchronous login, which says why it failed; null for a blocking one
+		AuthResult loginResult = null;
+
 		if (this.getSender() != null)
 		{
 			String sessionId = (String) localScope.get(BaseSessionManager.SESSION_ID);
-			loginSuccess = authenticatable.login(this.entry, sessionId);
+
+			if (authenticatable instanceof AsyncAuthenticatable)
+			{
+				// waits on this thread while the authenticator runs on its own executor; that frees the
+				// server's processing thread only when this session is already being processed elsewhere
+				loginResult = AuthResult.await(((AsyncAuthenticatable) authenticatable).loginAsync(
+						this.entry, sessionId));
+				loginSuccess = loginResult.isSuccess();
+			}
+			else
+			{
+				loginSuccess = authenticatable.login(this.entry, sessionId);
+			}
 		}
 
 		if (loginSuccess)
 		{ // we're logged in!
 			loginConfirm.setExplanation(LOGIN_SUCCESSFUL);
+
+			ResumeTokens resumeTokens = (ResumeTokens) localScope.get(RESUME_TOKENS);
+
+			if (resumeTokens != null)
+				loginConfirm.setResumeToken(resumeTokens.issue(this.entry));
 		}
 		else
 		{
@@ -91,6 +114,13 @@ public class Login<S extends Scope> extends RequestMessage<S> implements AuthMes
 			{
 				loginConfirm.setExplanation(LOGIN_FAILED_NO_IP_SUPPLIED);
 			}
+			else if (loginResult != null)
+			{
+				String explanation = loginResult.getLoginExplanation();
+
+				if (explanation != null)
+					loginConfirm.setExplanation(explanation);
+			}
 			else if (authenticatable.isLoggedIn(entry))
 			{
 				loginConfirm.setExplanation(LOGIN_FAILED_LOGGEDIN);
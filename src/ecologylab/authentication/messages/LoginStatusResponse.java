@@ -3,11 +3,13 @@
  */
 package ecologylab.authentication.messages;
 
+import ecologylab.authentication.logging.AuthDiagnostics;
 import ecologylab.authentication.registryobjects.AuthClientRegistryObjects;
 import ecologylab.collections.Scope;
 import ecologylab.generic.BooleanSlot;
 import ecologylab.oodss.messages.ExplanationResponse;
 import ecologylab.serialization.annotations.simpl_inherit;
+import ecologylab.serialization.annotations.simpl_scalar;
 
 /**
  * Indicates the response from the server regarding an attempt to log in.
@@ -17,6 +19,13 @@ import ecologylab.serialization.annotations.simpl_inherit;
 @simpl_inherit public class LoginStatusResponse<S extends Scope> extends
 		ExplanationResponse<S> implements AuthMessages, AuthClientRegistryObjects
 {
+	/**
+	 * A token the client can present in a Resume request after reconnecting, instead of logging in
+	 * again; set only on successful logins, by servers that issue them.
+	 */
+	@simpl_scalar
+	protected String	resumeToken;
+
 	/**
 	 * Constructs a new LoginStatusResponse with the given responseMessage.
 	 * 
@@ -54,9 +63,22 @@ import ecologylab.serialization.annotations.simpl_inherit;
 	 */
 	@Override public void processResponse(S objectRegistry)
 	{
-		System.out.println("response about login: " + isOK());
+		AuthDiagnostics.debug(LoginStatusResponse.class, "login response", "ok", isOK());
 
 		((BooleanSlot) objectRegistry.get(LOGIN_STATUS)).value = isOK();
 		objectRegistry.put(LOGIN_STATUS_STRING, explanation);
+
+		if (resumeToken != null)
+			objectRegistry.put(RESUME_TOKEN, resumeToken);
+	}
+
+	public String getResumeToken()
+	{
+		return resumeToken;
+	}
+
+	public void setResumeToken(String resumeToken)
+	{
+		this.resumeToken = resumeToken;
 	}
 }
@@ -5,6 +5,9 @@ package ecologylab.authentication.messages;
 
 import ecologylab.authentication.Authenticatable;
 import ecologylab.authentication.User;
+import ecologylab.authentication.async.AsyncAuthenticatable;
+import ecologylab.authentication.async.AuthResult;
+import ecologylab.authentication.logging.AuthDiagnostics;
 import ecologylab.authentication.registryobjects.AuthServerRegistryObjects;
 import ecologylab.collections.Scope;
 import ecologylab.oodss.distributed.server.clientsessionmanager.BaseSessionManager;
@@ -50,18 +53,30 @@ public class Logout<SCOPE extends Scope> extends DisconnectRequest<SCOPE> implem
 	@Override
 	public LogoutStatusResponse performService(SCOPE localScope)
 	{
-		debug("*************************** LOGOUT " + this.entry.getUserKey());
+		AuthDiagnostics.debug(Logout.class, "logout requested", "user", this.entry.getUserKey());
 		Authenticatable server = (Authenticatable) localScope.get(MAIN_AUTHENTICATABLE);
 		String sessionId = (String) localScope.get(BaseSessionManager.SESSION_ID);
 
-		if (server.logout(entry, sessionId))
-		{ // logout successful, return response and disconnect
-			super.performService(localScope);
-			return new LogoutStatusResponse(LOGOUT_SUCCESSFUL);
+		String explanation;
+
+		if (server instanceof AsyncAuthenticatable)
+		{
+			// waits on this thread while the authenticator runs on its own executor; that frees the
+			// server's processing thread only when this session is already being processed elsewhere
+			explanation = AuthResult.await(((AsyncAuthenticatable) server).logoutAsync(entry, sessionId))
+					.getLogoutExplanation();
+
+			if (explanation == null) // the backing store failed
+				explanation = LOGOUT_FAILED_IP_MISMATCH;
 		}
-		
+		else
+		{
+			explanation = server.logout(entry, sessionId) ? LOGOUT_SUCCESSFUL : LOGOUT_FAILED_IP_MISMATCH;
+		}
+
+		// disconnect, whether or not the logout succeeded
 		super.performService(localScope);
-		return new LogoutStatusResponse(LOGOUT_FAILED_IP_MISMATCH);
+		return new LogoutStatusResponse(explanation);
 	}
 
 	/**
@@ -0,0 +1,111 @@
+package ecologylab.authentication.messages;
+
+import ecologylab.authentication.Resumable;
+import ecologylab.authentication.User;
+import ecologylab.authentication.registryobjects.AuthServerRegistryObjects;
+import ecologylab.authentication.session.ResumeTokens;
+import ecologylab.collections.Scope;
+import ecologylab.oodss.distributed.server.clientsessionmanager.BaseSessionManager;
+import ecologylab.oodss.messages.RequestMessage;
+import ecologylab.serialization.annotations.simpl_composite;
+import ecologylab.serialization.annotations.simpl_inherit;
+import ecologylab.serialization.annotations.simpl_scalar;
+
+/**
+ * Logs back into a server after reconnecting, using the session-resumption token from an earlier
+ * LoginStatusResponse instead of a password. The server checks the token's signature and expiry,
+ * and does not hash a password or look the user up in its backing store, so many clients can
+ * reconnect at once (after a network failure, for instance) without overloading it.
+ * 
+ * Answered with a LoginStatusResponse, which carries a fresh token if the session was resumed; the
+ * fresh token expires when the one it replaces would have. If the token was rejected, the client
+ * should send a Login instead.
+ */
+@simpl_inherit
+public class Resume<S extends Scope> extends RequestMessage<S> implements AuthMessages,
+		AuthServerRegistryObjects, AuthenticationRequest
+{
+	/** The user resuming; only the username is sent. */
+	@simpl_composite
+	protected User		entry;
+
+	@simpl_scalar
+	protected String	token;
+
+	/**
+	 * Should not normally be used; only for XML translations.
+	 */
+	public Resume()
+	{
+		super();
+	}
+
+	/**
+	 * @param username
+	 *          the user whose session to resume.
+	 * @param token
+	 *          the token from the user's last LoginStatusResponse.
+	 */
+	public Resume(String username, String token)
+	{
+		super();
+
+		this.entry = new User();
+		this.entry.setUserKey(username);
+		this.token = token;
+	}
+
+	/**
+	 * Logs the user in if the token is genuine, unexpired, and was issued to the same user, and the
+	 * server is Resumable.
+	 * 
+	 * @return a LoginStatusResponse indicating whether or not the session was resumed.
+	 */
+	@Override
+	public LoginStatusResponse performService(S localScope)
+	{
+		LoginStatusResponse resumeConfirm = new LoginStatusResponse(RESUME_FAILED_TOKEN);
+
+		ResumeTokens resumeTokens = (ResumeTokens) localScope.get(RESUME_TOKENS);
+
+		if (resumeTokens == null || entry == null || this.getSender() == null)
+			return resumeConfirm;
+
+		ResumeTokens.Claims claims = resumeTokens.verify(token);
+
+		if (claims == null || !claims.getUserKey().equals(entry.getUserKey()))
+			return resumeConfirm;
+
+		Object authenticatable = localScope.get(MAIN_AUTHENTICATABLE);
+
+		if (!(authenticatable instanceof Resumable))
+			return resumeConfirm;
+
+		String sessionId = (String) localScope.get(BaseSessionManager.SESSION_ID);
+
+		if (((Resumable) authenticatable).resume(entry, claims.getUid(), claims.getLevel(), claims
+				.getIssued(), sessionId))
+		{
+			resumeConfirm.setExplanation(LOGIN_SUCCESSFUL);
+			// keep the original expiry, so that the session cannot be renewed without a password
+			resumeConfirm.setResumeToken(resumeTokens.issue(entry, claims.getIssued(), claims
+					.getExpires()));
+		}
+		else
+		{
+			resumeConfirm.setExplanation(RESUME_FAILED_REFUSED);
+		}
+
+		return resumeConfirm;
+	}
+
+	public User getEntry()
+	{
+		return entry;
+	}
+
+	public String getToken()
+	{
+		return token;
+	}
+}
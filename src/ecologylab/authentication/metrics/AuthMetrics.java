@@ -0,0 +1,136 @@
+package ecologylab.authentication.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ecologylab.generic.Debug;
+
+/**
+ * The metrics for one authentication service: an OperationMetrics for each MeteredOperation, which
+ * the Instrumented decorators update, and any number of named Gauges. Read them with snapshot(), or
+ * register this with the platform MBean server to read them over JMX.
+ */
+public class AuthMetrics extends Debug implements AuthMetricsMXBean
+{
+	public static final String																DEFAULT_OBJECT_NAME	= "ecologylab.authentication:type=AuthMetrics";
+
+	private final EnumMap<MeteredOperation, OperationMetrics>	operations					= new EnumMap<MeteredOperation, OperationMetrics>(
+																																										MeteredOperation.class);
+
+	private final ConcurrentHashMap<String, Gauge>						gauges							= new ConcurrentHashMap<String, Gauge>();
+
+	public AuthMetrics()
+	{
+		// filled in once, and never modified, so it can be read without locking
+		for (MeteredOperation operation : MeteredOperation.values())
+			operations.put(operation, new OperationMetrics(operation));
+	}
+
+	public OperationMetrics get(MeteredOperation operation)
+	{
+		return operations.get(operation);
+	}
+
+	/**
+	 * Adds a gauge to be read with each snapshot, replacing any other with the same name.
+	 */
+	public void addGauge(String name, Gauge gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	public void removeGauge(String name)
+	{
+		gauges.remove(name);
+	}
+
+	/**
+	 * @return the current counts, latencies, and gauge values.
+	 */
+	public AuthMetricsSnapshot snapshot()
+	{
+		return new AuthMetricsSnapshot(System.currentTimeMillis(), this.getOperations(), this
+				.getGauges());
+	}
+
+	public List<OperationSnapshot> getOperations()
+	{
+		List<OperationSnapshot> snapshots = new ArrayList<OperationSnapshot>(operations.size());
+
+		for (OperationMetrics metrics : operations.values())
+		{
+			OperationSnapshot snapshot = metrics.snapshot();
+
+			if (snapshot.getCalls() > 0 || snapshot.getInFlight() > 0)
+				snapshots.add(snapshot);
+		}
+
+		return snapshots;
+	}
+
+	public Map<String, Long> getGauges()
+	{
+		Map<String, Long> values = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+		{
+			try
+			{
+				values.put(gauge.getKey(), gauge.getValue().value());
+			}
+			catch (RuntimeException e)
+			{
+				warning("gauge " + gauge.getKey() + " failed: " + e);
+			}
+		}
+
+		return values;
+	}
+
+	public void reset()
+	{
+		for (OperationMetrics metrics : operations.values())
+			metrics.reset();
+	}
+
+	/**
+	 * Registers this with the platform MBean server under DEFAULT_OBJECT_NAME.
+	 * 
+	 * @see #registerMBean(String)
+	 */
+	public ObjectName registerMBean() throws JMException
+	{
+		return this.registerMBean(DEFAULT_OBJECT_NAME);
+	}
+
+	/**
+	 * Registers this with the platform MBean server, replacing anything already registered under
+	 * objectName, so that its operations and gauges can be read with JConsole or any other JMX
+	 * client.
+	 * 
+	 * @return the name this was registered under.
+	 * @throws JMException
+	 *           if objectName is malformed, or registration failed.
+	 */
+	public ObjectName registerMBean(String objectName) throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(objectName);
+
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+
+		server.registerMBean(this, name);
+
+		return name;
+	}
+}
@@ -0,0 +1,25 @@
+package ecologylab.authentication.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JMX view of an AuthMetrics; see AuthMetrics.registerMBean().
+ */
+public interface AuthMetricsMXBean
+{
+	/**
+	 * @return a snapshot of each operation that has been called at least once.
+	 */
+	List<OperationSnapshot> getOperations();
+
+	/**
+	 * @return the current value of each registered gauge, by name.
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * Clears every operation's counters and histogram.
+	 */
+	void reset();
+}
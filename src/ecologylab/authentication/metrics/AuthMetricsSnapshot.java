@@ -0,0 +1,74 @@
+package ecologylab.authentication.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of an AuthMetrics at one moment, for callers that poll it, such as a status page or a
+ * metrics exporter. Immutable.
+ */
+public class AuthMetricsSnapshot
+{
+	private final long										takenAt;
+
+	private final List<OperationSnapshot>	operations;
+
+	private final Map<String, Long>				gauges;
+
+	AuthMetricsSnapshot(long takenAt, List<OperationSnapshot> operations, Map<String, Long> gauges)
+	{
+		this.takenAt = takenAt;
+		this.operations = Collections.unmodifiableList(operations);
+		this.gauges = Collections.unmodifiableMap(gauges);
+	}
+
+	/**
+	 * @return the time, in milliseconds, at which this was taken.
+	 */
+	public long getTakenAt()
+	{
+		return takenAt;
+	}
+
+	/**
+	 * @return the snapshot of each operation that had been called at least once.
+	 */
+	public List<OperationSnapshot> getOperations()
+	{
+		return operations;
+	}
+
+	/**
+	 * @return the snapshot of operation; null if it had not been called.
+	 */
+	public OperationSnapshot getOperation(MeteredOperation operation)
+	{
+		for (OperationSnapshot snapshot : operations)
+		{
+			if (snapshot.getOperation().equals(operation.name()))
+				return snapshot;
+		}
+
+		return null;
+	}
+
+	public Map<String, Long> getGauges()
+	{
+		return gauges;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+
+		for (OperationSnapshot snapshot : operations)
+			out.append(snapshot).append('\n');
+
+		for (Map.Entry<String, Long> gauge : gauges.entrySet())
+			out.append(gauge.getKey()).append(": ").append(gauge.getValue()).append('\n');
+
+		return out.toString();
+	}
+}
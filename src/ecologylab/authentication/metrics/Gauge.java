@@ -0,0 +1,10 @@
+package ecologylab.authentication.metrics;
+
+/**
+ * A value read when AuthMetrics takes a snapshot, such as the number of users logged-in or a
+ * cache's hit count.
+ */
+public interface Gauge
+{
+	long value();
+}
@@ -0,0 +1,212 @@
+package ecologylab.authentication.metrics;
+
+import ecologylab.authentication.AuthenticationList;
+import ecologylab.authentication.User;
+import ecologylab.oodss.exceptions.SaveFailedException;
+
+/**
+ * Wraps an AuthenticationList, recording the latency and outcome of each call in an AuthMetrics.
+ * Each call costs two reads of System.nanoTime() and a handful of atomic increments.
+ */
+public class InstrumentedAuthenticationList<U extends User> implements AuthenticationList<U>
+{
+	private final AuthenticationList<U>	list;
+
+	protected final AuthMetrics					metrics;
+
+	private final OperationMetrics			addUser;
+
+	private final OperationMetrics			removeUser;
+
+	private final OperationMetrics			contains;
+
+	private final OperationMetrics			getAccessLevel;
+
+	private final OperationMetrics			isValid;
+
+	private final OperationMetrics			setUID;
+
+	private final OperationMetrics			save;
+
+	public InstrumentedAuthenticationList(AuthenticationList<U> list, AuthMetrics metrics)
+	{
+		this.list = list;
+		this.metrics = metrics;
+
+		this.addUser = metrics.get(MeteredOperation.ADD_USER);
+		this.removeUser = metrics.get(MeteredOperation.REMOVE_USER);
+		this.contains = metrics.get(MeteredOperation.CONTAINS);
+		this.getAccessLevel = metrics.get(MeteredOperation.GET_ACCESS_LEVEL);
+		this.isValid = metrics.get(MeteredOperation.IS_VALID);
+		this.setUID = metrics.get(MeteredOperation.SET_UID);
+		this.save = metrics.get(MeteredOperation.SAVE);
+	}
+
+	public boolean addUser(U user) throws SaveFailedException
+	{
+		long start = addUser.start();
+
+		try
+		{
+			boolean added = list.addUser(user);
+			addUser.finished(start, added);
+
+			return added;
+		}
+		catch (SaveFailedException e)
+		{
+			addUser.threw(start);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			addUser.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean removeUser(U user) throws SaveFailedException
+	{
+		long start = removeUser.start();
+
+		try
+		{
+			boolean removed = list.removeUser(user);
+			removeUser.finished(start, removed);
+
+			return removed;
+		}
+		catch (SaveFailedException e)
+		{
+			removeUser.threw(start);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			removeUser.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean contains(U user)
+	{
+		long start = contains.start();
+
+		try
+		{
+			boolean found = list.contains(user);
+			contains.finished(start, found);
+
+			return found;
+		}
+		catch (RuntimeException e)
+		{
+			contains.threw(start);
+			throw e;
+		}
+	}
+
+	public int getAccessLevel(U user)
+	{
+		return this.getAccessLevel(user.getUserKey());
+	}
+
+	/**
+	 * A negative level, which backends return for unknown users, is recorded as a failure.
+	 */
+	public int getAccessLevel(String userKey)
+	{
+		long start = getAccessLevel.start();
+
+		try
+		{
+			int level = list.getAccessLevel(userKey);
+			getAccessLevel.finished(start, level >= 0);
+
+			return level;
+		}
+		catch (RuntimeException e)
+		{
+			getAccessLevel.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean isValid(U entry)
+	{
+		long start = isValid.start();
+
+		try
+		{
+			boolean valid = list.isValid(entry);
+			isValid.finished(start, valid);
+
+			return valid;
+		}
+		catch (RuntimeException e)
+		{
+			isValid.threw(start);
+			throw e;
+		}
+	}
+
+	public void setUID(U user)
+	{
+		long start = setUID.start();
+
+		try
+		{
+			list.setUID(user);
+			setUID.succeeded(start);
+		}
+		catch (RuntimeException e)
+		{
+			setUID.threw(start);
+			throw e;
+		}
+	}
+
+	public void save() throws SaveFailedException
+	{
+		long start = save.start();
+
+		try
+		{
+			list.save();
+			save.succeeded(start);
+		}
+		catch (SaveFailedException e)
+		{
+			save.threw(start);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			save.threw(start);
+			throw e;
+		}
+	}
+
+	public AuthMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	@Override
+	public String toString()
+	{
+		return list.toString();
+	}
+
+	/**
+	 * Cloning AuthenticationLists is not allowed, because it is a security violation.
+	 * 
+	 * This method just throws an UnsupportedOperationException.
+	 */
+	@Override
+	public final Object clone() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(
+				"Cannot clone an AuthenticationList, for security reasons.");
+	}
+}
@@ -0,0 +1,329 @@
+package ecologylab.authentication.metrics;
+
+import java.util.List;
+import java.util.Set;
+
+import ecologylab.authentication.OnlineAuthenticator;
+import ecologylab.authentication.PagedOnlineAuthenticator;
+import ecologylab.authentication.Resumable;
+import ecologylab.authentication.User;
+
+/**
+ * Wraps an OnlineAuthenticator, recording the latency and outcome of each call in an AuthMetrics,
+ * and registering a gauge of the number of users logged-in. Pass one of these to a server in place
+ * of the authenticator it wraps.
+ * 
+ * Create with wrap(), which returns a PagedOnlineAuthenticator, a Resumable, or both, exactly when
+ * the wrapped authenticator is one, so that a server checking for either sees what the wrapped
+ * authenticator supports. Constructed directly, this is neither.
+ */
+public class InstrumentedOnlineAuthenticator<U extends User> extends
+		InstrumentedAuthenticationList<U> implements OnlineAuthenticator<U>
+{
+	public static final String					USERS_LOGGED_IN_GAUGE	= "usersLoggedIn";
+
+	private final OnlineAuthenticator<U>	authenticator;
+
+	private final OperationMetrics				login;
+
+	private final OperationMetrics				resume;
+
+	private final OperationMetrics				logout;
+
+	private final OperationMetrics				logoutBySessionId;
+
+	private final OperationMetrics				sessionValid;
+
+	private final OperationMetrics				isLoggedIn;
+
+	private final OperationMetrics				usersLoggedIn;
+
+	/**
+	 * @return a wrapper around authenticator that implements PagedOnlineAuthenticator and Resumable
+	 *         if, and only if, authenticator does.
+	 */
+	public static <U extends User> InstrumentedOnlineAuthenticator<U> wrap(
+			OnlineAuthenticator<U> authenticator, AuthMetrics metrics)
+	{
+		boolean paged = authenticator instanceof PagedOnlineAuthenticator;
+		boolean resumable = authenticator instanceof Resumable;
+
+		if (paged && resumable)
+			return new PagedResumable<U>(authenticator, metrics);
+		else if (paged)
+			return new Paged<U>(authenticator, metrics);
+		else if (resumable)
+			return new ResumableOnly<U>(authenticator, metrics);
+		else
+			return new InstrumentedOnlineAuthenticator<U>(authenticator, metrics);
+	}
+
+	public InstrumentedOnlineAuthenticator(final OnlineAuthenticator<U> authenticator,
+			AuthMetrics metrics)
+	{
+		super(authenticator, metrics);
+
+		this.authenticator = authenticator;
+
+		this.login = metrics.get(MeteredOperation.LOGIN);
+		this.resume = metrics.get(MeteredOperation.RESUME);
+		this.logout = metrics.get(MeteredOperation.LOGOUT);
+		this.logoutBySessionId = metrics.get(MeteredOperation.LOGOUT_BY_SESSION_ID);
+		this.sessionValid = metrics.get(MeteredOperation.SESSION_VALID);
+		this.isLoggedIn = metrics.get(MeteredOperation.IS_LOGGED_IN);
+		this.usersLoggedIn = metrics.get(MeteredOperation.USERS_LOGGED_IN);
+
+		metrics.addGauge(USERS_LOGGED_IN_GAUGE, new Gauge()
+		{
+			public long value()
+			{
+				return countUsersLoggedIn();
+			}
+		});
+	}
+
+	public boolean login(U entry, String sessionId)
+	{
+		long start = login.start();
+
+		try
+		{
+			boolean loggedIn = authenticator.login(entry, sessionId);
+			login.finished(start, loggedIn);
+
+			return loggedIn;
+		}
+		catch (RuntimeException e)
+		{
+			login.threw(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Times Resumable.resume() on the wrapped authenticator, which must be Resumable.
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean timedResume(U entry, long uid, int level, long authenticated,
+			String sessionId)
+	{
+		long start = resume.start();
+
+		try
+		{
+			boolean loggedIn = ((Resumable<U>) authenticator).resume(entry, uid, level,
+					authenticated, sessionId);
+			resume.finished(start, loggedIn);
+
+			return loggedIn;
+		}
+		catch (RuntimeException e)
+		{
+			resume.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean logout(U entry, String sessionId)
+	{
+		long start = logout.start();
+
+		try
+		{
+			boolean loggedOut = authenticator.logout(entry, sessionId);
+			logout.finished(start, loggedOut);
+
+			return loggedOut;
+		}
+		catch (RuntimeException e)
+		{
+			logout.threw(start);
+			throw e;
+		}
+	}
+
+	public void logoutBySessionId(String sessionId)
+	{
+		long start = logoutBySessionId.start();
+
+		try
+		{
+			authenticator.logoutBySessionId(sessionId);
+			logoutBySessionId.succeeded(start);
+		}
+		catch (RuntimeException e)
+		{
+			logoutBySessionId.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean sessionValid(String sessionId)
+	{
+		long start = sessionValid.start();
+
+		try
+		{
+			boolean valid = authenticator.sessionValid(sessionId);
+			sessionValid.finished(start, valid);
+
+			return valid;
+		}
+		catch (RuntimeException e)
+		{
+			sessionValid.threw(start);
+			throw e;
+		}
+	}
+
+	public boolean isLoggedIn(U entry)
+	{
+		long start = isLoggedIn.start();
+
+		try
+		{
+			boolean loggedIn = authenticator.isLoggedIn(entry);
+			isLoggedIn.finished(start, loggedIn);
+
+			return loggedIn;
+		}
+		catch (RuntimeException e)
+		{
+			isLoggedIn.threw(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * A null result, returned when administrator is not valid, is recorded as a failure.
+	 */
+	public Set<String> usersLoggedIn(U administrator)
+	{
+		long start = usersLoggedIn.start();
+
+		try
+		{
+			Set<String> users = authenticator.usersLoggedIn(administrator);
+			usersLoggedIn.finished(start, users != null);
+
+			return users;
+		}
+		catch (RuntimeException e)
+		{
+			usersLoggedIn.threw(start);
+			throw e;
+		}
+	}
+
+	public Set<String> usersLoggedIn()
+	{
+		long start = usersLoggedIn.start();
+
+		try
+		{
+			Set<String> users = authenticator.usersLoggedIn();
+			usersLoggedIn.succeeded(start);
+
+			return users;
+		}
+		catch (RuntimeException e)
+		{
+			usersLoggedIn.threw(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Times PagedOnlineAuthenticator.usersLoggedIn(int, int) on the wrapped authenticator, which
+	 * must be a PagedOnlineAuthenticator.
+	 */
+	protected List<String> timedUsersLoggedIn(int offset, int limit)
+	{
+		long start = usersLoggedIn.start();
+
+		try
+		{
+			List<String> users = ((PagedOnlineAuthenticator<U>) authenticator).usersLoggedIn(offset,
+					limit);
+			usersLoggedIn.succeeded(start);
+
+			return users;
+		}
+		catch (RuntimeException e)
+		{
+			usersLoggedIn.threw(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Not timed; counting reads a published snapshot, and is what the usersLoggedIn gauge reports. If
+	 * the wrapped authenticator is not a PagedOnlineAuthenticator, users are counted by building the
+	 * set usersLoggedIn() returns.
+	 */
+	public int countUsersLoggedIn()
+	{
+		if (authenticator instanceof PagedOnlineAuthenticator)
+			return ((PagedOnlineAuthenticator<U>) authenticator).countUsersLoggedIn();
+
+		return authenticator.usersLoggedIn().size();
+	}
+
+	/**
+	 * Not timed; like AuthenticationList lookups, this is an administrative query.
+	 */
+	public String getSessionId(U entry)
+	{
+		return authenticator.getSessionId(entry);
+	}
+
+	/**
+	 * Wraps a PagedOnlineAuthenticator that is not Resumable.
+	 */
+	static class Paged<U extends User> extends InstrumentedOnlineAuthenticator<U> implements
+			PagedOnlineAuthenticator<U>
+	{
+		Paged(OnlineAuthenticator<U> authenticator, AuthMetrics metrics)
+		{
+			super(authenticator, metrics);
+		}
+
+		public List<String> usersLoggedIn(int offset, int limit)
+		{
+			return this.timedUsersLoggedIn(offset, limit);
+		}
+	}
+
+	/**
+	 * Wraps a Resumable authenticator that is not a PagedOnlineAuthenticator.
+	 */
+	static class ResumableOnly<U extends User> extends InstrumentedOnlineAuthenticator<U>
+			implements Resumable<U>
+	{
+		ResumableOnly(OnlineAuthenticator<U> authenticator, AuthMetrics metrics)
+		{
+			super(authenticator, metrics);
+		}
+
+		public boolean resume(U entry, long uid, int level, long authenticated, String sessionId)
+		{
+			return this.timedResume(entry, uid, level, authenticated, sessionId);
+		}
+	}
+
+	/**
+	 * Wraps a Resumable PagedOnlineAuthenticator.
+	 */
+	static class PagedResumable<U extends User> extends Paged<U> implements Resumable<U>
+	{
+		PagedResumable(OnlineAuthenticator<U> authenticator, AuthMetrics metrics)
+		{
+			super(authenticator, metrics);
+		}
+
+		public boolean resume(U entry, long uid, int level, long authenticated, String sessionId)
+		{
+			return this.timedResume(entry, uid, level, authenticated, sessionId);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ecologylab.authentication.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies into buckets by powers of two of nanoseconds: bucket i holds latencies from 2^i
+ * up to 2^(i+1) nanoseconds. Recording a latency is three atomic additions and takes no lock, so it
+ * can be done on every call of a hot path; percentiles are then accurate to within a factor of two,
+ * which is enough to tell a 50 microsecond login from a 5 millisecond one.
+ */
+public class LatencyHistogram
+{
+	static final int							BUCKETS	= 64;
+
+	private final AtomicLongArray	buckets	= new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong			count		= new AtomicLong();
+
+	private final AtomicLong			total		= new AtomicLong();
+
+	private final AtomicLong			max			= new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *          a latency, in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+
+		buckets.incrementAndGet(bucketFor(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long currentMax;
+		while (nanos > (currentMax = max.get()))
+		{
+			if (max.compareAndSet(currentMax, nanos))
+				break;
+		}
+	}
+
+	static int bucketFor(long nanos)
+	{
+		return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * @return the number of latencies recorded.
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency, in nanoseconds; 0 if none have been recorded.
+	 */
+	public long getMeanNanos()
+	{
+		long n = count.get();
+
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	public long getMaxNanos()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @param fraction
+	 *          between 0 and 1; 0.99 for the 99th percentile.
+	 * @return the upper bound of the bucket holding the given percentile, in nanoseconds, but no more
+	 *         than the largest latency recorded; 0 if none have been recorded.
+	 */
+	public long getPercentileNanos(double fraction)
+	{
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts[i] = buckets.get(i);
+
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+
+			if (seen >= rank && counts[i] > 0)
+				return Math.min(i >= 62 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Clears every count. Latencies recorded during a reset may be partly kept.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+}
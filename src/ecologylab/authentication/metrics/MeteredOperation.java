@@ -0,0 +1,10 @@
+package ecologylab.authentication.metrics;
+
+/**
+ * The OnlineAuthenticator and AuthenticationList operations that AuthMetrics records.
+ */
+public enum MeteredOperation
+{
+	LOGIN, RESUME, LOGOUT, LOGOUT_BY_SESSION_ID, SESSION_VALID, IS_LOGGED_IN, USERS_LOGGED_IN, IS_VALID,
+	CONTAINS, GET_ACCESS_LEVEL, SET_UID, ADD_USER, REMOVE_USER, SAVE
+}
@@ -0,0 +1,123 @@
+package ecologylab.authentication.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, a latency histogram, and an in-flight gauge for one MeteredOperation.
+ * 
+ * Callers bracket each call with start() and one of succeeded(), failed(), finished() or threw():
+ * 
+ * <pre>
+ * long start = metrics.start();
+ * try
+ * {
+ * 	boolean result = doIt();
+ * 	metrics.finished(start, result);
+ * 	return result;
+ * }
+ * catch (RuntimeException e)
+ * {
+ * 	metrics.threw(start);
+ * 	throw e;
+ * }
+ * </pre>
+ */
+public class OperationMetrics
+{
+	private final MeteredOperation	operation;
+
+	private final AtomicLong				calls			= new AtomicLong();
+
+	private final AtomicLong				failures	= new AtomicLong();
+
+	private final AtomicLong				errors		= new AtomicLong();
+
+	private final AtomicInteger			inFlight	= new AtomicInteger();
+
+	private final LatencyHistogram	latency		= new LatencyHistogram();
+
+	OperationMetrics(MeteredOperation operation)
+	{
+		this.operation = operation;
+	}
+
+	/**
+	 * Records that a call has started.
+	 * 
+	 * @return the start time, to pass to the method that records how it ended.
+	 */
+	public long start()
+	{
+		inFlight.incrementAndGet();
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records that a call, started at start, returned normally.
+	 */
+	public void succeeded(long start)
+	{
+		this.end(start);
+	}
+
+	/**
+	 * Records that a call, started at start, returned a failure, such as a rejected login.
+	 */
+	public void failed(long start)
+	{
+		failures.incrementAndGet();
+		this.end(start);
+	}
+
+	/**
+	 * Records that a call, started at start, returned result: a success if true, a failure if false.
+	 */
+	public void finished(long start, boolean result)
+	{
+		if (!result)
+			failures.incrementAndGet();
+
+		this.end(start);
+	}
+
+	/**
+	 * Records that a call, started at start, threw an exception.
+	 */
+	public void threw(long start)
+	{
+		errors.incrementAndGet();
+		this.end(start);
+	}
+
+	private void end(long start)
+	{
+		latency.record(System.nanoTime() - start);
+		calls.incrementAndGet();
+		inFlight.decrementAndGet();
+	}
+
+	public MeteredOperation getOperation()
+	{
+		return operation;
+	}
+
+	public OperationSnapshot snapshot()
+	{
+		return new OperationSnapshot(operation.name(), calls.get(), failures.get(), errors.get(),
+				inFlight.get(), latency.getMeanNanos(), latency.getPercentileNanos(0.5), latency
+						.getPercentileNanos(0.9), latency.getPercentileNanos(0.99), latency.getMaxNanos());
+	}
+
+	/**
+	 * Clears the counters and the histogram; calls in flight are still counted.
+	 */
+	public void reset()
+	{
+		calls.set(0);
+		failures.set(0);
+		errors.set(0);
+		latency.reset();
+	}
+}
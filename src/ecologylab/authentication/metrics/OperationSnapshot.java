@@ -0,0 +1,120 @@
+package ecologylab.authentication.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The counts and latencies of one MeteredOperation at the time a snapshot was taken. Immutable.
+ * Latencies are in nanoseconds; percentiles are accurate to within a factor of two (see
+ * LatencyHistogram).
+ */
+public class OperationSnapshot
+{
+	private final String	operation;
+
+	private final long		calls;
+
+	private final long		failures;
+
+	private final long		errors;
+
+	private final int			inFlight;
+
+	private final long		meanNanos;
+
+	private final long		p50Nanos;
+
+	private final long		p90Nanos;
+
+	private final long		p99Nanos;
+
+	private final long		maxNanos;
+
+	@ConstructorProperties(
+	{ "operation", "calls", "failures", "errors", "inFlight", "meanNanos", "p50Nanos", "p90Nanos",
+			"p99Nanos", "maxNanos" })
+	public OperationSnapshot(String operation, long calls, long failures, long errors, int inFlight,
+			long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos)
+	{
+		this.operation = operation;
+		this.calls = calls;
+		this.failures = failures;
+		this.errors = errors;
+		this.inFlight = inFlight;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public String getOperation()
+	{
+		return operation;
+	}
+
+	/**
+	 * @return the number of calls that have finished.
+	 */
+	public long getCalls()
+	{
+		return calls;
+	}
+
+	/**
+	 * @return the number of calls that returned false, such as rejected logins.
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * @return the number of calls that threw an exception.
+	 */
+	public long getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * @return the number of calls in progress.
+	 */
+	public int getInFlight()
+	{
+		return inFlight;
+	}
+
+	public long getMeanNanos()
+	{
+		return meanNanos;
+	}
+
+	public long getP50Nanos()
+	{
+		return p50Nanos;
+	}
+
+	public long getP90Nanos()
+	{
+		return p90Nanos;
+	}
+
+	public long getP99Nanos()
+	{
+		return p99Nanos;
+	}
+
+	public long getMaxNanos()
+	{
+		return maxNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return operation + ": " + calls + " calls, " + failures + " failed, " + errors + " errors, "
+				+ inFlight + " in flight; mean " + meanNanos / 1000 + "us, p50 " + p50Nanos / 1000
+				+ "us, p90 " + p90Nanos / 1000 + "us, p99 " + p99Nanos / 1000 + "us, max " + maxNanos
+				/ 1000 + "us";
+	}
+}
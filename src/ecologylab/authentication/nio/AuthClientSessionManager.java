@@ -3,6 +3,10 @@ package ecologylab.authentication.nio;
 import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ecologylab.authentication.OnlineAuthenticator;
 import ecologylab.authentication.logging.AuthLogging;
@@ -10,12 +14,14 @@ import ecologylab.authentication.logging.AuthenticationOp;
 import ecologylab.authentication.messages.AuthMessages;
 import ecologylab.authentication.messages.AuthenticationRequest;
 import ecologylab.authentication.messages.Logout;
+import ecologylab.authentication.password.HashingExecutor;
 import ecologylab.authentication.registryobjects.AuthServerRegistryObjects;
 import ecologylab.collections.Scope;
 import ecologylab.oodss.distributed.common.ServerConstants;
 import ecologylab.oodss.distributed.impl.NIOServerIOThread;
 import ecologylab.oodss.distributed.server.NIOServerProcessor;
 import ecologylab.oodss.distributed.server.clientsessionmanager.ClientSessionManager;
+import ecologylab.oodss.exceptions.BadClientException;
 import ecologylab.oodss.messages.BadSemanticContentResponse;
 import ecologylab.oodss.messages.ExplanationResponse;
 import ecologylab.oodss.messages.RequestMessage;
@@ -34,11 +40,31 @@ import ecologylab.serialization.SimplTypesScope;
 public class AuthClientSessionManager extends ClientSessionManager implements ServerConstants,
 		AuthServerRegistryObjects, AuthMessages
 {
-	private boolean							loggedIn				= false;
+	private volatile boolean		loggedIn						= false;
 
-	private AuthLogging					servicesServer	= null;
+	private AuthLogging					servicesServer			= null;
 
-	private OnlineAuthenticator	authenticator		= null;
+	private OnlineAuthenticator	authenticator				= null;
+
+	/**
+	 * If set, messages from this session are processed on this executor until the session has logged
+	 * in, so that slow password checks do not hold up the server's processing thread.
+	 */
+	private HashingExecutor			hashingExecutor			= null;
+
+	/**
+	 * If set, messages from this session are processed on this executor whether or not it has logged
+	 * in, because every message checks the session against the authenticator, which may block (on a
+	 * database, for instance). Logins and logouts park here on the futures of the server's
+	 * loginAsync() and logoutAsync(), so this should not be the executor those run on.
+	 */
+	private volatile Executor		sessionExecutor			= null;
+
+	/** True while this session's messages are being processed off of the calling thread. */
+	private final AtomicBoolean	processingOffThread	= new AtomicBoolean(false);
+
+	/** Failure raised while processing off-thread, to be reported on the processing thread. */
+	private volatile BadClientException	offThreadFailure	= null;
 
 	/**
 	 * Constructs a new AuthClientSessionManager on a server to handle authenticating client requests.
@@ -63,6 +89,119 @@ public class AuthClientSessionManager extends ClientSessionManager implements Se
 		this.authenticator = authenticator;
 	}
 
+	/**
+	 * Constructs a new AuthClientSessionManager that checks logins on the given HashingExecutor.
+	 * 
+	 * @param hashingExecutor
+	 *          executor for processing messages before the session has logged in; if null, all
+	 *          messages are processed on the server's processing thread.
+	 */
+	public AuthClientSessionManager(String token, int maxPacketSize, NIOServerIOThread server,
+			NIOServerProcessor frontend, SelectionKey sk, SimplTypesScope translationScope,
+			Scope registry, AuthLogging servicesServer, OnlineAuthenticator authenticator,
+			HashingExecutor hashingExecutor)
+	{
+		this(token, maxPacketSize, server, frontend, sk, translationScope, registry, servicesServer,
+				authenticator);
+
+		this.hashingExecutor = hashingExecutor;
+	}
+
+	/**
+	 * Constructs a new AuthClientSessionManager that processes its messages on sessionExecutor, and
+	 * checks logins on hashingExecutor.
+	 * 
+	 * @param hashingExecutor
+	 *          executor for processing messages before the session has logged in; if null, they are
+	 *          processed on sessionExecutor.
+	 * @param sessionExecutor
+	 *          executor for processing messages, so that calls to a blocking authenticator, and waits
+	 *          for an asynchronous one, do not hold up the server's processing thread; if null,
+	 *          messages after login are processed on the server's processing thread.
+	 */
+	public AuthClientSessionManager(String token, int maxPacketSize, NIOServerIOThread server,
+			NIOServerProcessor frontend, SelectionKey sk, SimplTypesScope translationScope,
+			Scope registry, AuthLogging servicesServer, OnlineAuthenticator authenticator,
+			HashingExecutor hashingExecutor, Executor sessionExecutor)
+	{
+		this(token, maxPacketSize, server, frontend, sk, translationScope, registry, servicesServer,
+				authenticator, hashingExecutor);
+
+		this.sessionExecutor = sessionExecutor;
+	}
+
+	/**
+	 * Until the session has logged in, hands its messages off to the HashingExecutor (if there is
+	 * one), where Login.performService() can take as long as the password check requires. Once logged
+	 * in, messages are handed off to the session executor (if there is one), or processed on the
+	 * calling thread, as usual.
+	 * 
+	 * Login and Logout call the server's loginAsync() and logoutAsync(), and their responses are
+	 * parked on the returned futures until the authenticator has answered; they are then sent from
+	 * the thread that processed the message. When that is an executor's thread, the calling thread
+	 * meanwhile goes on to serve other clients. Messages from one session are still processed one at
+	 * a time, in order. If the executor rejects the work, because it is saturated or has been shut
+	 * down, the messages are processed on the calling thread instead, so that a client is never left
+	 * waiting on an executor that will not run it; a session executor that has been shut down (as by
+	 * DoubleThreadedAuthNIOServer.setVirtualThreadMode(false)) is not used again.
+	 */
+	@Override
+	public void processAllMessagesAndSendResponses() throws BadClientException
+	{
+		if (processingOffThread.get())
+			return; // an executor thread is working through this session's messages
+
+		BadClientException failure = offThreadFailure;
+		if (failure != null)
+		{
+			offThreadFailure = null;
+			throw failure;
+		}
+
+		Executor executor = (loggedIn || hashingExecutor == null) ? sessionExecutor : hashingExecutor;
+
+		if (executor == null)
+		{
+			super.processAllMessagesAndSendResponses();
+			return;
+		}
+
+		processingOffThread.set(true);
+
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						AuthClientSessionManager.super.processAllMessagesAndSendResponses();
+					}
+					catch (BadClientException e)
+					{
+						offThreadFailure = e;
+					}
+					finally
+					{
+						processingOffThread.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			processingOffThread.set(false);
+
+			if (executor == sessionExecutor && executor instanceof ExecutorService
+					&& ((ExecutorService) executor).isShutdown())
+				sessionExecutor = null;
+
+			super.processAllMessagesAndSendResponses();
+		}
+	}
+
 	/**
 	 * Calls performService on the given RequestMessage using the local ObjectRegistry, if the client
 	 * has been authenticated, or if the request is to log in. Can be overridden by subclasses to
@@ -11,6 +11,7 @@ import ecologylab.authentication.messages.AuthMessages;
 import ecologylab.authentication.messages.AuthenticationRequest;
 import ecologylab.authentication.messages.Login;
 import ecologylab.authentication.messages.Logout;
+import ecologylab.authentication.messages.Resume;
 import ecologylab.authentication.registryobjects.AuthClientRegistryObjects;
 import ecologylab.authentication.translationScope.AuthServerTranslations;
 import ecologylab.collections.Scope;
@@ -128,6 +129,76 @@ public class NIOAuthClient<S extends Scope, A extends User> extends NIOClient<S>
 		return isLoggedIn();
 	}
 
+	/**
+	 * Connects to the server; if this is a reconnect, after a login that issued a session-resumption
+	 * token, logs back in with resume(), which falls back to login() if the token is rejected. Since
+	 * NIOClient reconnects through this method, a dropped connection is resumed without sending the
+	 * password again.
+	 * 
+	 * @see ecologylab.oodss.distributed.client.NIOClient#connect()
+	 */
+	@Override
+	public boolean connect()
+	{
+		boolean connected = super.connect();
+
+		if (connected && this.getResumeToken() != null)
+		{
+			try
+			{
+				this.resume();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			catch (MessageTooLargeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return connected;
+	}
+
+	/**
+	 * After reconnecting, logs back in with the session-resumption token from the last successful
+	 * login, if the server issued one, so that the server need not check the password again; falls
+	 * back to login() if there is no token, or the server rejects it.
+	 * 
+	 * @throws IOException
+	 * @throws MessageTooLargeException
+	 */
+	public boolean resume() throws IOException, MessageTooLargeException
+	{
+		String token = this.getResumeToken();
+
+		if (entry != null && token != null)
+		{
+			loggingOut = false;
+			loggingIn = true;
+
+			this.sendMessage(new Resume(entry.getUserKey(), token), 5000);
+
+			if (isLoggedIn())
+				return true;
+
+			// a rejected token will not become valid; don't offer it again
+			objectRegistry.remove(RESUME_TOKEN);
+		}
+
+		return this.login();
+	}
+
+	/**
+	 * @return the session-resumption token from the last successful login, or null if the server
+	 *         did not issue one.
+	 */
+	public String getResumeToken()
+	{
+		return (String) objectRegistry.get(RESUME_TOKEN);
+	}
+
 	/**
 	 * Attempts to log out of the server using the AuthenticationListEntry that is associated with the
 	 * client's side of the connection. Blocks until a response is received or until LOGIN_WAIT_TIME
@@ -0,0 +1,103 @@
+package ecologylab.authentication.nio;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors on which AuthClientSessionManagers process their clients' messages, one task
+ * per session at a time, so that blocking authenticators (JDBC lookups, costly password hashing)
+ * run on many threads at once instead of on the server's single message-processing thread.
+ * 
+ * On a JVM with virtual threads (Java 21 and later), each task gets its own virtual thread, so
+ * thousands of sessions can block at once for the cost of a few carrier threads. The factory method
+ * is found by reflection, so this class still loads on older JVMs, where it falls back to a bounded
+ * pool of platform threads. Note that a virtual thread that blocks inside a synchronized block
+ * holds on to its carrier thread until it leaves the block, on JVMs before Java 24.
+ */
+public final class SessionExecutors
+{
+	/** The most platform threads the fallback executor will run at once. */
+	public static final int								DEFAULT_MAX_PLATFORM_THREADS	= 256;
+
+	private static final Method						NEW_VIRTUAL_THREAD_EXECUTOR		= findVirtualThreadFactory();
+
+	private SessionExecutors()
+	{
+	}
+
+	private static Method findVirtualThreadFactory()
+	{
+		try
+		{
+			return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (SecurityException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this JVM supports virtual threads, so that newSessionExecutor() will use them.
+	 */
+	public static boolean virtualThreadsAvailable()
+	{
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread, if this JVM supports them, or
+	 * else on a pool of up to DEFAULT_MAX_PLATFORM_THREADS daemon threads.
+	 */
+	public static ExecutorService newSessionExecutor()
+	{
+		if (NEW_VIRTUAL_THREAD_EXECUTOR != null)
+		{
+			try
+			{
+				return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+			}
+			catch (Exception e)
+			{
+				// e.g. virtual threads are a disabled preview feature; use platform threads instead
+			}
+		}
+
+		return newPlatformThreadExecutor(DEFAULT_MAX_PLATFORM_THREADS);
+	}
+
+	/**
+	 * Creates an executor that runs each task on one of up to maxThreads daemon threads, which are
+	 * created as needed and retired after a minute idle. When all of them are busy, execute() throws
+	 * a RejectedExecutionException; AuthClientSessionManager then leaves the session's messages
+	 * queued, and tries again on a later pass.
+	 */
+	public static ExecutorService newPlatformThreadExecutor(int maxThreads)
+	{
+		return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new SessionThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	private static class SessionThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger	count	= new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "auth-session-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package ecologylab.authentication.nio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of single-threaded workers, among which sessions are divided by the hash of their
+ * session id. Every task for a session runs on that session's worker, so each client's messages are
+ * processed strictly in order, while clients on different workers are processed in parallel.
+ * 
+ * Each worker's queue is bounded; when it is full, execute() throws a RejectedExecutionException,
+ * which AuthClientSessionManager takes as back-pressure, leaving the messages queued for a later
+ * pass.
+ */
+public class SessionShards
+{
+	public static final int									DEFAULT_QUEUE_CAPACITY	= 1024;
+
+	private final ThreadPoolExecutor[]	workers;
+
+	/**
+	 * Creates one worker per available processor, each with the default queue capacity.
+	 */
+	public SessionShards()
+	{
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param shards
+	 *          the number of worker threads.
+	 * @param queueCapacity
+	 *          the maximum number of tasks waiting for each worker.
+	 */
+	public SessionShards(int shards, int queueCapacity)
+	{
+		if (shards < 1)
+			throw new IllegalArgumentException("shards must be at least 1: " + shards);
+
+		workers = new ThreadPoolExecutor[shards];
+
+		for (int i = 0; i < shards; i++)
+			workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity), new ShardThreadFactory(i),
+					new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * @return the index of the worker that processes sessionId.
+	 */
+	public int shardOf(String sessionId)
+	{
+		int h = sessionId.hashCode();
+
+		// spread the bits, since session ids often differ only in their last characters
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+
+		return (h & Integer.MAX_VALUE) % workers.length;
+	}
+
+	/**
+	 * @return an Executor that runs every task on sessionId's worker.
+	 */
+	public Executor forSession(String sessionId)
+	{
+		final ThreadPoolExecutor worker = workers[this.shardOf(sessionId)];
+
+		return new Executor()
+		{
+			public void execute(Runnable task) throws RejectedExecutionException
+			{
+				worker.execute(task);
+			}
+		};
+	}
+
+	public int getShardCount()
+	{
+		return workers.length;
+	}
+
+	/**
+	 * @return the number of tasks waiting on each worker, to spot a hot shard.
+	 */
+	public int[] getQueuedTaskCounts()
+	{
+		int[] counts = new int[workers.length];
+
+		for (int i = 0; i < workers.length; i++)
+			counts[i] = workers[i].getQueue().size();
+
+		return counts;
+	}
+
+	/**
+	 * Stops accepting tasks; tasks already accepted still run.
+	 */
+	public void shutdown()
+	{
+		for (ThreadPoolExecutor worker : workers)
+			worker.shutdown();
+	}
+
+	private static class ShardThreadFactory implements ThreadFactory
+	{
+		private final int	shard;
+
+		ShardThreadFactory(int shard)
+		{
+			this.shard = shard;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "auth-shard-" + shard);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ecologylab.authentication.password;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size pool of worker threads for running password checks (and anything else that needs a
+ * costly PasswordHasher) away from a server's message-processing thread.
+ * 
+ * The queue of waiting tasks is bounded. When it is full, execute() throws a
+ * RejectedExecutionException rather than queuing more work; callers use this as back-pressure,
+ * leaving the work where it is and trying again later, so that a burst of logins cannot build an
+ * unbounded backlog of hashing work.
+ */
+public class HashingExecutor implements Executor
+{
+	public static final int						DEFAULT_QUEUE_CAPACITY	= 256;
+
+	private final ThreadPoolExecutor	pool;
+
+	/**
+	 * Creates an executor with one thread per available processor and the default queue capacity.
+	 */
+	public HashingExecutor()
+	{
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param threads
+	 *          the number of hashing threads.
+	 * @param queueCapacity
+	 *          the maximum number of tasks waiting for a thread.
+	 */
+	public HashingExecutor(int threads, int queueCapacity)
+	{
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new HashingThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Runs task on a hashing thread.
+	 * 
+	 * @throws RejectedExecutionException
+	 *           if all threads are busy and the queue is full, or if this has been shut down.
+	 */
+	@Override
+	public void execute(Runnable task) throws RejectedExecutionException
+	{
+		pool.execute(task);
+	}
+
+	/**
+	 * @return the number of tasks waiting for a hashing thread.
+	 */
+	public int getQueuedTaskCount()
+	{
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting tasks; tasks already accepted still run.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	private static class HashingThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger	count	= new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "password-hashing-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
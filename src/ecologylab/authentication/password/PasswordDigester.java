@@ -0,0 +1,237 @@
+package ecologylab.authentication.password;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the SHA-256 hash that clients send in place of a plaintext password (see
+ * {@link ecologylab.authentication.User User}), without per-call allocation beyond the result
+ * String.
+ * 
+ * Each thread has its own PasswordDigester, obtained from get(), holding a MessageDigest (so there is
+ * no provider lookup per hash) and reusable buffers for the UTF-8 encoding of the password, the
+ * digest, and its Base64 form. Instances must not be shared between threads.
+ */
+public final class PasswordDigester
+{
+	/** Length, in bytes, of a SHA-256 digest. */
+	public static final int														DIGEST_LENGTH		= 32;
+
+	/** Length, in characters, of a Base64-encoded SHA-256 digest (including padding). */
+	public static final int														ENCODED_LENGTH	= 44;
+
+	private static final char[]												BASE64					= "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+																																				.toCharArray();
+
+	private static final ThreadLocal<PasswordDigester>	PER_THREAD			= new ThreadLocal<PasswordDigester>()
+																																		{
+																																			@Override
+																																			protected PasswordDigester initialValue()
+																																			{
+																																				return new PasswordDigester();
+																																			}
+																																		};
+
+	private final MessageDigest												sha256;
+
+	private byte[]																		utf8						= new byte[64];
+
+	private final byte[]															digest					= new byte[DIGEST_LENGTH];
+
+	private final char[]															encoded					= new char[ENCODED_LENGTH];
+
+	/**
+	 * @return the PasswordDigester for the calling thread.
+	 */
+	public static PasswordDigester get()
+	{
+		return PER_THREAD.get();
+	}
+
+	private PasswordDigester()
+	{
+		try
+		{
+			sha256 = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{ // every JVM is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hashes plaintextPassword and returns the hash Base64-encoded, as stored in User.password.
+	 * 
+	 * @param plaintextPassword
+	 * @return the encoded hash.
+	 */
+	public String hashToString(CharSequence plaintextPassword)
+	{
+		this.digest(plaintextPassword);
+
+		return new String(encoded, 0, this.encodeDigest());
+	}
+
+	/**
+	 * Base64-encodes a raw digest, such as one decoded by PasswordHashes.decodeDigest(), into the form
+	 * stored in User.password.
+	 * 
+	 * @param rawDigest
+	 *          a SHA-256 digest of DIGEST_LENGTH bytes.
+	 * @return the encoded digest.
+	 */
+	public String encode(byte[] rawDigest)
+	{
+		System.arraycopy(rawDigest, 0, digest, 0, DIGEST_LENGTH);
+
+		return new String(encoded, 0, this.encodeDigest());
+	}
+
+	/**
+	 * Hashes plaintextPassword into this thread's digest buffer.
+	 * 
+	 * @param plaintextPassword
+	 * @return the digest; the array is reused, and is overwritten by the next call on this thread.
+	 */
+	public byte[] digest(CharSequence plaintextPassword)
+	{
+		int length = this.encodeUtf8(plaintextPassword);
+
+		sha256.update(utf8, 0, length);
+
+		try
+		{
+			sha256.digest(digest, 0, DIGEST_LENGTH);
+		}
+		catch (DigestException e)
+		{ // cannot happen; the buffer is exactly the digest length
+			throw new IllegalStateException(e);
+		}
+
+		return digest;
+	}
+
+	/**
+	 * Hashes plaintextPassword and compares the result, byte for byte, with expectedDigest.
+	 * 
+	 * @param plaintextPassword
+	 * @param expectedDigest
+	 *          a raw SHA-256 digest.
+	 * @return true if the password hashes to expectedDigest.
+	 */
+	public boolean matches(CharSequence plaintextPassword, byte[] expectedDigest)
+	{
+		return MessageDigest.isEqual(this.digest(plaintextPassword), expectedDigest);
+	}
+
+	/**
+	 * Hashes plaintextPassword and compares the Base64 form of the result with encodedHash, ignoring
+	 * leading and trailing whitespace in encodedHash. Does not allocate.
+	 * 
+	 * @param plaintextPassword
+	 * @param encodedHash
+	 *          a Base64-encoded SHA-256 digest, such as a legacy stored password.
+	 * @return true if the password hashes to encodedHash.
+	 */
+	public boolean matchesEncoded(CharSequence plaintextPassword, String encodedHash)
+	{
+		int start = 0;
+		int end = encodedHash.length();
+
+		while (start < end && encodedHash.charAt(start) <= ' ')
+			start++;
+		while (end > start && encodedHash.charAt(end - 1) <= ' ')
+			end--;
+
+		this.digest(plaintextPassword);
+		int length = this.encodeDigest();
+
+		if (end - start != length)
+			return false;
+
+		int difference = 0;
+		for (int i = 0; i < length; i++)
+			difference |= encoded[i] ^ encodedHash.charAt(start + i);
+
+		return difference == 0;
+	}
+
+	/**
+	 * Encodes s as UTF-8 into the utf8 buffer, growing it if necessary.
+	 * 
+	 * @return the number of bytes written.
+	 */
+	private int encodeUtf8(CharSequence s)
+	{
+		int charCount = s.length();
+
+		if (utf8.length < charCount * 3)
+			utf8 = new byte[charCount * 3];
+
+		int n = 0;
+
+		for (int i = 0; i < charCount; i++)
+		{
+			char c = s.charAt(i);
+
+			if (c < 0x80)
+			{
+				utf8[n++] = (byte) c;
+			}
+			else if (c < 0x800)
+			{
+				utf8[n++] = (byte) (0xC0 | (c >> 6));
+				utf8[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < charCount
+					&& Character.isLowSurrogate(s.charAt(i + 1)))
+			{ // a surrogate pair takes four bytes, no more than the six reserved for its two chars
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+
+				utf8[n++] = (byte) (0xF0 | (codePoint >> 18));
+				utf8[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				utf8[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				utf8[n++] = (byte) (0x80 | (codePoint & 0x3F));
+			}
+			else if (Character.isSurrogate(c))
+			{ // unpaired surrogate; encoded as '?', as String.getBytes() does
+				utf8[n++] = (byte) '?';
+			}
+			else
+			{
+				utf8[n++] = (byte) (0xE0 | (c >> 12));
+				utf8[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				utf8[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * Base64-encodes the digest buffer into the encoded buffer.
+	 * 
+	 * @return the number of characters written.
+	 */
+	private int encodeDigest()
+	{
+		int in = 0;
+		int out = 0;
+
+		while (in < DIGEST_LENGTH)
+		{
+			int b0 = digest[in++] & 0xFF;
+			int b1 = in < DIGEST_LENGTH ? digest[in++] & 0xFF : -1;
+			int b2 = in < DIGEST_LENGTH ? digest[in++] & 0xFF : -1;
+
+			encoded[out++] = BASE64[b0 >>> 2];
+			encoded[out++] = BASE64[((b0 & 0x03) << 4) | (b1 < 0 ? 0 : b1 >>> 4)];
+			encoded[out++] = b1 < 0 ? '=' : BASE64[((b1 & 0x0F) << 2) | (b2 < 0 ? 0 : b2 >>> 6)];
+			encoded[out++] = b2 < 0 ? '=' : BASE64[b2 & 0x3F];
+		}
+
+		return out;
+	}
+}
@@ -0,0 +1,38 @@
+package ecologylab.authentication.password;
+
+/**
+ * Produces and checks stored password hashes in a self-describing, versioned format. The input to
+ * a PasswordHasher is always the hashed password that a client sends (the value of
+ * User.getPassword()), never plaintext.
+ * 
+ * Every stored hash produced by a PasswordHasher starts with its prefix, so that hashes of
+ * different kinds (and legacy, unversioned hashes) can be stored side by side.
+ */
+public interface PasswordHasher
+{
+	/**
+	 * @return the prefix that identifies stored hashes produced by this; for example,
+	 *         "$pbkdf2-sha256$".
+	 */
+	public String prefix();
+
+	/**
+	 * Hashes the given client password for storage, generating a new salt.
+	 * 
+	 * @param clientHash
+	 *          the password as sent by the client.
+	 * @return the stored form of the password, beginning with prefix().
+	 */
+	public String hash(String clientHash);
+
+	/**
+	 * Checks a client password against a hash previously produced by hash().
+	 * 
+	 * @param clientHash
+	 *          the password as sent by the client.
+	 * @param storedHash
+	 *          the stored form of the password, beginning with prefix().
+	 * @return true if clientHash is the password that produced storedHash.
+	 */
+	public boolean verify(String clientHash, String storedHash);
+}
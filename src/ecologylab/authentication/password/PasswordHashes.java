@@ -0,0 +1,242 @@
+package ecologylab.authentication.password;
+
+import java.util.Arrays;
+
+/**
+ * Compares client passwords with stored passwords, whichever format the stored password is in.
+ * Stored passwords are either legacy hashes (the client's SHA-256 hash, stored as-is) or versioned
+ * hashes produced by a PasswordHasher, identified by their prefix.
+ */
+public class PasswordHashes
+{
+	/** Marks the start of every versioned hash. */
+	public static final char									VERSIONED_MARKER	= '$';
+
+	private static final PasswordHasher[]			HASHERS						=
+																															{ new Pbkdf2PasswordHasher() };
+
+	private static final int[]								BASE64_VALUES			= new int[128];
+
+	static
+	{
+		Arrays.fill(BASE64_VALUES, -1);
+
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++)
+			BASE64_VALUES[alphabet.charAt(i)] = i;
+	}
+
+	/** Per-thread scratch space for decoding two digests without allocating. */
+	private static final ThreadLocal<byte[][]>	DIGEST_BUFFERS		= new ThreadLocal<byte[][]>()
+																															{
+																																@Override
+																																protected byte[][] initialValue()
+																																{
+																																	return new byte[2][PasswordDigester.DIGEST_LENGTH];
+																																}
+																															};
+
+	private PasswordHashes()
+	{
+	}
+
+	/**
+	 * @param password
+	 * @return true if password is a versioned hash produced by a PasswordHasher, rather than a
+	 *         legacy hash or a client password.
+	 */
+	public static boolean isVersioned(String password)
+	{
+		return password != null && password.length() > 0 && password.charAt(0) == VERSIONED_MARKER;
+	}
+
+	/**
+	 * Checks a client password against a stored one. The stored password may be a versioned hash from
+	 * a PasswordHasher, or a legacy hash, which is compared directly. The client password must be a
+	 * legacy hash: a client that sent a versioned hash could otherwise log in with a leaked stored
+	 * hash, by hashing it again under its own salt and iteration count.
+	 * 
+	 * @param storedPassword
+	 *          the password as kept by a backing store.
+	 * @param clientPassword
+	 *          the password as sent by the client.
+	 * @return true if the passwords match; false if they do not, or if clientPassword is versioned.
+	 */
+	public static boolean matches(String storedPassword, String clientPassword)
+	{
+		if (storedPassword == null || clientPassword == null || isVersioned(clientPassword))
+			return false;
+
+		if (isVersioned(storedPassword))
+			return verify(clientPassword, storedPassword);
+
+		return legacyMatches(storedPassword, clientPassword);
+	}
+
+	/**
+	 * Compares two legacy (Base64-encoded SHA-256) hashes by decoding them into per-thread buffers
+	 * and comparing the bytes in constant time. Leading and trailing whitespace is ignored. If either
+	 * is not a valid encoded digest, falls back to a constant-time comparison of the trimmed strings.
+	 */
+	static boolean legacyMatches(String a, String b)
+	{
+		byte[][] buffers = DIGEST_BUFFERS.get();
+
+		if (decodeDigest(a, buffers[0]) && decodeDigest(b, buffers[1]))
+			return constantTimeEquals(buffers[0], buffers[1]);
+
+		return constantTimeEquals(a, b);
+	}
+
+	/**
+	 * Compares two byte arrays in time that depends only on their lengths, not on where they differ.
+	 * 
+	 * @return true if a and b have the same length and contents.
+	 */
+	public static boolean constantTimeEquals(byte[] a, byte[] b)
+	{
+		if (a == null || b == null || a.length != b.length)
+			return false;
+
+		int difference = 0;
+		for (int i = 0; i < a.length; i++)
+			difference |= a[i] ^ b[i];
+
+		return difference == 0;
+	}
+
+	/**
+	 * Compares two Strings, ignoring leading and trailing whitespace, in time that depends only on
+	 * their trimmed lengths.
+	 */
+	static boolean constantTimeEquals(String a, String b)
+	{
+		int aStart = trimStart(a), aEnd = trimEnd(a, aStart);
+		int bStart = trimStart(b), bEnd = trimEnd(b, bStart);
+
+		if (aEnd - aStart != bEnd - bStart)
+			return false;
+
+		int difference = 0;
+		for (int i = 0; i < aEnd - aStart; i++)
+			difference |= a.charAt(aStart + i) ^ b.charAt(bStart + i);
+
+		return difference == 0;
+	}
+
+	/**
+	 * Decodes a legacy stored hash into a new array.
+	 * 
+	 * @param encoded
+	 *          a Base64-encoded SHA-256 digest, possibly with leading or trailing whitespace.
+	 * @return the raw digest; null if encoded is not a valid encoded digest.
+	 */
+	public static byte[] decodeDigest(String encoded)
+	{
+		byte[] digest = new byte[PasswordDigester.DIGEST_LENGTH];
+
+		return decodeDigest(encoded, digest) ? digest : null;
+	}
+
+	/**
+	 * Decodes a Base64-encoded value of exactly out.length bytes into out, ignoring leading and
+	 * trailing whitespace.
+	 * 
+	 * @return true if encoded was valid and decoded to exactly out.length bytes.
+	 */
+	static boolean decodeDigest(String encoded, byte[] out)
+	{
+		if (encoded == null)
+			return false;
+
+		int start = trimStart(encoded);
+		int end = trimEnd(encoded, start);
+
+		if (((end - start) & 3) != 0)
+			return false;
+
+		int padding = 0;
+		if (end > start && encoded.charAt(end - 1) == '=')
+			padding++;
+		if (end - 1 > start && encoded.charAt(end - 2) == '=')
+			padding++;
+
+		if ((end - start) / 4 * 3 - padding != out.length)
+			return false;
+
+		int o = 0;
+		int dataEnd = end - padding;
+		int accumulator = 0;
+		int bits = 0;
+
+		for (int i = start; i < dataEnd; i++)
+		{
+			char c = encoded.charAt(i);
+			int value = (c < 128) ? BASE64_VALUES[c] : -1;
+
+			if (value < 0)
+				return false;
+
+			accumulator = (accumulator << 6) | value;
+			bits += 6;
+
+			if (bits >= 8)
+			{
+				bits -= 8;
+				out[o++] = (byte) (accumulator >> bits);
+			}
+		}
+
+		return o == out.length;
+	}
+
+	/**
+	 * @param storedHash
+	 * @return true if storedHash is in a form that needs no migration: either a versioned hash, or a
+	 *         valid encoded digest without surrounding whitespace.
+	 */
+	public static boolean isCanonical(String storedHash)
+	{
+		if (storedHash == null)
+			return false;
+
+		if (isVersioned(storedHash))
+			return true;
+
+		return storedHash.length() == PasswordDigester.ENCODED_LENGTH
+				&& decodeDigest(storedHash, DIGEST_BUFFERS.get()[0]);
+	}
+
+	private static int trimStart(String s)
+	{
+		int start = 0;
+		while (start < s.length() && s.charAt(start) <= ' ')
+			start++;
+		return start;
+	}
+
+	private static int trimEnd(String s, int start)
+	{
+		int end = s.length();
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+		return end;
+	}
+
+	/**
+	 * Checks clientHash against a versioned storedHash, using the PasswordHasher for its prefix.
+	 * 
+	 * @return true if they match; false if they do not, or if no known PasswordHasher produced
+	 *         storedHash.
+	 */
+	static boolean verify(String clientHash, String storedHash)
+	{
+		for (PasswordHasher hasher : HASHERS)
+		{
+			if (storedHash.startsWith(hasher.prefix()))
+				return hasher.verify(clientHash.trim(), storedHash.trim());
+		}
+
+		return false;
+	}
+}
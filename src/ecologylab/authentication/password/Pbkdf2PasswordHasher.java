@@ -0,0 +1,133 @@
+package ecologylab.authentication.password;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import biz.source_code.Base64Coder;
+
+/**
+ * PasswordHasher using PBKDF2 with HMAC-SHA256 and a random 16-byte salt per password. The cost is
+ * set by the iteration count, which is recorded in each stored hash, so it can be raised for new
+ * passwords without invalidating existing ones.
+ * 
+ * Stored hashes have the form: $pbkdf2-sha256$&lt;iterations&gt;$&lt;base64 salt&gt;$&lt;base64
+ * hash&gt;
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher
+{
+	public static final String					PREFIX							= "$pbkdf2-sha256$";
+
+	public static final int							DEFAULT_ITERATIONS	= 100000;
+
+	/**
+	 * The highest iteration count accepted, for new hashes or in stored ones, so that a malformed
+	 * stored hash cannot tie up a hashing thread.
+	 */
+	public static final int							MAX_ITERATIONS			= 10 * DEFAULT_ITERATIONS;
+
+	static final String									ALGORITHM						= "PBKDF2WithHmacSHA256";
+
+	static final int										SALT_BYTES					= 16;
+
+	static final int										HASH_BITS						= 256;
+
+	private static final SecureRandom		RANDOM							= new SecureRandom();
+
+	private final int										iterations;
+
+	public Pbkdf2PasswordHasher()
+	{
+		this(DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param iterations
+	 *          the PBKDF2 iteration count to use for new hashes; higher is slower and harder to attack.
+	 */
+	public Pbkdf2PasswordHasher(int iterations)
+	{
+		if (iterations < 1 || iterations > MAX_ITERATIONS)
+			throw new IllegalArgumentException("iterations must be between 1 and " + MAX_ITERATIONS
+					+ ": " + iterations);
+
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @return the iteration count used for new hashes.
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	@Override
+	public String prefix()
+	{
+		return PREFIX;
+	}
+
+	@Override
+	public String hash(String clientHash)
+	{
+		byte[] salt = new byte[SALT_BYTES];
+		RANDOM.nextBytes(salt);
+
+		byte[] derived = derive(clientHash, salt, iterations);
+
+		return PREFIX + iterations + "$" + new String(Base64Coder.encode(salt)) + "$"
+				+ new String(Base64Coder.encode(derived));
+	}
+
+	@Override
+	public boolean verify(String clientHash, String storedHash)
+	{
+		if (clientHash == null || storedHash == null || !storedHash.startsWith(PREFIX)
+				|| PasswordHashes.isVersioned(clientHash))
+			return false;
+
+		String[] parts = storedHash.substring(PREFIX.length()).split("\\$");
+
+		if (parts.length != 3)
+			return false;
+
+		try
+		{
+			int storedIterations = Integer.parseInt(parts[0]);
+			byte[] salt = Base64Coder.decode(parts[1]);
+			byte[] expected = Base64Coder.decode(parts[2]);
+
+			if (storedIterations < 1 || storedIterations > MAX_ITERATIONS
+					|| expected.length != HASH_BITS / 8)
+				return false;
+
+			return MessageDigest.isEqual(expected, derive(clientHash, salt, storedIterations));
+		}
+		catch (IllegalArgumentException e)
+		{ // malformed stored hash (includes NumberFormatException)
+			return false;
+		}
+	}
+
+	static byte[] derive(String clientHash, byte[] salt, int iterations)
+	{
+		PBEKeySpec spec = new PBEKeySpec(clientHash.toCharArray(), salt, iterations, HASH_BITS);
+
+		try
+		{
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(ALGORITHM + " is not available in this JVM.", e);
+		}
+		finally
+		{
+			spec.clearPassword();
+		}
+	}
+}
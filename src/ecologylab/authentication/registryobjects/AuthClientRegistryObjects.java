@@ -24,4 +24,11 @@ public interface AuthClientRegistryObjects
 	 * Type: String
 	 */
 	public static final String	LOGIN_STATUS_STRING	= "loginStatusString";
+
+	/**
+	 * The session-resumption token from the most recent successful login, if the server issued one.
+	 * 
+	 * Type: String
+	 */
+	public static final String	RESUME_TOKEN				= "resumeToken";
 }
@@ -16,4 +16,10 @@ public interface AuthServerRegistryObjects
 	 * Indicates the object implementing Authenticatable for this server.
 	 */
 	public static final String	MAIN_AUTHENTICATABLE	= "mainAuthenticatable";
+
+	/**
+	 * Indicates the ResumeTokens used to issue and check session-resumption tokens; if absent, none
+	 * are issued, and Resume requests fail.
+	 */
+	public static final String	RESUME_TOKENS					= "resumeTokens";
 }
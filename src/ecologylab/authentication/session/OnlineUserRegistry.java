@@ -0,0 +1,215 @@
+package ecologylab.authentication.session;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes an immutable, sorted snapshot of the user keys that are logged-in, so that callers that
+ * enumerate or count online users (administrator requests, dashboards polling the online list) do
+ * not iterate, scan, or lock the maps or tables that logins and logouts modify.
+ * 
+ * The owning OnlineAuthenticator calls changed() after every login or logout. A snapshot is rebuilt
+ * from the Source only when it is asked for and is out of date: when something has changed since
+ * it was taken (at most once every minRefreshMillis), or when it is older than maxAgeMillis (so that
+ * changes made to a shared store by other servers are eventually seen). Only one thread rebuilds at
+ * a time; others keep getting the previous snapshot meanwhile, rather than waiting.
+ * 
+ * All methods are safe to call from multiple threads.
+ */
+public class OnlineUserRegistry
+{
+	/**
+	 * Supplies the user keys that are currently logged-in. Called only while a snapshot is rebuilt;
+	 * the result is copied, so it may be a weakly-consistent view of a concurrent collection.
+	 */
+	public interface Source
+	{
+		Collection<String> currentUsers();
+	}
+
+	private final Source				source;
+
+	private final long					minRefreshMillis;
+
+	private final long					maxAgeMillis;
+
+	/** Incremented by changed(); a snapshot records the version it was built from. */
+	private final AtomicLong		version			= new AtomicLong();
+
+	private final ReentrantLock	rebuildLock	= new ReentrantLock();
+
+	private volatile Snapshot		snapshot;
+
+	/**
+	 * Creates a registry whose snapshots are rebuilt as soon as they are requested after a change,
+	 * and never expire otherwise; suitable when source is the authoritative, in-memory session map.
+	 * 
+	 * @param source
+	 */
+	public OnlineUserRegistry(Source source)
+	{
+		this(source, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param source
+	 *          supplies the logged-in user keys when a snapshot is rebuilt.
+	 * @param minRefreshMillis
+	 *          the minimum age of a snapshot before a local change causes it to be rebuilt.
+	 * @param maxAgeMillis
+	 *          the age at which a snapshot is rebuilt even if no local change has been reported.
+	 */
+	public OnlineUserRegistry(Source source, long minRefreshMillis, long maxAgeMillis)
+	{
+		this.source = source;
+		this.minRefreshMillis = minRefreshMillis;
+		this.maxAgeMillis = maxAgeMillis;
+		this.snapshot = new Snapshot(-1, 0, new String[0]);
+	}
+
+	/**
+	 * Records that a user has logged in or out. Must be called after the change is visible to the
+	 * Source.
+	 */
+	public void changed()
+	{
+		version.incrementAndGet();
+	}
+
+	/**
+	 * @return the current snapshot of logged-in users, rebuilding it first if it is out of date and
+	 *         no other thread is already doing so.
+	 */
+	public Snapshot snapshot()
+	{
+		Snapshot current = this.snapshot;
+
+		if (!this.isStale(current, System.currentTimeMillis()) || !rebuildLock.tryLock())
+			return current;
+
+		try
+		{
+			current = this.snapshot;
+			long now = System.currentTimeMillis();
+
+			if (this.isStale(current, now))
+			{
+				// read the version before the source, so that a change made during the copy leaves the
+				// new snapshot stale
+				long builtFrom = version.get();
+
+				String[] users = source.currentUsers().toArray(new String[0]);
+				Arrays.sort(users);
+
+				this.snapshot = current = new Snapshot(builtFrom, now, users);
+			}
+
+			return current;
+		}
+		finally
+		{
+			rebuildLock.unlock();
+		}
+	}
+
+	private boolean isStale(Snapshot current, long now)
+	{
+		long age = now - current.takenAt;
+
+		if (current.version < 0 || age >= maxAgeMillis)
+			return true;
+
+		return current.version != version.get() && age >= minRefreshMillis;
+	}
+
+	/**
+	 * Discards the current snapshot, so that the next request rebuilds it.
+	 */
+	public void clear()
+	{
+		this.snapshot = new Snapshot(-1, 0, new String[0]);
+	}
+
+	/**
+	 * An immutable, sorted list of the user keys that were logged-in when it was taken.
+	 */
+	public static final class Snapshot
+	{
+		private final long						version;
+
+		private final long						takenAt;
+
+		private final List<String>		users;
+
+		private volatile Set<String>	userSet;
+
+		Snapshot(long version, long takenAt, String[] sortedUsers)
+		{
+			this.version = version;
+			this.takenAt = takenAt;
+			this.users = Collections.unmodifiableList(Arrays.asList(sortedUsers));
+		}
+
+		/**
+		 * @return the number of users logged-in.
+		 */
+		public int count()
+		{
+			return users.size();
+		}
+
+		/**
+		 * @return all of the user keys, in sorted order.
+		 */
+		public List<String> users()
+		{
+			return users;
+		}
+
+		/**
+		 * @param offset
+		 *          index of the first user key to return.
+		 * @param limit
+		 *          the maximum number of user keys to return.
+		 * @return up to limit user keys, starting at offset, in sorted order; empty if offset is past
+		 *         the end.
+		 */
+		public List<String> page(int offset, int limit)
+		{
+			if (offset < 0 || limit < 0)
+				throw new IllegalArgumentException("offset and limit must not be negative.");
+
+			int from = Math.min(offset, users.size());
+			int to = (int) Math.min((long) from + limit, users.size());
+
+			return users.subList(from, to);
+		}
+
+		/**
+		 * @return the user keys as an unmodifiable Set; built on first use.
+		 */
+		public Set<String> asSet()
+		{
+			Set<String> set = this.userSet;
+
+			if (set == null)
+				this.userSet = set = Collections.unmodifiableSet(new HashSet<String>(users));
+
+			return set;
+		}
+
+		/**
+		 * @return the time, in milliseconds, at which this was taken.
+		 */
+		public long getTakenAt()
+		{
+			return takenAt;
+		}
+	}
+}
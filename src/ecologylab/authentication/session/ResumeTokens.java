@@ -0,0 +1,274 @@
+package ecologylab.authentication.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import biz.source_code.Base64Coder;
+import ecologylab.authentication.User;
+import ecologylab.authentication.password.PasswordHashes;
+
+/**
+ * Issues and checks signed, expiring session-resumption tokens. A client that has logged in is
+ * given a token naming its user, uid, and access level; after a reconnect, it can present the token
+ * in a Resume request instead of its password, and the server verifies it with a single HMAC,
+ * without hashing a password or looking the user up in the backing store.
+ * 
+ * Tokens have the form &lt;base64 payload&gt;.&lt;base64 HMAC-SHA256 of payload&gt;, where the
+ * payload holds a format version, the time the user logged in with its password, the expiry time,
+ * the uid, the level, and the user key. They are
+ * bearer credentials: anyone holding one can resume as its user until it expires, even if the user
+ * has since changed their password, so keep lifetimes short. Resuming does not extend a session
+ * past the expiry of the token it was resumed from. All servers that
+ * accept each other's tokens must share the same secret.
+ * 
+ * All methods are safe to call from multiple threads.
+ */
+public class ResumeTokens
+{
+	public static final String					ALGORITHM								= "HmacSHA256";
+
+	public static final long						DEFAULT_LIFETIME_MILLIS	= 15 * 60 * 1000;
+
+	/** The length, in bytes, of secrets made by the randomSecret() method. */
+	public static final int							SECRET_BYTES						= 32;
+
+	static final byte										FORMAT_VERSION					= 2;
+
+	private static final SecureRandom		RANDOM									= new SecureRandom();
+
+	private final SecretKeySpec					key;
+
+	private final long									lifetimeMillis;
+
+	/** Macs are not thread-safe, and costly to create, so each thread keeps its own. */
+	private final ThreadLocal<Mac>			macs										= new ThreadLocal<Mac>()
+																															{
+																																@Override
+																																protected Mac initialValue()
+																																{
+																																	return createMac();
+																																}
+																															};
+
+	/**
+	 * Creates tokens signed with a new random secret, which will only be accepted by this object.
+	 */
+	public ResumeTokens()
+	{
+		this(randomSecret(), DEFAULT_LIFETIME_MILLIS);
+	}
+
+	/**
+	 * @param secret
+	 *          the HMAC key; at least 16 bytes, and shared by every server that accepts these tokens.
+	 * @param lifetimeMillis
+	 *          how long each token remains valid after it is issued.
+	 */
+	public ResumeTokens(byte[] secret, long lifetimeMillis)
+	{
+		if (secret.length < 16)
+			throw new IllegalArgumentException("secret must be at least 16 bytes");
+
+		this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+		this.lifetimeMillis = lifetimeMillis;
+
+		// fail now, rather than on the first login, if HMAC-SHA256 is unavailable
+		this.createMac();
+	}
+
+	public static byte[] randomSecret()
+	{
+		byte[] secret = new byte[SECRET_BYTES];
+		RANDOM.nextBytes(secret);
+
+		return secret;
+	}
+
+	private Mac createMac()
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+
+			return mac;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(ALGORITHM + " is unavailable", e);
+		}
+	}
+
+	public long getLifetimeMillis()
+	{
+		return lifetimeMillis;
+	}
+
+	/**
+	 * Issues a token for user, which must have logged in, so that its uid and level are set.
+	 */
+	public String issue(User user)
+	{
+		long now = System.currentTimeMillis();
+
+		return this.issue(user, now, now + lifetimeMillis);
+	}
+
+	/**
+	 * Issues a token for user that carries the given login time and expires at the given time; used
+	 * when a session is resumed, so that the new token expires no later than the one it replaces,
+	 * and a token cannot be renewed indefinitely without the user's password.
+	 * 
+	 * @param issued
+	 *          when the user logged in with its password, in milliseconds since the epoch.
+	 * @param expires
+	 *          when the token expires, in milliseconds since the epoch.
+	 */
+	public String issue(User user, long issued, long expires)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try
+		{
+			out.writeByte(FORMAT_VERSION);
+			out.writeLong(issued);
+			out.writeLong(expires);
+			out.writeLong(user.getUid());
+			out.writeInt(user.getLevel());
+			out.writeUTF(user.getUserKey());
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// cannot happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+
+		byte[] payload = bytes.toByteArray();
+
+		return new String(Base64Coder.encode(payload)) + '.'
+				+ new String(Base64Coder.encode(macs.get().doFinal(payload)));
+	}
+
+	/**
+	 * Checks token's signature and expiry.
+	 * 
+	 * @return what the token says about its user, if it is genuine and unexpired; otherwise null.
+	 */
+	public Claims verify(String token)
+	{
+		if (token == null)
+			return null;
+
+		int dot = token.indexOf('.');
+
+		if (dot < 0)
+			return null;
+
+		byte[] payload;
+		byte[] signature;
+
+		try
+		{
+			payload = Base64Coder.decode(token.substring(0, dot));
+			signature = Base64Coder.decode(token.substring(dot + 1));
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+
+		if (!PasswordHashes.constantTimeEquals(macs.get().doFinal(payload), signature))
+			return null;
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		try
+		{
+			if (in.readByte() != FORMAT_VERSION)
+				return null;
+
+			long issued = in.readLong();
+			long expires = in.readLong();
+
+			if (System.currentTimeMillis() >= expires)
+				return null;
+
+			long uid = in.readLong();
+			int level = in.readInt();
+
+			return new Claims(in.readUTF(), uid, level, issued, expires);
+		}
+		catch (IOException e)
+		{
+			// truncated; cannot happen to a payload signed by issue()
+			return null;
+		}
+	}
+
+	/**
+	 * The contents of a verified token.
+	 */
+	public static final class Claims
+	{
+		private final String	userKey;
+
+		private final long		uid;
+
+		private final int			level;
+
+		private final long		issued;
+
+		private final long		expires;
+
+		Claims(String userKey, long uid, int level, long issued, long expires)
+		{
+			this.userKey = userKey;
+			this.uid = uid;
+			this.level = level;
+			this.issued = issued;
+			this.expires = expires;
+		}
+
+		public String getUserKey()
+		{
+			return userKey;
+		}
+
+		public long getUid()
+		{
+			return uid;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		/**
+		 * @return when the user logged in with its password, in milliseconds since the epoch; tokens
+		 *         issued on resuming keep the time of the login they descend from.
+		 */
+		public long getIssued()
+		{
+			return issued;
+		}
+
+		/**
+		 * @return when the token expires, in milliseconds since the epoch.
+		 */
+		public long getExpires()
+		{
+			return expires;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package ecologylab.authentication.session;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local cache of authenticated sessions, mapping each session id to the uid, user key, and level
+ * of the user logged-in on it. Used by OnlineAuthenticators whose authoritative session data lives
+ * in a shared store (such as a database), so that checking a session on every message does not
+ * require a round trip to the store.
+ * 
+ * Entries expire after a fixed time-to-live, so that changes made to the store by other servers are
+ * eventually seen; changes made through the owning OnlineAuthenticator (logins and logouts) should
+ * update the cache directly, so they take effect immediately.
+ * 
+ * All methods are safe to call from multiple threads. A caller that fills the cache from the store
+ * should read generation() before querying the store, and cache the result with putIfCurrent(), so
+ * that an invalidation made while the query was in flight is not undone by a stale result.
+ */
+public class SessionCache
+{
+	public static final long																DEFAULT_TTL_MILLIS	= 30 * 1000;
+
+	public static final int																	DEFAULT_MAX_SIZE		= 100000;
+
+	private final long																			ttlMillis;
+
+	private final int																				maxSize;
+
+	private final ConcurrentHashMap<String, CachedSession>	sessions						= new ConcurrentHashMap<String, CachedSession>();
+
+	/** Reverse lookup, so that a new login can evict the user's previous session. */
+	private final ConcurrentHashMap<String, String>					sessionIdByUserKey	= new ConcurrentHashMap<String, String>();
+
+	/** Bumped by every put() and invalidation; guarded by this. */
+	private long																						generation;
+
+	public SessionCache()
+	{
+		this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param ttlMillis
+	 *          how long an entry is trusted after it is cached.
+	 * @param maxSize
+	 *          the maximum number of sessions to cache; beyond this, new sessions are not cached until
+	 *          old ones expire or are invalidated.
+	 */
+	public SessionCache(long ttlMillis, int maxSize)
+	{
+		this.ttlMillis = ttlMillis;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param sessionId
+	 * @return the cached session for sessionId; null if it is not cached or has expired.
+	 */
+	public CachedSession get(String sessionId)
+	{
+		if (sessionId == null)
+			return null;
+
+		CachedSession session = sessions.get(sessionId);
+
+		if (session != null && session.expiresAt <= System.currentTimeMillis())
+		{
+			this.remove(sessionId, session);
+			return null;
+		}
+
+		return session;
+	}
+
+	/**
+	 * Caches the session for a logged-in user, replacing any session previously cached for the same
+	 * user key. Call after the login is written to the store; a lookup that was in flight at the time
+	 * will not cache what it read, since it may be the user's previous session.
+	 * 
+	 * @param sessionId
+	 * @param uid
+	 * @param userKey
+	 * @param level
+	 * @return the session information; it is returned even if the cache was too full to store it.
+	 */
+	public synchronized CachedSession put(String sessionId, long uid, String userKey, int level)
+	{
+		generation++;
+
+		return this.store(sessionId, uid, userKey, level);
+	}
+
+	private CachedSession store(String sessionId, long uid, String userKey, int level)
+	{
+		CachedSession session = new CachedSession(uid, userKey, level, System.currentTimeMillis()
+				+ ttlMillis);
+
+		if (sessionId == null || userKey == null)
+			return session;
+
+		if (sessions.size() >= maxSize)
+		{
+			this.purgeExpired();
+
+			if (sessions.size() >= maxSize)
+				return session;
+		}
+
+		String previousSessionId = sessionIdByUserKey.put(userKey, sessionId);
+
+		if (previousSessionId != null && !previousSessionId.equals(sessionId))
+			sessions.remove(previousSessionId);
+
+		sessions.put(sessionId, session);
+
+		return session;
+	}
+
+	/**
+	 * @return the current generation; read it before looking a session up in the store, and pass it
+	 *         to putIfCurrent().
+	 */
+	public synchronized long generation()
+	{
+		return generation;
+	}
+
+	/**
+	 * Caches the session as put() does, but only if nothing has been put or invalidated since
+	 * generation was read; otherwise, the session information may predate a logout, and is not cached.
+	 * 
+	 * @param sessionId
+	 * @param uid
+	 * @param userKey
+	 * @param level
+	 * @param generation
+	 *          the value of generation() read before the session was looked up.
+	 * @return the session information; it is returned even if it was not stored.
+	 */
+	public synchronized CachedSession putIfCurrent(String sessionId, long uid, String userKey,
+			int level, long generation)
+	{
+		if (generation != this.generation)
+			return new CachedSession(uid, userKey, level, System.currentTimeMillis() + ttlMillis);
+
+		return this.store(sessionId, uid, userKey, level);
+	}
+
+	/**
+	 * Removes the given session from the cache; call whenever the session is logged-out or its
+	 * connection is invalidated.
+	 * 
+	 * @param sessionId
+	 */
+	public synchronized void invalidate(String sessionId)
+	{
+		if (sessionId == null)
+			return;
+
+		generation++;
+
+		CachedSession session = sessions.get(sessionId);
+
+		if (session != null)
+			this.remove(sessionId, session);
+	}
+
+	/**
+	 * Removes whatever session is cached for the given user key.
+	 * 
+	 * @param userKey
+	 */
+	public synchronized void invalidateUser(String userKey)
+	{
+		if (userKey == null)
+			return;
+
+		generation++;
+
+		String sessionId = sessionIdByUserKey.remove(userKey);
+
+		if (sessionId != null)
+			sessions.remove(sessionId);
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public synchronized void clear()
+	{
+		generation++;
+		sessions.clear();
+		sessionIdByUserKey.clear();
+	}
+
+	/**
+	 * @return the number of sessions currently cached, including any that have expired but have not
+	 *         yet been purged.
+	 */
+	public int size()
+	{
+		return sessions.size();
+	}
+
+	/**
+	 * Removes all expired entries.
+	 */
+	public void purgeExpired()
+	{
+		long now = System.currentTimeMillis();
+
+		Iterator<Entry<String, CachedSession>> iter = sessions.entrySet().iterator();
+
+		while (iter.hasNext())
+		{
+			Entry<String, CachedSession> entry = iter.next();
+
+			if (entry.getValue().expiresAt <= now)
+				this.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void remove(String sessionId, CachedSession session)
+	{
+		if (sessions.remove(sessionId, session))
+			sessionIdByUserKey.remove(session.userKey, sessionId);
+	}
+
+	/**
+	 * The user information cached for an authenticated session. Immutable.
+	 */
+	public static class CachedSession
+	{
+		private final long		uid;
+
+		private final String	userKey;
+
+		private final int			level;
+
+		private final long		expiresAt;
+
+		CachedSession(long uid, String userKey, int level, long expiresAt)
+		{
+			this.uid = uid;
+			this.userKey = userKey;
+			this.level = level;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the uid
+		 */
+		public long getUid()
+		{
+			return uid;
+		}
+
+		/**
+		 * @return the userKey
+		 */
+		public String getUserKey()
+		{
+			return userKey;
+		}
+
+		/**
+		 * @return the level
+		 */
+		public int getLevel()
+		{
+			return level;
+		}
+	}
+}
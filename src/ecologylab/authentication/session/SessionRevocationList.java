@@ -0,0 +1,145 @@
+package ecologylab.authentication.session;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stateless session tokens that have been revoked before they expired: single tokens, revoked
+ * by logging out, and all of a user's tokens issued up to some time, revoked to force the user out.
+ * Entries are kept only until every token they cover would have expired anyway, so the list stays
+ * as small as the number of recent forced logouts.
+ * 
+ * The list is local to one server; to revoke sessions across several servers, apply each
+ * revocation to every server's list. Checking a token against an empty list costs two reads.
+ * 
+ * All methods are safe to call from multiple threads.
+ */
+public class SessionRevocationList
+{
+	/** Purge expired entries after this many revocations. */
+	static final int																PURGE_INTERVAL	= 256;
+
+	/** The expiry time of each revoked token, by token. */
+	private final ConcurrentHashMap<String, Long>	tokens					= new ConcurrentHashMap<String, Long>();
+
+	/** For each user with revoked tokens, the time up to which tokens issued were revoked. */
+	private final ConcurrentHashMap<String, Long>	users						= new ConcurrentHashMap<String, Long>();
+
+	/** How long a user's entry must be kept: the longest lifetime of a token it covers. */
+	private final long															tokenLifetimeMillis;
+
+	private final AtomicInteger											revocationsSincePurge	= new AtomicInteger();
+
+	/**
+	 * @param tokenLifetimeMillis
+	 *          the lifetime of the tokens to be revoked, such as SessionTokens.getLifetimeMillis().
+	 */
+	public SessionRevocationList(long tokenLifetimeMillis)
+	{
+		this.tokenLifetimeMillis = tokenLifetimeMillis;
+	}
+
+	/**
+	 * Revokes one token, until it expires.
+	 */
+	public void revoke(String token, SessionTokens.Claims claims)
+	{
+		tokens.put(token, claims.getExpires());
+		this.revoked();
+	}
+
+	/**
+	 * Revokes every token issued to userKey up to now; tokens issued later are unaffected.
+	 */
+	public void revokeUser(String userKey)
+	{
+		this.revokeUser(userKey, System.currentTimeMillis());
+	}
+
+	/**
+	 * Revokes every token issued to userKey up to the given time; for applying a revocation made on
+	 * another server.
+	 */
+	public void revokeUser(String userKey, long issuedUpToMillis)
+	{
+		Long previous;
+
+		do
+		{
+			previous = users.putIfAbsent(userKey, issuedUpToMillis);
+		}
+		while (previous != null && previous < issuedUpToMillis
+				&& !users.replace(userKey, previous, issuedUpToMillis));
+
+		this.revoked();
+	}
+
+	/**
+	 * @return true if token, which has already been verified, has been revoked.
+	 */
+	public boolean isRevoked(String token, SessionTokens.Claims claims)
+	{
+		// issue times are rounded down to the second, so a token issued within the second of a
+		// revocation is treated as revoked
+		if (this.isUserRevoked(claims.getUserKey(), claims.getIssued()))
+			return true;
+
+		return !tokens.isEmpty() && tokens.containsKey(token);
+	}
+
+	/**
+	 * @return true if userKey has been forced out at or after the time issued, so that anything
+	 *         issued to it by then, such as a resumption token, no longer vouches for it.
+	 */
+	public boolean isUserRevoked(String userKey, long issued)
+	{
+		if (users.isEmpty())
+			return false;
+
+		Long revokedUpTo = users.get(userKey);
+
+		return revokedUpTo != null && issued <= revokedUpTo;
+	}
+
+	/**
+	 * @return the number of entries: tokens revoked one at a time, plus users revoked.
+	 */
+	public int size()
+	{
+		return tokens.size() + users.size();
+	}
+
+	private void revoked()
+	{
+		if (revocationsSincePurge.incrementAndGet() >= PURGE_INTERVAL)
+		{
+			revocationsSincePurge.set(0);
+			this.purge();
+		}
+	}
+
+	/**
+	 * Removes entries for tokens that have expired anyway.
+	 */
+	public void purge()
+	{
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Entry<String, Long>> i = tokens.entrySet().iterator(); i.hasNext();)
+		{
+			if (i.next().getValue() <= now)
+				i.remove();
+		}
+
+		for (Iterator<Entry<String, Long>> i = users.entrySet().iterator(); i.hasNext();)
+		{
+			Entry<String, Long> user = i.next();
+
+			// round up for the seconds that issue and expiry times are kept in
+			if (user.getValue() + tokenLifetimeMillis + 1000 <= now)
+				users.remove(user.getKey(), user.getValue());
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package ecologylab.authentication.session;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import biz.source_code.Base64Coder;
+import ecologylab.authentication.User;
+
+/**
+ * Issues and checks stateless session tokens: session ids that carry their own user key, uid,
+ * access level, and expiry, signed with HMAC-SHA256, so that any server holding the secret can
+ * check a session with one MAC computation, and no shared map or database.
+ * 
+ * A token is the Base64 encoding of a binary payload (format version, issue and expiry times in
+ * seconds, uid, level, and the UTF-8 user key), followed by the first MAC_BYTES bytes of its MAC.
+ * Tokens for typical user keys are about 60 characters long.
+ * 
+ * All methods are safe to call from multiple threads.
+ * 
+ * @see SessionRevocationList
+ */
+public class SessionTokens
+{
+	public static final String					ALGORITHM								= "HmacSHA256";
+
+	public static final long						DEFAULT_LIFETIME_MILLIS	= 60 * 60 * 1000;
+
+	/** The length, in bytes, of the truncated MAC at the end of each token. */
+	public static final int							MAC_BYTES								= 16;
+
+	/** The longest user key, in UTF-8 bytes, that a token can carry. */
+	public static final int							MAX_KEY_BYTES						= 255;
+
+	static final byte										FORMAT_VERSION					= 1;
+
+	/** Length of the payload before the user key. */
+	static final int										HEADER_BYTES						= 22;
+
+	private static final Charset				UTF_8										= Charset.forName("UTF-8");
+
+	private static final SecureRandom		RANDOM									= new SecureRandom();
+
+	private final SecretKeySpec					key;
+
+	private final long									lifetimeMillis;
+
+	/** Each thread's Mac, and a buffer for the full MAC it computes. */
+	private final ThreadLocal<MacState>	macs										= new ThreadLocal<MacState>()
+																															{
+																																@Override
+																																protected MacState initialValue()
+																																{
+																																	return new MacState(createMac());
+																																}
+																															};
+
+	/**
+	 * Creates tokens signed with a new random secret, which will only be accepted by this object.
+	 */
+	public SessionTokens()
+	{
+		this(randomSecret(), DEFAULT_LIFETIME_MILLIS);
+	}
+
+	/**
+	 * @param secret
+	 *          the HMAC key; at least 16 bytes, and shared by every server that accepts these tokens.
+	 * @param lifetimeMillis
+	 *          how long each token remains valid after it is issued; at least a second.
+	 */
+	public SessionTokens(byte[] secret, long lifetimeMillis)
+	{
+		if (secret.length < 16)
+			throw new IllegalArgumentException("secret must be at least 16 bytes");
+
+		if (lifetimeMillis < 1000)
+			throw new IllegalArgumentException("lifetime must be at least a second: " + lifetimeMillis);
+
+		this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+		this.lifetimeMillis = lifetimeMillis;
+
+		// fail now, rather than on the first login, if HMAC-SHA256 is unavailable
+		this.createMac();
+	}
+
+	public static byte[] randomSecret()
+	{
+		byte[] secret = new byte[32];
+		RANDOM.nextBytes(secret);
+
+		return secret;
+	}
+
+	private Mac createMac()
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+
+			return mac;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(ALGORITHM + " is unavailable", e);
+		}
+	}
+
+	public long getLifetimeMillis()
+	{
+		return lifetimeMillis;
+	}
+
+	/**
+	 * Issues a token for user, whose uid and level must already be set from the backing store.
+	 * 
+	 * @throws IllegalArgumentException
+	 *           if the user key is longer than MAX_KEY_BYTES.
+	 */
+	public String issue(User user)
+	{
+		byte[] userKey = user.getUserKey().getBytes(UTF_8);
+
+		if (userKey.length > MAX_KEY_BYTES)
+			throw new IllegalArgumentException("user key too long for a session token");
+
+		long now = System.currentTimeMillis();
+		int issued = (int) (now / 1000);
+		int expires = (int) ((now + lifetimeMillis + 999) / 1000);
+
+		int payloadLength = HEADER_BYTES + userKey.length;
+		byte[] token = new byte[payloadLength + MAC_BYTES];
+
+		token[0] = FORMAT_VERSION;
+		putInt(token, 1, issued);
+		putInt(token, 5, expires);
+		putLong(token, 9, user.getUid());
+		putInt(token, 17, user.getLevel());
+		token[21] = (byte) userKey.length;
+		System.arraycopy(userKey, 0, token, HEADER_BYTES, userKey.length);
+
+		MacState state = macs.get();
+		System.arraycopy(state.sign(token, payloadLength), 0, token, payloadLength, MAC_BYTES);
+
+		return new String(Base64Coder.encode(token));
+	}
+
+	/**
+	 * Checks token's signature, encoding, and expiry; does not consult any revocation list.
+	 * 
+	 * @return what the token says about its session, if it is genuine and unexpired; otherwise null.
+	 */
+	public Claims verify(String token)
+	{
+		if (token == null || token.length() < 4 * ((HEADER_BYTES + MAC_BYTES + 2) / 3))
+			return null;
+
+		byte[] bytes;
+
+		try
+		{
+			bytes = Base64Coder.decode(token);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+
+		int payloadLength = bytes.length - MAC_BYTES;
+
+		if (payloadLength < HEADER_BYTES || bytes[0] != FORMAT_VERSION
+				|| (bytes[21] & 0xff) != payloadLength - HEADER_BYTES)
+			return null;
+
+		byte[] mac = macs.get().sign(bytes, payloadLength);
+
+		int difference = 0;
+		for (int i = 0; i < MAC_BYTES; i++)
+			difference |= mac[i] ^ bytes[payloadLength + i];
+
+		if (difference != 0 || !isCanonical(token, bytes))
+			return null;
+
+		long expires = (getInt(bytes, 5) & 0xffffffffL) * 1000;
+
+		if (System.currentTimeMillis() >= expires)
+			return null;
+
+		return new Claims(new String(bytes, HEADER_BYTES, payloadLength - HEADER_BYTES, UTF_8),
+				getLong(bytes, 9), getInt(bytes, 17), (getInt(bytes, 1) & 0xffffffffL) * 1000, expires);
+	}
+
+	/**
+	 * Base64Coder.decode() ignores the unused low bits of the last character before any padding, so
+	 * each token can be written several ways that decode to the same bytes; only the one that
+	 * issue() produces is accepted, so that a revoked token cannot be revived by rewriting it.
+	 * 
+	 * @return true if token is exactly the encoding of bytes.
+	 */
+	private static boolean isCanonical(String token, byte[] bytes)
+	{
+		char[] encoded = Base64Coder.encode(bytes);
+
+		if (encoded.length != token.length())
+			return false;
+
+		for (int i = 0; i < encoded.length; i++)
+		{
+			if (encoded[i] != token.charAt(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static void putLong(byte[] b, int offset, long value)
+	{
+		putInt(b, offset, (int) (value >>> 32));
+		putInt(b, offset + 4, (int) value);
+	}
+
+	private static int getInt(byte[] b, int offset)
+	{
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+				| ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+
+	private static long getLong(byte[] b, int offset)
+	{
+		return ((long) getInt(b, offset) << 32) | (getInt(b, offset + 4) & 0xffffffffL);
+	}
+
+	private static final class MacState
+	{
+		private final Mac			mac;
+
+		private final byte[]	output;
+
+		MacState(Mac mac)
+		{
+			this.mac = mac;
+			this.output = new byte[mac.getMacLength()];
+		}
+
+		/**
+		 * @return the full MAC of the first length bytes of data, in a buffer reused by this thread.
+		 */
+		byte[] sign(byte[] data, int length)
+		{
+			mac.update(data, 0, length);
+
+			try
+			{
+				mac.doFinal(output, 0);
+			}
+			catch (ShortBufferException e)
+			{
+				// cannot happen; output is getMacLength() long
+				throw new IllegalStateException(e);
+			}
+
+			return output;
+		}
+	}
+
+	/**
+	 * The contents of a verified session token.
+	 */
+	public static final class Claims
+	{
+		private final String	userKey;
+
+		private final long		uid;
+
+		private final int			level;
+
+		private final long		issued;
+
+		private final long		expires;
+
+		Claims(String userKey, long uid, int level, long issued, long expires)
+		{
+			this.userKey = userKey;
+			this.uid = uid;
+			this.level = level;
+			this.issued = issued;
+			this.expires = expires;
+		}
+
+		public String getUserKey()
+		{
+			return userKey;
+		}
+
+		public long getUid()
+		{
+			return uid;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		/**
+		 * @return when the token was issued, in milliseconds since the epoch, rounded down to the
+		 *         second.
+		 */
+		public long getIssued()
+		{
+			return issued;
+		}
+
+		/**
+		 * @return when the token expires, in milliseconds since the epoch.
+		 */
+		public long getExpires()
+		{
+			return expires;
+		}
+	}
+}
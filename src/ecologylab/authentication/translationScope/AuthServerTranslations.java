@@ -23,6 +23,7 @@ public class AuthServerTranslations
 																														{
 			ecologylab.authentication.messages.Login.class,
 			ecologylab.authentication.messages.Logout.class,
+			ecologylab.authentication.messages.Resume.class,
 			ecologylab.authentication.messages.LoginStatusResponse.class,
 			ecologylab.authentication.messages.LogoutStatusResponse.class,
 			ecologylab.authentication.AuthenticationListXMLImpl.class };